@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reduces a column of values with {@link StatsCombiner}: a mix of single numbers, as written by clients, and min,max,sum,count values from earlier
+ * compactions, in the comma-separated or binary form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatsCombinerBenchmark {
+
+  @Param({"100"})
+  int values;
+
+  @Param({StatsCombiner.STRING_ENCODING, StatsCombiner.BINARY_ENCODING})
+  String encoding;
+
+  private List<Value> input;
+  private StatsCombiner combiner;
+  private Key key;
+
+  @Setup
+  public void setup() throws IOException {
+    Random random = new Random(42);
+    input = new ArrayList<>();
+    for (int i = 0; i < values; i++) {
+      if (i % 10 == 0) {
+        long min = random.nextInt(1000);
+        long max = min + random.nextInt(100000);
+        long sum = (min + max) * 50;
+        if (encoding.equals(StatsCombiner.BINARY_ENCODING))
+          input.add(new Value(StatsCombiner.encode(min, max, sum, 100)));
+        else
+          input.add(new Value((min + "," + max + "," + sum + ",100").getBytes()));
+      } else {
+        input.add(new Value(Long.toString(random.nextInt(100000)).getBytes()));
+      }
+    }
+    IteratorSetting is = new IteratorSetting(10, StatsCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    is.addOption(StatsCombiner.ENCODING_OPTION, encoding);
+    combiner = new StatsCombiner();
+    combiner.init(new SortedMapIterator(new TreeMap<Key,Value>()), is.getOptions(), null);
+    key = new Key("row", "stat", "q");
+  }
+
+  @Benchmark
+  public Value reduce() {
+    return combiner.reduce(key, input.iterator());
+  }
+}
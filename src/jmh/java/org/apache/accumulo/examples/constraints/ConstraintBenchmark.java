@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.constraints;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checks mutations that pass, as most do, with {@link AlphaNumKeyConstraint} and {@link NumericValueConstraint}. A tablet server checks mutations as they
+ * arrive, before their updates have been decoded, so each check is given a fresh copy of the mutation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConstraintBenchmark {
+
+  @Param({"10"})
+  int updatesPerMutation;
+
+  private Mutation mutation;
+  private final AlphaNumKeyConstraint alphaNum = new AlphaNumKeyConstraint();
+  private final NumericValueConstraint numeric = new NumericValueConstraint();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    mutation = new Mutation("row" + random.nextInt(1000000));
+    for (int i = 0; i < updatesPerMutation; i++)
+      mutation.put("colf" + i, "colq" + random.nextInt(1000), new Value(Long.toString(random.nextInt(1000000)).getBytes()));
+  }
+
+  @Benchmark
+  public List<Short> alphaNumKeyConstraint() {
+    return alphaNum.check(null, new Mutation(mutation));
+  }
+
+  @Benchmark
+  public List<Short> numericValueConstraint() {
+    return numeric.check(null, new Mutation(mutation));
+  }
+}
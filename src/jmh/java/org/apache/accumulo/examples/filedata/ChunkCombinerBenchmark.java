@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs {@link ChunkCombiner} over a synthetic table of files, each with several references under different visibilities and each chunk stored once per
+ * visibility, as it is after the same file is ingested by several users. Each scan operation scans the whole table. Each seeks operation reads every chunk
+ * through a separate seek, visiting the files in turn for each chunk number, as a batch scan over ranges of many files does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkCombinerBenchmark {
+
+  @Param({"1000"})
+  int files;
+
+  @Param({"3"})
+  int refsPerFile;
+
+  @Param({"8"})
+  int chunksPerFile;
+
+  @Param({"4096"})
+  int chunkSize;
+
+  @Param({"1", "1000"})
+  int cacheSize;
+
+  private TreeMap<Key,Value> table;
+  private List<Text> rows;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    table = new TreeMap<>();
+    rows = new ArrayList<>();
+    byte[] data = new byte[chunkSize];
+    for (int f = 0; f < files; f++) {
+      Text row = new Text(String.format("%032x", random.nextLong()));
+      rows.add(row);
+      for (int r = 0; r < refsPerFile; r++) {
+        Text vis = new Text("U" + random.nextInt(20) + "&G" + random.nextInt(5));
+        table.put(new Key(row, FileDataIngest.REFS_CF, KeyUtil.buildNullSepText("uid" + r, FileDataIngest.REFS_ORIG_FILE), vis, 1),
+            new Value(("/path/to/file" + r).getBytes()));
+        for (int c = 0; c <= chunksPerFile; c++) {
+          Text cq = new Text(FileDataIngest.intToBytes(chunkSize));
+          cq.append(FileDataIngest.intToBytes(c), 0, 4);
+          random.nextBytes(data);
+          table.put(new Key(row, FileDataIngest.CHUNK_CF, cq, vis, 1), new Value(c == chunksPerFile ? new byte[0] : data));
+        }
+      }
+    }
+  }
+
+  private ChunkCombiner combiner() throws IOException {
+    ChunkCombiner combiner = new ChunkCombiner();
+    combiner.init(new SortedMapIterator(table), Collections.singletonMap(ChunkCombiner.CACHE_SIZE_OPTION, Integer.toString(cacheSize)), null);
+    return combiner;
+  }
+
+  @Benchmark
+  public long scan() throws IOException {
+    ChunkCombiner combiner = combiner();
+    combiner.seek(new Range(), Collections.<ByteSequence> emptySet(), false);
+    long size = 0;
+    while (combiner.hasTop()) {
+      size += combiner.getTopValue().getSize();
+      combiner.next();
+    }
+    return size;
+  }
+
+  @Benchmark
+  public long seeks() throws IOException {
+    ChunkCombiner combiner = combiner();
+    long size = 0;
+    for (int c = 0; c < chunksPerFile; c++) {
+      Text cq = new Text(FileDataIngest.intToBytes(chunkSize));
+      cq.append(FileDataIngest.intToBytes(c), 0, 4);
+      for (Text row : rows) {
+        combiner.seek(Range.exact(row, FileDataIngest.CHUNK_CF, cq), Collections.<ByteSequence> emptySet(), false);
+        size += combiner.getTopValue().getSize();
+      }
+    }
+    return size;
+  }
+}
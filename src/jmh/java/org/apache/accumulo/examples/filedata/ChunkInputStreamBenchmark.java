@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.KeyValue;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.util.PeekingIterator;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a file stored as chunks through {@link ChunkInputStream}, a byte at a time as {@link CharacterHistogram} does and in bulk. Each operation reads the
+ * whole file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkInputStreamBenchmark {
+
+  @Param({"1048576"})
+  int fileSize;
+
+  @Param({"4096", "65536"})
+  int chunkSize;
+
+  private List<Entry<Key,Value>> entries;
+  private ChunkInputStream cis;
+  private byte[] readBuf;
+
+  @Setup
+  public void setup() {
+    byte[] data = new byte[fileSize];
+    new Random(42).nextBytes(data);
+    entries = new ArrayList<>();
+    Text row = new Text("0123456789abcdef0123456789abcdef");
+    entries.add(new KeyValue(new Key(row, FileDataIngest.REFS_CF, KeyUtil.buildNullSepText("uid", FileDataIngest.REFS_ORIG_FILE), new Text("A")),
+        "file".getBytes()));
+    int chunk = 0;
+    for (int off = 0; off < fileSize; off += chunkSize, chunk++) {
+      int len = Math.min(chunkSize, fileSize - off);
+      byte[] value = new byte[len];
+      System.arraycopy(data, off, value, 0, len);
+      entries.add(new KeyValue(new Key(row, FileDataIngest.CHUNK_CF, chunkQualifier(chunk), new Text("A")), value));
+    }
+    entries.add(new KeyValue(new Key(row, FileDataIngest.CHUNK_CF, chunkQualifier(chunk), new Text("A")), new byte[0]));
+    cis = new ChunkInputStream();
+    readBuf = new byte[4096];
+  }
+
+  private Text chunkQualifier(int chunk) {
+    Text cq = new Text(FileDataIngest.intToBytes(chunkSize));
+    cq.append(FileDataIngest.intToBytes(chunk), 0, 4);
+    return cq;
+  }
+
+  @Benchmark
+  public long readByteAtATime() throws IOException {
+    cis.setSource(new PeekingIterator<>(entries.iterator()));
+    long sum = 0;
+    int b;
+    while ((b = cis.read()) >= 0)
+      sum += b;
+    cis.close();
+    return sum;
+  }
+
+  @Benchmark
+  public long readBulk() throws IOException {
+    cis.setSource(new PeekingIterator<>(entries.iterator()));
+    long sum = 0;
+    int n;
+    while ((n = cis.read(readBuf)) > 0)
+      sum += n;
+    cis.close();
+    return sum;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reads, hashes and chunks a file with {@link FileDataIngest}, handing the mutations to a batch writer that discards them. Run with {@code -prof gc} to see
+ * the allocation per file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileDataIngestBenchmark {
+
+  @Param({"16777216"})
+  int fileSize;
+
+  @Param({"4096", "65536"})
+  int chunkSize;
+
+  @Param({"twoPass", "singlePass", "cdc"})
+  String mode;
+
+  private File file;
+  private FileDataIngest fdi;
+  private final BatchWriter discard = new BatchWriter() {
+    @Override
+    public void addMutation(Mutation m) {}
+
+    @Override
+    public void addMutations(Iterable<Mutation> iterable) {}
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  };
+
+  @Setup
+  public void setup() throws IOException {
+    byte[] data = new byte[fileSize];
+    new Random(42).nextBytes(data);
+    file = File.createTempFile("filedata", ".bench");
+    Files.write(file.toPath(), data);
+    fdi = new FileDataIngest(chunkSize, new ColumnVisibility("A"));
+    if (mode.equals("singlePass"))
+      fdi.setSinglePass(2L * fileSize, null);
+    else if (mode.equals("cdc"))
+      fdi.setContentDefinedChunking();
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public String insertFileData() throws IOException, MutationsRejectedException {
+    return fdi.insertFileData(file.getPath(), discard);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Combines the visibilities of the references to a file with {@link VisibilityCombiner}, as {@link ChunkCombiner} does for each file it returns. The
+ * reused benchmark clears one combiner for each file, as ChunkCombiner does, so visibilities seen for earlier files are not parsed again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VisibilityCombinerBenchmark {
+
+  @Param({"3", "30"})
+  int refs;
+
+  private ByteSequence[] visibilities;
+  private VisibilityCombiner reusedCombiner;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    String[] forms = {"U%d&G%d", "(U%d|G%d)&A", "U%d|(G%d&B)"};
+    visibilities = new ByteSequence[refs];
+    for (int i = 0; i < refs; i++)
+      visibilities[i] = new ArrayByteSequence(String.format(forms[random.nextInt(forms.length)], random.nextInt(20), random.nextInt(5)));
+    reusedCombiner = new VisibilityCombiner();
+  }
+
+  @Benchmark
+  public byte[] addAndGet() {
+    VisibilityCombiner vc = new VisibilityCombiner();
+    for (ByteSequence vis : visibilities)
+      vc.add(vis);
+    return vc.get();
+  }
+
+  @Benchmark
+  public byte[] reused() {
+    reusedCombiner.clear();
+    for (ByteSequence vis : visibilities)
+      reusedCombiner.add(vis);
+    return reusedCombiner.get();
+  }
+}
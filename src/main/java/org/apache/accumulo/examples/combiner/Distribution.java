@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A summary of a series of long integers: min, max, sum, count, and sum of squares, plus a sketch in the style of DDSketch that answers quantile queries to
+ * within a given relative accuracy. The sketch counts values in buckets whose bounds grow geometrically, so a value is never more than the relative accuracy
+ * away from the bucket it is counted in, and two sketches are merged by adding their bucket counts. Because long integers span a limited range, the sketch
+ * needs at most a few thousand buckets at the default accuracy, whatever the number of values. Finer accuracies need more, so the accuracy is bounded below
+ * by {@link #MIN_ACCURACY}. Stored by {@link DistributionCombiner}.
+ */
+public class Distribution {
+
+  /**
+   * The first byte of an encoded distribution, which never appears in a number written as a string.
+   */
+  static final byte MARKER = 1;
+
+  /**
+   * The finest relative accuracy allowed, which needs up to about 220 thousand buckets for each sign. Finer accuracies would need so many buckets that a
+   * sketch could exhaust the memory of a tablet server, and eventually overflow the bucket indexes.
+   */
+  public static final double MIN_ACCURACY = 1e-4;
+
+  private final double accuracy;
+  private final double gamma;
+  private final double logGamma;
+
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+  private long sum = 0;
+  private long count = 0;
+  private double sumSquares = 0;
+
+  private long zeroCount = 0;
+  // bucket counts for the magnitudes of positive and negative values
+  private final Buckets positive = new Buckets();
+  private final Buckets negative = new Buckets();
+
+  /**
+   * @param accuracy
+   *          the relative accuracy of quantiles, at least {@link #MIN_ACCURACY} and less than 1
+   */
+  public Distribution(double accuracy) {
+    if (!(accuracy >= MIN_ACCURACY && accuracy < 1))
+      throw new IllegalArgumentException("invalid relative accuracy " + accuracy);
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(gamma);
+  }
+
+  public double getAccuracy() {
+    return accuracy;
+  }
+
+  public long getMin() {
+    return min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getSum() {
+    return sum;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return count == 0 ? Double.NaN : (double) sum / count;
+  }
+
+  /**
+   * @return the population standard deviation
+   */
+  public double getStdDev() {
+    if (count == 0)
+      return Double.NaN;
+    double mean = (double) sum / count;
+    return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+  }
+
+  /**
+   * Adds a value.
+   */
+  public void add(long value) {
+    min = Math.min(value, min);
+    max = Math.max(value, max);
+    sum += value;
+    count++;
+    sumSquares += (double) value * value;
+    if (value > 0)
+      positive.add(index(value), 1);
+    else if (value < 0)
+      negative.add(index(-(double) value), 1);
+    else
+      zeroCount++;
+  }
+
+  /**
+   * Adds all the values of another distribution. If the other distribution has a different accuracy, its buckets are moved to the buckets of this one, which
+   * loses up to the accuracy of the other.
+   */
+  public void merge(Distribution other) {
+    if (other.count == 0)
+      return;
+    min = Math.min(other.min, min);
+    max = Math.max(other.max, max);
+    sum += other.sum;
+    count += other.count;
+    sumSquares += other.sumSquares;
+    zeroCount += other.zeroCount;
+    mergeBuckets(positive, other, other.positive);
+    mergeBuckets(negative, other, other.negative);
+  }
+
+  private void mergeBuckets(Buckets to, Distribution other, Buckets from) {
+    for (int i = from.minIndex; i <= from.maxIndex; i++) {
+      long c = from.get(i);
+      if (c == 0)
+        continue;
+      to.add(other.gamma == gamma ? i : index(other.bucketValue(i)), c);
+    }
+  }
+
+  /**
+   * @param q
+   *          the quantile, between 0 and 1 inclusive, for example 0.99 for the 99th percentile
+   * @return a value whose relative distance from the true value at the quantile is within the accuracy of this distribution, or NaN if it is empty
+   */
+  public double getQuantile(double q) {
+    if (q < 0 || q > 1)
+      throw new IllegalArgumentException("invalid quantile " + q);
+    if (count == 0)
+      return Double.NaN;
+    double value = valueAtRank((long) (q * (count - 1)));
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private double valueAtRank(long rank) {
+    long seen = 0;
+    // negative values, largest magnitude first
+    for (int i = negative.maxIndex; i >= negative.minIndex; i--) {
+      seen += negative.get(i);
+      if (seen > rank)
+        return -bucketValue(i);
+    }
+    seen += zeroCount;
+    if (seen > rank)
+      return 0;
+    for (int i = positive.minIndex; i <= positive.maxIndex; i++) {
+      seen += positive.get(i);
+      if (seen > rank)
+        return bucketValue(i);
+    }
+    return max;
+  }
+
+  private int index(double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / logGamma);
+  }
+
+  // the value with the same relative distance from both bounds of the bucket
+  private double bucketValue(int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  /**
+   * Encodes this distribution, with the buckets written as varints.
+   */
+  public Value toValue() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(baos);
+    try {
+      out.writeByte(MARKER);
+      out.writeDouble(accuracy);
+      WritableUtils.writeVLong(out, min);
+      WritableUtils.writeVLong(out, max);
+      WritableUtils.writeVLong(out, sum);
+      WritableUtils.writeVLong(out, count);
+      out.writeDouble(sumSquares);
+      WritableUtils.writeVLong(out, zeroCount);
+      positive.write(out);
+      negative.write(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new Value(baos.toByteArray(), false);
+  }
+
+  /**
+   * @return true if the value holds an encoded distribution rather than a single number
+   */
+  public static boolean isEncoded(Value value) {
+    return value.getSize() > 0 && value.get()[0] == MARKER;
+  }
+
+  /**
+   * Decodes a distribution written by {@link #toValue()}.
+   */
+  public static Distribution decode(Value value) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(value.get(), 0, value.getSize()));
+    try {
+      if (in.readByte() != MARKER)
+        throw new IllegalArgumentException("not an encoded distribution");
+      Distribution d = new Distribution(in.readDouble());
+      d.min = WritableUtils.readVLong(in);
+      d.max = WritableUtils.readVLong(in);
+      d.sum = WritableUtils.readVLong(in);
+      d.count = WritableUtils.readVLong(in);
+      d.sumSquares = in.readDouble();
+      d.zeroCount = WritableUtils.readVLong(in);
+      d.positive.read(in);
+      d.negative.read(in);
+      return d;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("invalid encoded distribution", e);
+    }
+  }
+
+  /**
+   * Bucket counts, held in an array that covers the range of bucket indexes seen so far.
+   */
+  private static class Buckets {
+    private long[] counts = new long[0];
+    private int offset;
+    int minIndex = 0;
+    int maxIndex = -1;
+
+    long get(int index) {
+      return counts[index - offset];
+    }
+
+    void add(int index, long c) {
+      if (maxIndex < minIndex) {
+        counts = new long[16];
+        offset = index - 8;
+        minIndex = maxIndex = index;
+      } else if (index < offset || index >= offset + counts.length) {
+        int lo = Math.min(index, minIndex);
+        int hi = Math.max(index, maxIndex);
+        // leave room to grow in both directions
+        int slack = (hi - lo + 1) / 2 + 8;
+        long[] grown = new long[hi - lo + 1 + 2 * slack];
+        System.arraycopy(counts, minIndex - offset, grown, minIndex - lo + slack, maxIndex - minIndex + 1);
+        counts = grown;
+        offset = lo - slack;
+      }
+      counts[index - offset] += c;
+      minIndex = Math.min(index, minIndex);
+      maxIndex = Math.max(index, maxIndex);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      int nonZero = 0;
+      for (int i = minIndex; i <= maxIndex; i++)
+        if (get(i) != 0)
+          nonZero++;
+      WritableUtils.writeVInt(out, nonZero);
+      int previous = 0;
+      for (int i = minIndex; i <= maxIndex; i++) {
+        long c = get(i);
+        if (c != 0) {
+          WritableUtils.writeVInt(out, i - previous);
+          WritableUtils.writeVLong(out, c);
+          previous = i;
+        }
+      }
+    }
+
+    void read(DataInputStream in) throws IOException {
+      int n = WritableUtils.readVInt(in);
+      int index = 0;
+      for (int i = 0; i < n; i++) {
+        index += WritableUtils.readVInt(in);
+        add(index, WritableUtils.readVLong(in));
+      }
+    }
+  }
+}
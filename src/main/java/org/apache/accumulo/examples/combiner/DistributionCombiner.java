@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+/**
+ * This combiner keeps a {@link Distribution} of long integers represented as strings in values: min, max, sum, count, sum of squares, and a quantile sketch.
+ * Clients insert single numbers in base 10, and the combiner merges them with the distributions from earlier compactions, so the mean, standard deviation,
+ * and percentiles of a series are read from a single key with {@link Distribution#decode(Value)}. See {@link Combiner} for more information on which values
+ * are combined together.
+ */
+public class DistributionCombiner extends Combiner {
+
+  public static final String ACCURACY_OPTION = "accuracy";
+
+  public static final double DEFAULT_ACCURACY = 0.01;
+
+  private double accuracy = DEFAULT_ACCURACY;
+
+  @Override
+  public Value reduce(Key key, Iterator<Value> iter) {
+    Distribution distribution = new Distribution(accuracy);
+
+    while (iter.hasNext()) {
+      Value value = iter.next();
+      if (Distribution.isEncoded(value))
+        distribution.merge(Distribution.decode(value));
+      else
+        distribution.add(Long.parseLong(value.toString()));
+    }
+
+    return distribution.toValue();
+  }
+
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+
+    if (options.containsKey(ACCURACY_OPTION))
+      accuracy = Double.parseDouble(options.get(ACCURACY_OPTION));
+    else
+      accuracy = DEFAULT_ACCURACY;
+  }
+
+  @Override
+  public IteratorOptions describeOptions() {
+    IteratorOptions io = super.describeOptions();
+    io.setName("distributionCombiner");
+    io.setDescription("Combiner that keeps track of min, max, sum, count, standard deviation, and quantiles");
+    io.addNamedOption(ACCURACY_OPTION, "relative accuracy of quantiles, from " + Distribution.MIN_ACCURACY + " to 1 exclusive, " + DEFAULT_ACCURACY
+        + " by default");
+    return io;
+  }
+
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    if (!super.validateOptions(options))
+      return false;
+
+    if (options.containsKey(ACCURACY_OPTION)) {
+      try {
+        new Distribution(Double.parseDouble(options.get(ACCURACY_OPTION)));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("invalid option " + ACCURACY_OPTION + ":" + options.get(ACCURACY_OPTION));
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * A convenience method for setting the relative accuracy of quantiles. Lower values use more buckets.
+   *
+   * @param iterConfig
+   *          Iterator settings to configure
+   * @param accuracy
+   *          The relative accuracy, at least {@link Distribution#MIN_ACCURACY} and less than 1.
+   */
+  public static void setAccuracy(IteratorSetting iterConfig, double accuracy) {
+    iterConfig.addOption(ACCURACY_OPTION, Double.toString(accuracy));
+  }
+}
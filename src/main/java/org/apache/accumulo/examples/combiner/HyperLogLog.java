@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct items added to it. Each item is hashed to 64 bits; the first bits of the hash pick one of
+ * 2<sup>precision</sup> registers, and the register keeps the longest run of leading zeros seen in the rest. Sketches are merged by taking the larger of each
+ * register, so merging is exact and the standard error of the estimate is about 1.04/sqrt(2<sup>precision</sup>), 1.6% at the default precision.
+ *
+ * Small sketches are kept as the sorted list of distinct hashes rather than as registers, which is both smaller and exact. Such sparse sketches do not depend
+ * on the precision, so clients can write single items without knowing how the combiner is configured. A sketch turns into registers once its hashes would take
+ * more space than the registers. Stored by {@link HyperLogLogCombiner}.
+ */
+public class HyperLogLog {
+
+  // first bytes of the encoded forms, a list of hashes or the registers
+  static final byte SPARSE = 2;
+  static final byte DENSE = 3;
+
+  public static final int MIN_PRECISION = 4;
+  public static final int MAX_PRECISION = 18;
+  public static final int DEFAULT_PRECISION = 12;
+
+  private int precision;
+  private byte[] registers;
+
+  // the hashes added while sparse, sorted and deduplicated up to hashCount only after compactHashes
+  private long[] hashes;
+  private int hashCount;
+
+  /**
+   * @param precision
+   *          the log base 2 of the number of registers, between {@link #MIN_PRECISION} and {@link #MAX_PRECISION}
+   */
+  public HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+      throw new IllegalArgumentException("invalid precision " + precision);
+    this.precision = precision;
+    this.hashes = new long[Math.min(8, sparseLimit())];
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  /**
+   * @return true while the sketch is an exact list of hashes rather than registers
+   */
+  public boolean isSparse() {
+    return registers == null;
+  }
+
+  /**
+   * Hashes an item with the 128 bit murmur3 hash, of which 64 bits are used.
+   */
+  public static long hash(byte[] item) {
+    return Hashing.murmur3_128().hashBytes(item).asLong();
+  }
+
+  public void add(byte[] item) {
+    addHash(hash(item));
+  }
+
+  public void addHash(long hash) {
+    if (registers != null) {
+      updateRegister(hash);
+      return;
+    }
+    if (hashCount == hashes.length) {
+      compactHashes();
+      if (hashCount >= sparseLimit()) {
+        toDense();
+        updateRegister(hash);
+        return;
+      }
+      if (hashCount > hashes.length / 2)
+        hashes = Arrays.copyOf(hashes, Math.max(hashCount + 1, Math.min(hashes.length * 2, sparseLimit())));
+    }
+    hashes[hashCount++] = hash;
+  }
+
+  /**
+   * @return the estimated number of distinct items, which is exact while the sketch is sparse
+   */
+  public long estimate() {
+    if (registers == null) {
+      compactHashes();
+      return hashCount;
+    }
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte r : registers) {
+      sum += 1.0 / (1L << r);
+      if (r == 0)
+        zeros++;
+    }
+    double alpha;
+    if (m == 16)
+      alpha = 0.673;
+    else if (m == 32)
+      alpha = 0.697;
+    else if (m == 64)
+      alpha = 0.709;
+    else
+      alpha = 0.7213 / (1 + 1.079 / m);
+    double e = alpha * m * m / sum;
+    // linear counting is more accurate while many registers are still empty
+    if (e <= 2.5 * m && zeros > 0)
+      e = m * Math.log((double) m / zeros);
+    return Math.round(e);
+  }
+
+  /**
+   * Adds the items of an encoded sketch. If it has a lower precision than this sketch, this sketch is lowered to match, since registers cannot be split.
+   */
+  public void merge(Value value) {
+    byte[] b = value.get();
+    int len = value.getSize();
+    if (len > 0 && b[0] == SPARSE) {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, 1, len - 1));
+      try {
+        int n = WritableUtils.readVInt(in);
+        long hash = 0;
+        for (int i = 0; i < n; i++) {
+          hash += WritableUtils.readVLong(in);
+          addHash(hash);
+        }
+      } catch (IOException e) {
+        throw new IllegalArgumentException("invalid sparse sketch", e);
+      }
+    } else if (len > 1 && b[0] == DENSE) {
+      int otherPrecision = b[1];
+      if (otherPrecision < MIN_PRECISION || otherPrecision > MAX_PRECISION || len != 2 + (1 << otherPrecision))
+        throw new IllegalArgumentException("invalid dense sketch");
+      if (registers == null)
+        toDense();
+      if (otherPrecision < precision) {
+        byte[] lowered = new byte[1 << otherPrecision];
+        fold(registers, 0, precision, lowered, otherPrecision);
+        registers = lowered;
+        precision = otherPrecision;
+      }
+      fold(b, 2, otherPrecision, registers, precision);
+    } else {
+      throw new IllegalArgumentException("not an encoded sketch");
+    }
+  }
+
+  public void merge(HyperLogLog other) {
+    merge(other.toValue());
+  }
+
+  /**
+   * Encodes this sketch, as a list of hashes written as varint deltas while sparse or as one byte per register.
+   */
+  public Value toValue() {
+    if (registers != null) {
+      byte[] b = new byte[2 + registers.length];
+      b[0] = DENSE;
+      b[1] = (byte) precision;
+      System.arraycopy(registers, 0, b, 2, registers.length);
+      return new Value(b, false);
+    }
+    compactHashes();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(1 + 9 * hashCount);
+    DataOutputStream out = new DataOutputStream(baos);
+    try {
+      out.writeByte(SPARSE);
+      WritableUtils.writeVInt(out, hashCount);
+      long previous = 0;
+      for (int i = 0; i < hashCount; i++) {
+        WritableUtils.writeVLong(out, hashes[i] - previous);
+        previous = hashes[i];
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new Value(baos.toByteArray(), false);
+  }
+
+  /**
+   * Decodes a sketch written by {@link #toValue()}. A sparse sketch is given the default precision, which only matters once it turns into registers.
+   */
+  public static HyperLogLog decode(Value value) {
+    byte[] b = value.get();
+    HyperLogLog hll = new HyperLogLog(value.getSize() > 1 && b[0] == DENSE ? b[1] : DEFAULT_PRECISION);
+    hll.merge(value);
+    return hll;
+  }
+
+  /**
+   * @return an encoded sparse sketch holding one item
+   */
+  public static Value valueOf(byte[] item) {
+    HyperLogLog hll = new HyperLogLog(DEFAULT_PRECISION);
+    hll.add(item);
+    return hll.toValue();
+  }
+
+  // hashes take 8 bytes and registers 1, so this keeps a sparse sketch no larger than a dense one
+  private int sparseLimit() {
+    return (1 << precision) / 8;
+  }
+
+  private void compactHashes() {
+    Arrays.sort(hashes, 0, hashCount);
+    int n = 0;
+    for (int i = 0; i < hashCount; i++)
+      if (n == 0 || hashes[i] != hashes[n - 1])
+        hashes[n++] = hashes[i];
+    hashCount = n;
+  }
+
+  private void toDense() {
+    registers = new byte[1 << precision];
+    for (int i = 0; i < hashCount; i++)
+      updateRegister(hashes[i]);
+    hashes = null;
+    hashCount = 0;
+  }
+
+  private void updateRegister(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // the set bit caps the rank at the number of bits left after the index
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (rank > registers[index])
+      registers[index] = rank;
+  }
+
+  /**
+   * Merges registers into registers of the same or a lower precision. Index bits that are dropped become the leading bits of the rest of the hash, so the
+   * rank is recalculated from them.
+   */
+  private static void fold(byte[] from, int off, int fromPrecision, byte[] to, int toPrecision) {
+    int shift = fromPrecision - toPrecision;
+    int count = 1 << fromPrecision;
+    for (int j = 0; j < count; j++) {
+      int r = from[off + j];
+      if (r == 0)
+        continue;
+      int dropped = j & ((1 << shift) - 1);
+      int rank = dropped == 0 ? r + shift : Integer.numberOfLeadingZeros(dropped) - (32 - shift) + 1;
+      int index = j >>> shift;
+      if (rank > to[index])
+        to[index] = (byte) rank;
+    }
+  }
+}
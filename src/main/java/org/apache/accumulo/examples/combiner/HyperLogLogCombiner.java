@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.hadoop.io.Text;
+
+/**
+ * This combiner keeps a {@link HyperLogLog} sketch of the distinct items written to a key, so the approximate number of distinct items is maintained as data
+ * is ingested rather than recomputed by scanning. Clients write each item with {@link #addItem(BatchWriter, Text, Text, Text, byte[])}, and the combiner merges
+ * the items and the sketches from earlier compactions. Read the count with {@link #getCount(Value)}. See {@link Combiner} for more information on which values
+ * are combined together.
+ */
+public class HyperLogLogCombiner extends Combiner {
+
+  public static final String PRECISION_OPTION = "precision";
+
+  private int precision = HyperLogLog.DEFAULT_PRECISION;
+
+  @Override
+  public Value reduce(Key key, Iterator<Value> iter) {
+    HyperLogLog hll = new HyperLogLog(precision);
+    while (iter.hasNext())
+      hll.merge(iter.next());
+    return hll.toValue();
+  }
+
+  @Override
+  public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+    super.init(source, options, env);
+
+    if (options.containsKey(PRECISION_OPTION))
+      precision = Integer.parseInt(options.get(PRECISION_OPTION));
+    else
+      precision = HyperLogLog.DEFAULT_PRECISION;
+  }
+
+  @Override
+  public IteratorOptions describeOptions() {
+    IteratorOptions io = super.describeOptions();
+    io.setName("hyperLogLogCombiner");
+    io.setDescription("Combiner that estimates the number of distinct items");
+    io.addNamedOption(PRECISION_OPTION, "log base 2 of the number of registers, " + HyperLogLog.MIN_PRECISION + " to " + HyperLogLog.MAX_PRECISION + ", "
+        + HyperLogLog.DEFAULT_PRECISION + " by default");
+    return io;
+  }
+
+  @Override
+  public boolean validateOptions(Map<String,String> options) {
+    if (!super.validateOptions(options))
+      return false;
+
+    String p = options.get(PRECISION_OPTION);
+    if (p != null && (!p.matches("\\d+") || Integer.parseInt(p) < HyperLogLog.MIN_PRECISION || Integer.parseInt(p) > HyperLogLog.MAX_PRECISION))
+      throw new IllegalArgumentException("invalid option " + PRECISION_OPTION + ":" + p);
+
+    return true;
+  }
+
+  /**
+   * A convenience method for setting the precision of the sketches. Each increment halves the standard error and doubles the size of the sketches.
+   *
+   * @param iterConfig
+   *          Iterator settings to configure
+   * @param precision
+   *          The log base 2 of the number of registers.
+   */
+  public static void setPrecision(IteratorSetting iterConfig, int precision) {
+    iterConfig.addOption(PRECISION_OPTION, precision + "");
+  }
+
+  /**
+   * Writes an item to a key that has this combiner configured.
+   */
+  public static void addItem(BatchWriter bw, Text row, Text cf, Text cq, byte[] item) throws MutationsRejectedException {
+    Mutation m = new Mutation(row);
+    m.put(cf, cq, HyperLogLog.valueOf(item));
+    bw.addMutation(m);
+  }
+
+  /**
+   * @return the estimated number of distinct items in a value written by this combiner
+   */
+  public static long getCount(Value value) {
+    return HyperLogLog.decode(value).estimate();
+  }
+}
@@ -31,12 +31,28 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
  * This combiner calculates the max, min, sum, and count of long integers represented as strings in values. It stores the result in a comma-separated value of
  * the form min,max,sum,count. If such a value is encountered while combining, its information is incorporated into the running calculations of min, max, sum,
  * and count. See {@link Combiner} for more information on which values are combined together.
+ *
+ * With the encoding option set to binary, the result is instead stored as a zero byte followed by min, max, sum, and count as four 8 byte big endian longs,
+ * which is much cheaper to combine than the comma-separated form. Both forms are always read, so the option can be switched on for an existing table and its
+ * values are converted as they are compacted. Use {@link #decode(Value, int)} to read values in either form.
  */
 public class StatsCombiner extends Combiner {
 
   public static final String RADIX_OPTION = "radix";
+  public static final String ENCODING_OPTION = "encoding";
+
+  public static final String STRING_ENCODING = "string";
+  public static final String BINARY_ENCODING = "binary";
+
+  // a zero byte never appears in the comma-separated form, so it marks a binary value
+  private static final byte BINARY_MARKER = 0;
+  private static final int BINARY_LENGTH = 33;
 
   private int radix = 10;
+  private boolean binary = false;
+
+  // reused for each value, so combining allocates nothing but the result
+  private final long[] parsed = new long[4];
 
   @Override
   public Value reduce(Key key, Iterator<Value> iter) {
@@ -47,22 +63,32 @@ public class StatsCombiner extends Combiner {
     long count = 0;
 
     while (iter.hasNext()) {
-      String stats[] = iter.next().toString().split(",");
-
-      if (stats.length == 1) {
-        long val = Long.parseLong(stats[0], radix);
+      Value value = iter.next();
+      byte[] b = value.get();
+      int len = value.getSize();
+
+      if (len == BINARY_LENGTH && b[0] == BINARY_MARKER) {
+        min = Math.min(readLong(b, 1), min);
+        max = Math.max(readLong(b, 9), max);
+        sum += readLong(b, 17);
+        count += readLong(b, 25);
+      } else if (parse(b, len, radix, parsed) == 1) {
+        long val = parsed[0];
         min = Math.min(val, min);
         max = Math.max(val, max);
         sum += val;
         count += 1;
       } else {
-        min = Math.min(Long.parseLong(stats[0], radix), min);
-        max = Math.max(Long.parseLong(stats[1], radix), max);
-        sum += Long.parseLong(stats[2], radix);
-        count += Long.parseLong(stats[3], radix);
+        min = Math.min(parsed[0], min);
+        max = Math.max(parsed[1], max);
+        sum += parsed[2];
+        count += parsed[3];
       }
     }
 
+    if (binary)
+      return new Value(encode(min, max, sum, count), false);
+
     String ret = Long.toString(min, radix) + "," + Long.toString(max, radix) + "," + Long.toString(sum, radix) + "," + Long.toString(count, radix);
     return new Value(ret.getBytes());
   }
@@ -75,6 +101,8 @@ public class StatsCombiner extends Combiner {
       radix = Integer.parseInt(options.get(RADIX_OPTION));
     else
       radix = 10;
+
+    binary = BINARY_ENCODING.equals(options.get(ENCODING_OPTION));
   }
 
   @Override
@@ -83,6 +111,7 @@ public class StatsCombiner extends Combiner {
     io.setName("statsCombiner");
     io.setDescription("Combiner that keeps track of min, max, sum, and count");
     io.addNamedOption(RADIX_OPTION, "radix/base of the numbers");
+    io.addNamedOption(ENCODING_OPTION, "encoding of the combined values, " + STRING_ENCODING + " (the default) or " + BINARY_ENCODING);
     return io;
   }
 
@@ -94,6 +123,10 @@ public class StatsCombiner extends Combiner {
     if (options.containsKey(RADIX_OPTION) && !options.get(RADIX_OPTION).matches("\\d+"))
       throw new IllegalArgumentException("invalid option " + RADIX_OPTION + ":" + options.get(RADIX_OPTION));
 
+    String encoding = options.get(ENCODING_OPTION);
+    if (encoding != null && !encoding.equals(STRING_ENCODING) && !encoding.equals(BINARY_ENCODING))
+      throw new IllegalArgumentException("invalid option " + ENCODING_OPTION + ":" + encoding);
+
     return true;
   }
 
@@ -108,4 +141,113 @@ public class StatsCombiner extends Combiner {
   public static void setRadix(IteratorSetting iterConfig, int base) {
     iterConfig.addOption(RADIX_OPTION, base + "");
   }
+
+  /**
+   * A convenience method for storing combined values in the binary form
+   *
+   * @param iterConfig
+   *          Iterator settings to configure
+   * @param binary
+   *          true to store combined values in the binary form, false for the comma-separated form
+   */
+  public static void setBinaryEncoding(IteratorSetting iterConfig, boolean binary) {
+    iterConfig.addOption(ENCODING_OPTION, binary ? BINARY_ENCODING : STRING_ENCODING);
+  }
+
+  /**
+   * Reads a value written by this combiner, or a single number written by a client.
+   *
+   * @param radix
+   *          The base/radix of numbers in the comma-separated form.
+   * @return min, max, sum, and count
+   */
+  public static long[] decode(Value value, int radix) {
+    byte[] b = value.get();
+    int len = value.getSize();
+    if (len == BINARY_LENGTH && b[0] == BINARY_MARKER)
+      return new long[] {readLong(b, 1), readLong(b, 9), readLong(b, 17), readLong(b, 25)};
+    long[] stats = new long[4];
+    if (parse(b, len, radix, stats) == 1) {
+      stats[1] = stats[2] = stats[0];
+      stats[3] = 1;
+    }
+    return stats;
+  }
+
+  /**
+   * Encodes min, max, sum, and count in the binary form.
+   */
+  public static byte[] encode(long min, long max, long sum, long count) {
+    byte[] b = new byte[BINARY_LENGTH];
+    b[0] = BINARY_MARKER;
+    writeLong(b, 1, min);
+    writeLong(b, 9, max);
+    writeLong(b, 17, sum);
+    writeLong(b, 25, count);
+    return b;
+  }
+
+  private static long readLong(byte[] b, int off) {
+    long l = 0;
+    for (int i = off; i < off + 8; i++)
+      l = (l << 8) | (b[i] & 0xff);
+    return l;
+  }
+
+  private static void writeLong(byte[] b, int off, long l) {
+    for (int i = off + 7; i >= off; i--) {
+      b[i] = (byte) l;
+      l >>>= 8;
+    }
+  }
+
+  /**
+   * Parses a single number or a min,max,sum,count value from its bytes without creating strings.
+   *
+   * @return the count of numbers parsed, 1 or 4
+   */
+  private static int parse(byte[] b, int len, int radix, long[] out) {
+    int n = 0;
+    int start = 0;
+    for (int i = 0; i <= len; i++) {
+      if (i == len || b[i] == ',') {
+        if (n == out.length)
+          throw new NumberFormatException("too many numbers in " + new String(b, 0, len));
+        out[n++] = parseLong(b, start, i, radix);
+        start = i + 1;
+      }
+    }
+    if (n != 1 && n != out.length)
+      throw new NumberFormatException("expected 1 or " + out.length + " numbers in " + new String(b, 0, len));
+    return n;
+  }
+
+  /**
+   * Parses a long from part of a byte array, accepting what {@link Long#parseLong(String, int)} accepts.
+   */
+  private static long parseLong(byte[] b, int start, int end, int radix) {
+    if (start == end)
+      throw new NumberFormatException("empty number");
+    boolean negative = false;
+    int i = start;
+    if (b[i] == '-' || b[i] == '+') {
+      negative = b[i] == '-';
+      if (++i == end)
+        throw new NumberFormatException("invalid number " + new String(b, start, end - start));
+    }
+    // accumulate negatively, as Long.parseLong does, so Long.MIN_VALUE can be parsed
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / radix;
+    long result = 0;
+    for (; i < end; i++) {
+      int digit = Character.digit(b[i], radix);
+      if (digit < 0 || result < multmin)
+        throw new NumberFormatException("invalid number " + new String(b, start, end - start));
+      result *= radix;
+      if (result < limit + digit)
+        throw new NumberFormatException("invalid number " + new String(b, start, end - start));
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
 }
@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Finds what changed on disk since a previous run of {@link Ingest}, so that a re-run only writes the changes.
+ *
+ * Each file or directory found is held in a batch, and each full batch is looked up in the directory table with one {@link BatchScanner}. An entry whose
+ * length and last modified time match those recorded is skipped; the update of any other entry is applied. The listing of each directory is batched the same
+ * way and compared with the children recorded for it. Children no longer on disk, and everything under them, are deleted from the directory and index tables.
+ * File data is left alone, since other files may share it.
+ *
+ * With {@link CountDeltas}, entries that are new and entries that are gone also update the directory counts.
+ */
+public class ChangeDetector {
+
+  /**
+   * Writes the entries for a new or modified file or directory.
+   */
+  public interface Update {
+    /**
+     * @param isNew
+     *          true if the directory table has no entry for the path, false if it only has other versions
+     */
+    void apply(boolean isNew) throws Exception;
+  }
+
+  private static class Candidate {
+    final Text row;
+    final Text colf;
+    final byte[] length;
+    final byte[] lastmod;
+    final boolean isDir;
+    final Update update;
+    boolean lengthMatches = false;
+    boolean lastmodMatches = false;
+    boolean hasHash = false;
+    boolean exists = false;
+
+    Candidate(String path, boolean isDir, long length, long lastmod, Update update) {
+      this.row = QueryUtil.getRow(path.equals("/") ? "" : path);
+      this.colf = Ingest.getColf(isDir, lastmod);
+      this.length = Long.toString(length).getBytes();
+      this.lastmod = Long.toString(lastmod).getBytes();
+      this.isDir = isDir;
+      this.update = update;
+    }
+
+    boolean unchanged(boolean requireHash) {
+      return lengthMatches && lastmodMatches && (isDir || hasHash || !requireHash);
+    }
+  }
+
+  private static final Text LENGTH_CQ = new Text(Ingest.LENGTH_CQ);
+  private static final Text LASTMOD_CQ = new Text(Ingest.LASTMOD_CQ);
+  private static final Text HASH_CQ = new Text(Ingest.HASH_CQ);
+  // queued in place of the listing of a directory that is gone, whose children are all gone too
+  private static final Set<String> GONE_DIR = Collections.emptySet();
+
+  private final Connector conn;
+  private final String dirTable;
+  private final Authorizations auths;
+  private final int scanThreads;
+  private final int batchSize;
+  private final boolean requireHash;
+  private final BatchWriter dirBW;
+  private final BatchWriter indexBW;
+  private CountDeltas countDeltas = null;
+  private NGramIndex ngrams = null;
+
+  private List<Candidate> candidates = new ArrayList<>();
+  // the names found on disk in each directory, by the row prefix of its children
+  private Map<String,Set<String>> listings = new HashMap<>();
+
+  private final AtomicLong entriesChecked = new AtomicLong();
+  private final AtomicLong entriesUnchanged = new AtomicLong();
+  private final AtomicLong entriesDeleted = new AtomicLong();
+
+  /**
+   * @param dirTable
+   *          the directory table written by {@link Ingest}
+   * @param auths
+   *          authorizations that can see the existing entries; entries that cannot be seen are treated as new
+   * @param scanThreads
+   *          the number of threads of each batch lookup
+   * @param batchSize
+   *          the number of entries, or of directory listings, looked up together
+   * @param requireHash
+   *          whether a file only counts as unchanged if it has a hash, i.e. if its data was ingested before
+   * @param dirBW
+   *          writes deletes to the directory table
+   * @param indexBW
+   *          writes deletes to the index table
+   */
+  public ChangeDetector(Connector conn, String dirTable, Authorizations auths, int scanThreads, int batchSize, boolean requireHash, BatchWriter dirBW,
+      BatchWriter indexBW) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("batch size must be positive");
+    this.conn = conn;
+    this.dirTable = dirTable;
+    this.auths = auths;
+    this.scanThreads = scanThreads;
+    this.batchSize = batchSize;
+    this.requireHash = requireHash;
+    this.dirBW = dirBW;
+    this.indexBW = indexBW;
+  }
+
+  /**
+   * Updates the directory counts with the entries that are new or gone.
+   */
+  public void setCountDeltas(CountDeltas countDeltas) {
+    this.countDeltas = countDeltas;
+  }
+
+  /**
+   * Deletes the trigram index entries of the entries that are gone.
+   */
+  public void setNGramIndex(NGramIndex ngrams) {
+    this.ngrams = ngrams;
+  }
+
+  /**
+   * Queues a file or directory found on disk. Its update is applied, possibly later by another thread, unless the directory table already has an entry with
+   * the same length and last modified time.
+   */
+  public void check(String path, boolean isDir, long length, long lastmod, Update update) throws Exception {
+    Candidate candidate = new Candidate(path, isDir, length, lastmod, update);
+    List<Candidate> batch = null;
+    synchronized (this) {
+      candidates.add(candidate);
+      if (candidates.size() >= batchSize) {
+        batch = candidates;
+        candidates = new ArrayList<>();
+      }
+    }
+    if (batch != null)
+      checkEntries(batch);
+  }
+
+  /**
+   * Queues the complete listing of a directory. Entries recorded under the directory that are not in the listing are deleted.
+   */
+  public void listed(String dir, Collection<String> names) throws Exception {
+    queueListing(dir, new HashSet<>(names));
+  }
+
+  private void queueListing(String dir, Set<String> names) throws Exception {
+    String prefix = QueryUtil.getRow(dir.endsWith("/") ? dir : dir + "/").toString();
+    Map<String,Set<String>> batch = null;
+    synchronized (this) {
+      listings.put(prefix, names);
+      if (listings.size() >= batchSize) {
+        batch = listings;
+        listings = new HashMap<>();
+      }
+    }
+    if (batch != null)
+      checkListings(batch);
+  }
+
+  /**
+   * Checks everything still queued. Call this once the walk is done.
+   */
+  public void flush() throws Exception {
+    while (true) {
+      List<Candidate> batch;
+      Map<String,Set<String>> dirs;
+      synchronized (this) {
+        batch = candidates;
+        dirs = listings;
+        candidates = new ArrayList<>();
+        listings = new HashMap<>();
+      }
+      if (batch.isEmpty() && dirs.isEmpty())
+        return;
+      checkEntries(batch);
+      // deleting a directory queues the check of its children, so go around again
+      checkListings(dirs);
+    }
+  }
+
+  /**
+   * @return the number of files and directories looked up
+   */
+  public long getEntriesChecked() {
+    return entriesChecked.get();
+  }
+
+  /**
+   * @return the number of files and directories that were skipped because they had not changed
+   */
+  public long getEntriesUnchanged() {
+    return entriesUnchanged.get();
+  }
+
+  /**
+   * @return the number of files and directories deleted from the tables because they are gone from disk
+   */
+  public long getEntriesDeleted() {
+    return entriesDeleted.get();
+  }
+
+  private void checkEntries(List<Candidate> batch) throws Exception {
+    if (batch.isEmpty())
+      return;
+    Map<Text,Candidate> byRow = new HashMap<>();
+    List<Range> ranges = new ArrayList<>(batch.size());
+    for (Candidate c : batch) {
+      byRow.put(c.row, c);
+      // the whole row, to tell a modified file from a new one by its other versions
+      ranges.add(Range.exact(c.row));
+    }
+
+    BatchScanner bs = conn.createBatchScanner(dirTable, auths, scanThreads);
+    try {
+      bs.setRanges(ranges);
+      Text row = new Text();
+      Text colf = new Text();
+      Text cq = new Text();
+      for (Entry<Key,Value> e : bs) {
+        Candidate c = byRow.get(e.getKey().getRow(row));
+        if (c == null)
+          continue;
+        e.getKey().getColumnFamily(colf);
+        e.getKey().getColumnQualifier(cq);
+        // count deltas for the children of a directory can be written before the directory itself
+        if (!colf.equals(QueryUtil.DIR_COLF) || !cq.equals(QueryUtil.COUNTS_COLQ))
+          c.exists = true;
+        if (!colf.equals(c.colf))
+          continue;
+        if (cq.equals(LENGTH_CQ))
+          c.lengthMatches = Arrays.equals(c.length, e.getValue().get());
+        else if (cq.equals(LASTMOD_CQ))
+          c.lastmodMatches = Arrays.equals(c.lastmod, e.getValue().get());
+        else if (cq.equals(HASH_CQ))
+          c.hasHash = true;
+      }
+    } finally {
+      bs.close();
+    }
+
+    for (Candidate c : batch) {
+      entriesChecked.incrementAndGet();
+      if (c.unchanged(requireHash))
+        entriesUnchanged.incrementAndGet();
+      else
+        c.update.apply(!c.exists);
+    }
+  }
+
+  private void checkListings(Map<String,Set<String>> dirs) throws Exception {
+    if (dirs.isEmpty())
+      return;
+    List<Range> ranges = new ArrayList<>(dirs.size());
+    for (String prefix : dirs.keySet())
+      ranges.add(Range.prefix(prefix));
+
+    // the keys of each child that is gone, sorted by row so each gets one mutation
+    Map<String,List<Key>> gone = new TreeMap<>();
+    // the recorded counts of the directories that are gone, for those whose parent is still there
+    Map<String,long[]> goneCounts = new HashMap<>();
+    BatchScanner bs = conn.createBatchScanner(dirTable, auths, scanThreads);
+    try {
+      bs.setRanges(ranges);
+      for (Entry<Key,Value> e : bs) {
+        String row = e.getKey().getRow().toString();
+        int slash = row.lastIndexOf('/');
+        Set<String> names = dirs.get(row.substring(0, slash + 1));
+        if (names == null || names.contains(row.substring(slash + 1)))
+          continue;
+        List<Key> keys = gone.get(row);
+        if (keys == null)
+          gone.put(row, keys = new ArrayList<>());
+        keys.add(e.getKey());
+        if (names != GONE_DIR && !goneCounts.containsKey(row))
+          goneCounts.put(row, new long[2]);
+        if (names != GONE_DIR && e.getKey().compareColumnFamily(QueryUtil.DIR_COLF) == 0 && e.getKey().compareColumnQualifier(QueryUtil.COUNTS_COLQ) == 0) {
+          String[] counts = e.getValue().toString().split(",");
+          goneCounts.put(row, new long[] {Long.parseLong(counts[2]), Long.parseLong(counts[3])});
+        }
+      }
+    } finally {
+      bs.close();
+    }
+
+    for (Entry<String,List<Key>> e : gone.entrySet())
+      delete(e.getKey(), e.getValue(), goneCounts.get(e.getKey()));
+  }
+
+  /**
+   * @param recursiveCounts
+   *          the recursive directory and file counts of the entry, or null if its parent is gone too and so will not be counted
+   */
+  private void delete(String row, List<Key> keys, long[] recursiveCounts) throws Exception {
+    Text rowText = new Text(row);
+    Mutation m = new Mutation(rowText);
+    Set<Text> visibilities = new HashSet<>();
+    boolean isDir = false;
+    for (Key k : keys) {
+      m.putDelete(k.getColumnFamily(), k.getColumnQualifier(), new ColumnVisibility(k.getColumnVisibility()));
+      visibilities.add(k.getColumnVisibility());
+      if (k.getColumnFamily().equals(QueryUtil.DIR_COLF))
+        isDir = true;
+    }
+    dirBW.addMutation(m);
+
+    String path = row.substring(3);
+    Text forward = QueryUtil.getForwardIndex(path);
+    if (forward != null) {
+      Mutation fm = new Mutation(forward);
+      Mutation rm = new Mutation(QueryUtil.getReverseIndex(path));
+      for (Text vis : visibilities) {
+        fm.putDelete(QueryUtil.INDEX_COLF, rowText, new ColumnVisibility(vis));
+        rm.putDelete(QueryUtil.INDEX_COLF, rowText, new ColumnVisibility(vis));
+      }
+      indexBW.addMutation(fm);
+      indexBW.addMutation(rm);
+      if (ngrams != null) {
+        Mutation nm = ngrams.buildDelete(path, visibilities);
+        if (nm != null)
+          indexBW.addMutation(nm);
+      }
+    }
+    entriesDeleted.incrementAndGet();
+    if (countDeltas != null && recursiveCounts != null)
+      countDeltas.removed(path, isDir, recursiveCounts[0], recursiveCounts[1]);
+
+    // the directory is gone, so everything recorded under it is too
+    if (isDir)
+      queueListing(path, GONE_DIR);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.user.SummingArrayCombiner;
+import org.apache.accumulo.core.security.ColumnVisibility;
+
+/**
+ * Keeps the directory counts of the directory table current as entries are added and removed. Each change adds to the counts of every ancestor of the entry,
+ * and the changes are written as deltas that a {@link SummingArrayCombiner} on the table adds up. The counts keep the form written by {@link FileCount}: direct
+ * subdirectories, direct files, recursive subdirectories and recursive files, separated by commas.
+ *
+ * Changes to the same directory are added up in memory first, so a directory that gains many entries in one run gets few delta mutations.
+ */
+public class CountDeltas {
+
+  /**
+   * The name of the combiner that sums the counts.
+   */
+  public static final String COMBINER_NAME = "dirCounts";
+
+  private final ColumnVisibility cv;
+  private final BatchWriter dirBW;
+  private final int maxDirs;
+
+  // the delta for each directory path: dirs, files, recursive dirs, recursive files
+  private Map<String,long[]> deltas = new HashMap<>();
+
+  /**
+   * @param cv
+   *          the visibility of the count deltas
+   * @param dirBW
+   *          writes to the directory table
+   * @param maxDirs
+   *          the number of directories with changes held in memory before they are written
+   */
+  public CountDeltas(ColumnVisibility cv, BatchWriter dirBW, int maxDirs) {
+    if (maxDirs < 1)
+      throw new IllegalArgumentException("number of directories must be positive");
+    this.cv = cv;
+    this.dirBW = dirBW;
+    this.maxDirs = maxDirs;
+  }
+
+  /**
+   * @return the setting for the combiner that sums the counts of the directory table
+   */
+  public static IteratorSetting combinerSetting() {
+    IteratorSetting setting = new IteratorSetting(10, COMBINER_NAME, SummingArrayCombiner.class);
+    SummingArrayCombiner.setEncodingType(setting, SummingArrayCombiner.Type.STRING);
+    Combiner.setColumns(setting, Collections.singletonList(new IteratorSetting.Column(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ)));
+    return setting;
+  }
+
+  /**
+   * @return true if the counts of the given table are summed by the combiner
+   */
+  public static boolean isSummed(Connector conn, String tableName) throws Exception {
+    return conn.tableOperations().listIterators(tableName).containsKey(COMBINER_NAME);
+  }
+
+  /**
+   * Attaches the combiner that sums the counts to the given table, if it is not already there.
+   */
+  public static void attachCombiner(Connector conn, String tableName) throws Exception {
+    if (!isSummed(conn, tableName))
+      conn.tableOperations().attachIterator(tableName, combinerSetting());
+  }
+
+  /**
+   * Counts a new file or directory. A new directory also gets counts of its own, all zero, as {@link FileCount} gives empty directories.
+   */
+  public void added(String path, boolean isDir) throws Exception {
+    if (isDir)
+      change(path, 0, 0, 0, 0, false);
+    change(path, isDir ? 1 : 0, isDir ? 0 : 1, isDir ? 1 : 0, isDir ? 0 : 1, true);
+  }
+
+  /**
+   * Uncounts a file or directory that is gone, along with everything under it.
+   *
+   * @param recursiveDirs
+   *          the number of directories under a directory that is gone
+   * @param recursiveFiles
+   *          the number of files under a directory that is gone
+   */
+  public void removed(String path, boolean isDir, long recursiveDirs, long recursiveFiles) throws Exception {
+    if (isDir)
+      change(path, -1, 0, -1 - recursiveDirs, -recursiveFiles, true);
+    else
+      change(path, 0, -1, 0, -1, true);
+  }
+
+  /**
+   * Writes the changes held in memory.
+   */
+  public void flush() throws Exception {
+    Map<String,long[]> batch;
+    synchronized (this) {
+      batch = deltas;
+      deltas = new HashMap<>();
+    }
+    write(batch);
+  }
+
+  private void change(String path, long dirs, long files, long recursiveDirs, long recursiveFiles, boolean toAncestors) throws Exception {
+    if (path.equals("/"))
+      return;
+    Map<String,long[]> batch = null;
+    synchronized (this) {
+      if (!toAncestors) {
+        add(path, dirs, files, recursiveDirs, recursiveFiles);
+      } else {
+        // the parent gets the direct counts, and every ancestor the recursive ones
+        String dir = path;
+        boolean parent = true;
+        while (dir.length() > 0) {
+          dir = dir.substring(0, dir.lastIndexOf('/'));
+          add(dir, parent ? dirs : 0, parent ? files : 0, recursiveDirs, recursiveFiles);
+          parent = false;
+        }
+      }
+      if (deltas.size() >= maxDirs) {
+        batch = deltas;
+        deltas = new HashMap<>();
+      }
+    }
+    if (batch != null)
+      write(batch);
+  }
+
+  private void add(String dir, long dirs, long files, long recursiveDirs, long recursiveFiles) {
+    long[] delta = deltas.get(dir);
+    if (delta == null)
+      deltas.put(dir, delta = new long[4]);
+    delta[0] += dirs;
+    delta[1] += files;
+    delta[2] += recursiveDirs;
+    delta[3] += recursiveFiles;
+  }
+
+  private void write(Map<String,long[]> batch) throws Exception {
+    for (Entry<String,long[]> e : batch.entrySet()) {
+      long[] d = e.getValue();
+      Mutation m = new Mutation(QueryUtil.getRow(e.getKey()));
+      m.put(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ, cv, new Value((d[0] + "," + d[1] + "," + d[2] + "," + d[3]).getBytes()));
+      dirBW.addMutation(m);
+    }
+  }
+}
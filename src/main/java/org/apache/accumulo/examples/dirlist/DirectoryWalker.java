@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks directory trees in parallel. Each directory is listed by a task in a work stealing {@link ForkJoinPool}, which lists it with
+ * {@link Files#walkFileTree} so the attributes of each entry are read together with the listing, and forks a task for each subdirectory. Idle threads steal
+ * the subdirectories of busy ones, so wide and deep trees both keep every thread listing.
+ *
+ * Symbolic links are reported with their own attributes and not followed, so a link cannot make the walk visit a tree twice or loop.
+ */
+public class DirectoryWalker {
+
+  /**
+   * Called for every file and directory found, on one of the walker threads.
+   */
+  public interface Visitor {
+    void visit(Path path, BasicFileAttributes attrs) throws Exception;
+
+    /**
+     * Called after the entries of a directory have been visited, with their names. Not called for a directory with entries that could not be read, so the
+     * names are always its full listing.
+     */
+    default void listed(Path dir, List<String> names) throws Exception {}
+  }
+
+  private final ForkJoinPool pool;
+  private final Visitor visitor;
+  private final AtomicLong entriesVisited = new AtomicLong();
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+  /**
+   * @param numThreads
+   *          the number of threads listing directories
+   * @param visitor
+   *          called for each entry, possibly from several threads at once
+   */
+  public DirectoryWalker(int numThreads, Visitor visitor) {
+    if (numThreads < 1)
+      throw new IllegalArgumentException("number of threads must be positive");
+    this.pool = new ForkJoinPool(numThreads);
+    this.visitor = visitor;
+  }
+
+  /**
+   * Visits a path and, if it is a directory, everything under it. Entries that cannot be read are skipped.
+   *
+   * @throws Exception
+   *           the first failure of the visitor
+   */
+  public void walk(Path root) throws Exception {
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (IOException e) {
+      return;
+    }
+    if (visit(root, attrs) && attrs.isDirectory())
+      pool.invoke(new ListTask(root));
+    Exception e = failure.get();
+    if (e != null)
+      throw e;
+  }
+
+  /**
+   * Stops the walker threads.
+   */
+  public void close() {
+    pool.shutdown();
+  }
+
+  /**
+   * @return the number of files and directories visited so far
+   */
+  public long getEntriesVisited() {
+    return entriesVisited.get();
+  }
+
+  private boolean visit(Path path, BasicFileAttributes attrs) {
+    if (failure.get() != null)
+      return false;
+    try {
+      visitor.visit(path, attrs);
+      entriesVisited.incrementAndGet();
+      return true;
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+      return false;
+    }
+  }
+
+  private class ListTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+
+    ListTask(Path dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    protected void compute() {
+      final List<ListTask> subdirs = new ArrayList<>();
+      final List<String> names = new ArrayList<>();
+      final boolean[] complete = {true};
+      try {
+        // with a depth of one, the children of the directory are passed to visitFile with their attributes, subdirectories included
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (!visit(file, attrs))
+              return FileVisitResult.TERMINATE;
+            names.add(file.getFileName().toString());
+            if (attrs.isDirectory())
+              subdirs.add(new ListTask(file));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            // skip entries that cannot be read, as File.listFiles would
+            complete[0] = false;
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path d, IOException exc) {
+            if (exc != null)
+              complete[0] = false;
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      } catch (IOException e) {
+        return;
+      }
+      if (complete[0] && failure.get() == null) {
+        try {
+          visitor.listed(dir, names);
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+          return;
+        }
+      }
+      invokeAll(subdirs);
+    }
+  }
+}
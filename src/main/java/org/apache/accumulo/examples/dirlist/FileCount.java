@@ -16,30 +16,56 @@
  */
 package org.apache.accumulo.examples.dirlist;
 
-import java.util.Iterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map.Entry;
 
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.FirstEntryInRowIterator;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.accumulo.examples.cli.BatchWriterOpts;
 import org.apache.accumulo.examples.cli.ClientOnRequiredTable;
 import org.apache.accumulo.examples.cli.ScannerOpts;
+import org.apache.accumulo.examples.filedata.SpillBuffer;
 import org.apache.hadoop.io.Text;
 
 import com.beust.jcommander.Parameter;
 
 /**
  * Computes recursive counts over file system information and stores them back into the same Accumulo table.
+ *
+ * The table is scanned once, returning only the first entry of each row. Rows are sorted by depth, so the scan sees the directories one depth at a time; the
+ * subdirectories and the number of files of each directory are recorded for their depth, in memory up to a limit shared by all depths and on local disk
+ * beyond it. The counts are then worked out from the deepest depth up, each depth merging in the recursive counts of the one below, and all written with one
+ * batch writer.
+ *
+ * Counts that have not changed are not written again. If the counts of the table are summed by the combiner of {@link CountDeltas}, the difference from the
+ * current counts is written instead of the new counts.
  */
 public class FileCount {
 
+  private static final int RECORD_DIR = 0;
+  private static final int RECORD_END = 1;
+  private static final int SPILL_BLOCK_SIZE = 64 * 1024;
+  private static final int MAX_DEPTH = 999;
+
   private int entriesScanned;
   private int inserts;
 
@@ -49,6 +75,11 @@ public class FileCount {
   private String tableName;
   private Authorizations auths;
   private ColumnVisibility visibility;
+  private long spillMemory = 16 * 1024 * 1024;
+  private File spillDir = null;
+  private SpillBuffer.SharedMemory memory;
+  private boolean summed;
+  private CountValue rootCounts;
 
   private static class CountValue {
     int dirCount = 0;
@@ -64,13 +95,37 @@ public class FileCount {
       recusiveFileCount = Integer.parseInt(sa[3]);
     }
 
+    void read(DataInputStream in) throws IOException {
+      dirCount = in.readInt();
+      fileCount = in.readInt();
+      recursiveDirCount = in.readInt();
+      recusiveFileCount = in.readInt();
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(dirCount);
+      out.writeInt(fileCount);
+      out.writeInt(recursiveDirCount);
+      out.writeInt(recusiveFileCount);
+    }
+
+    boolean sameAs(CountValue other) {
+      return dirCount == other.dirCount && fileCount == other.fileCount && recursiveDirCount == other.recursiveDirCount
+          && recusiveFileCount == other.recusiveFileCount;
+    }
+
     Value toValue() {
       return new Value((dirCount + "," + fileCount + "," + recursiveDirCount + "," + recusiveFileCount).getBytes());
     }
 
-    void incrementFiles() {
-      fileCount++;
-      recusiveFileCount++;
+    Value toDelta(CountValue old) {
+      return new Value(((dirCount - old.dirCount) + "," + (fileCount - old.fileCount) + "," + (recursiveDirCount - old.recursiveDirCount) + ","
+          + (recusiveFileCount - old.recusiveFileCount)).getBytes());
+    }
+
+    void incrementFiles(int count) {
+      fileCount += count;
+      recusiveFileCount += count;
     }
 
     void incrementDirs() {
@@ -85,155 +140,280 @@ public class FileCount {
       recusiveFileCount = 0;
     }
 
-    public void incrementRecursive(CountValue other) {
-      recursiveDirCount += other.recursiveDirCount;
-      recusiveFileCount += other.recusiveFileCount;
+    public void incrementRecursive(int dirs, int files) {
+      recursiveDirCount += dirs;
+      recusiveFileCount += files;
     }
   }
 
-  private int findMaxDepth(Scanner scanner, int min, int max) {
-    int mid = min + (max - min) / 2;
-    return findMaxDepth(scanner, min, mid, max);
-  }
+  /**
+   * Orders directory rows as if each were followed by a slash, which is the order their children are found in by the scan. A directory named a.b has its
+   * children scanned before those of a directory named a, although the row of a sorts first.
+   */
+  private static final Comparator<byte[]> DIR_ORDER = (a, b) -> {
+    int len = Math.max(a.length, b.length) + 1;
+    for (int i = 0; i < len; i++) {
+      int x = i < a.length ? a[i] & 0xff : i == a.length ? '/' : -1;
+      int y = i < b.length ? b[i] & 0xff : i == b.length ? '/' : -1;
+      if (x != y)
+        return x - y;
+    }
+    return 0;
+  };
+
+  /**
+   * A sequence of records, in memory while the memory shared by all records lasts and on local disk beyond it.
+   */
+  private class Records {
+    private final SpillBuffer buffer = new SpillBuffer((int) Math.max(1, Math.min(SPILL_BLOCK_SIZE, spillMemory)), memory, spillDir);
+    private final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        buffer.write(new byte[] {(byte) b}, 0, 1);
+      }
 
-  private int findMaxDepth(Scanner scanner, int min, int mid, int max) {
-    // check to see if the mid point exist
-    if (max < min)
-      return -1;
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        buffer.write(b, off, len);
+      }
+    }, 8192));
 
-    scanner.setRange(new Range(String.format("%03d", mid), true, String.format("%03d", mid + 1), false));
+    void writeRow(byte[] row) throws IOException {
+      out.writeInt(row.length);
+      out.write(row);
+    }
 
-    if (scanner.iterator().hasNext()) {
-      // this depth exist, check to see if a larger depth exist
-      int ret = findMaxDepth(scanner, mid + 1, max);
-      if (ret == -1)
-        return mid; // this must the max
-      else
-        return ret;
-    } else {
-      // this depth does not exist, look lower
-      return findMaxDepth(scanner, min, mid - 1);
+    DataInputStream read() throws IOException {
+      out.flush();
+      return new DataInputStream(new BufferedInputStream(buffer.getInputStream(), 8192));
     }
 
+    void discard() throws IOException {
+      buffer.reset();
+    }
   }
 
-  private int findMaxDepth(Scanner scanner) {
-    // do binary search to find max depth
-    int origBatchSize = scanner.getBatchSize();
-    scanner.setBatchSize(100);
-    int depth = findMaxDepth(scanner, 0, 64, 999);
-    scanner.setBatchSize(origBatchSize);
-    return depth;
+  private static byte[] readRow(DataInputStream in) throws IOException {
+    byte[] row = new byte[in.readInt()];
+    in.readFully(row);
+    return row;
   }
 
-  // find the count column and consume a row
-  private Entry<Key,Value> findCount(Entry<Key,Value> entry, Iterator<Entry<Key,Value>> iterator, CountValue cv) {
-
-    Key key = entry.getKey();
-    Text currentRow = key.getRow();
+  private static int getDepth(byte[] row) {
+    return (row[0] - '0') * 100 + (row[1] - '0') * 10 + (row[2] - '0');
+  }
 
-    if (key.compareColumnQualifier(QueryUtil.COUNTS_COLQ) == 0)
-      cv.set(entry.getValue());
+  private static boolean hasPrefix(Text row, byte[] prefix, int len) {
+    if (prefix.length != len)
+      return false;
+    byte[] b = row.getBytes();
+    for (int i = len - 1; i >= 0; i--)
+      if (b[i] != prefix[i])
+        return false;
+    return true;
+  }
 
-    while (iterator.hasNext()) {
-      entry = iterator.next();
-      entriesScanned++;
-      key = entry.getKey();
+  private static byte[] parentRow(byte[] childPrefix, int depth) {
+    // the prefix ends with the slash after the parent path
+    byte[] parent = Arrays.copyOf(String.format("%03d", depth - 1).getBytes(), childPrefix.length - 1);
+    System.arraycopy(childPrefix, 3, parent, 3, childPrefix.length - 4);
+    return parent;
+  }
 
-      if (key.compareRow(currentRow) != 0)
-        return entry;
+  /**
+   * Writes the counts of a directory, unless they are the same as its current counts.
+   *
+   * @param old
+   *          the current counts, or null if it has none
+   */
+  private void writeCounts(byte[] row, CountValue countVal, CountValue old, BatchWriter batchWriter) throws Exception {
+    if (old != null && old.sameAs(countVal))
+      return;
+    Mutation m = new Mutation(new Text(row));
+    m.put(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ, visibility, summed && old != null ? countVal.toDelta(old) : countVal.toValue());
+    batchWriter.addMutation(m);
+    inserts++;
+  }
 
-      if (key.compareColumnFamily(QueryUtil.DIR_COLF) == 0 && key.compareColumnQualifier(QueryUtil.COUNTS_COLQ) == 0) {
-        cv.set(entry.getValue());
-      }
+  /**
+   * A directory found by the scan, with the counts it already has.
+   */
+  private static class Dir {
+    final byte[] row;
+    final CountValue counts;
 
+    Dir(byte[] row, CountValue counts) {
+      this.row = row;
+      this.counts = counts;
     }
-
-    return null;
   }
 
-  private Entry<Key,Value> consumeRow(Entry<Key,Value> entry, Iterator<Entry<Key,Value>> iterator) {
-    Key key = entry.getKey();
-    Text currentRow = key.getRow();
-
-    while (iterator.hasNext()) {
-      entry = iterator.next();
-      entriesScanned++;
-      key = entry.getKey();
-
-      if (key.compareRow(currentRow) != 0)
-        return entry;
+  /**
+   * Ends the group of children of one directory: writes the subdirectories found, in {@link #DIR_ORDER}, then the number of files.
+   */
+  private void endGroup(Records records, byte[] prefix, List<Dir> dirs, int files) throws IOException {
+    dirs.sort((a, b) -> DIR_ORDER.compare(a.row, b.row));
+    for (Dir dir : dirs) {
+      records.out.writeByte(RECORD_DIR);
+      records.writeRow(dir.row);
+      records.out.writeBoolean(dir.counts != null);
+      if (dir.counts != null)
+        dir.counts.write(records.out);
     }
-
-    return null;
+    records.out.writeByte(RECORD_END);
+    records.writeRow(prefix);
+    records.out.writeInt(files);
+    dirs.clear();
   }
 
-  private String extractDir(Key key) {
-    String row = key.getRowData().toString();
-    return row.substring(3, row.lastIndexOf('/'));
-  }
+  /**
+   * Scans the table once, recording the children of each directory for the depth they are at.
+   *
+   * @param depths
+   *          filled with the records for each depth, leaving null for depths that have no entries
+   */
+  private void scanDepths(Records[] depths) throws Exception {
+    Scanner scanner = conn.createScanner(tableName, auths);
+    scanner.setBatchSize(scanOpts.scanBatchSize);
+    // only whether each row is a directory, and its current counts, are needed, which its first entry shows
+    scanner.addScanIterator(new IteratorSetting(30, "firstEntry", FirstEntryInRowIterator.class));
+
+    Text row = new Text();
+    byte[] prefix = null;
+    int depth = -1;
+    List<Dir> dirs = new ArrayList<>();
+    int files = 0;
+    rootCounts = null;
+    for (Entry<Key,Value> entry : scanner) {
+      entriesScanned++;
+      Key key = entry.getKey();
+      key.getRow(row);
+      int rowDepth = getDepth(row.getBytes());
+      CountValue counts = null;
+      if (key.compareColumnFamily(QueryUtil.DIR_COLF) == 0 && key.compareColumnQualifier(QueryUtil.COUNTS_COLQ) == 0) {
+        counts = new CountValue();
+        counts.set(entry.getValue());
+      }
+      if (rowDepth == 0) {
+        rootCounts = counts;
+        continue;
+      }
+      int slash = row.getLength() - 1;
+      while (row.getBytes()[slash] != '/')
+        slash--;
+
+      // the children of a directory are consecutive, and share the prefix up to the last slash
+      if (prefix == null || rowDepth != depth || !hasPrefix(row, prefix, slash + 1)) {
+        if (prefix != null)
+          endGroup(depths[depth], prefix, dirs, files);
+        prefix = Arrays.copyOf(row.getBytes(), slash + 1);
+        depth = rowDepth;
+        files = 0;
+        if (depths[depth] == null)
+          depths[depth] = new Records();
+      }
 
-  private Mutation createMutation(int depth, String dir, CountValue countVal) {
-    Mutation m = new Mutation(String.format("%03d%s", depth, dir));
-    m.put(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ, visibility, countVal.toValue());
-    return m;
+      if (key.compareColumnFamily(QueryUtil.DIR_COLF) == 0)
+        dirs.add(new Dir(Arrays.copyOf(row.getBytes(), row.getLength()), counts));
+      else
+        files++;
+    }
+    if (prefix != null)
+      endGroup(depths[depth], prefix, dirs, files);
   }
 
-  private void calculateCounts(Scanner scanner, int depth, BatchWriter batchWriter) throws Exception {
-
-    scanner.setRange(new Range(String.format("%03d", depth), true, String.format("%03d", depth + 1), false));
-
+  /**
+   * Works out the counts of the directories at the given depth, and writes them.
+   *
+   * @param below
+   *          the counts of the directories at the given depth that have children, in {@link #DIR_ORDER}, or null if there are none
+   * @return the counts of the directories one depth up that have children, in {@link #DIR_ORDER}
+   */
+  private Records calculateCounts(Records children, Records below, int depth, BatchWriter batchWriter) throws Exception {
+    Records counts = new Records();
+    boolean done = false;
     CountValue countVal = new CountValue();
-
-    Iterator<Entry<Key,Value>> iterator = scanner.iterator();
-
-    String currentDir = null;
-
-    Entry<Key,Value> entry = null;
-    if (iterator.hasNext()) {
-      entry = iterator.next();
-      entriesScanned++;
+    CountValue dirVal = new CountValue();
+    CountValue oldVal = new CountValue();
+    DataInputStream belowIn = below == null ? null : below.read();
+    byte[] belowRow = nextCounts(belowIn);
+
+    try (DataInputStream in = children.read()) {
+      int type;
+      while ((type = nextRecord(in)) >= 0) {
+        if (type == RECORD_DIR) {
+          byte[] dir = readRow(in);
+          boolean hasOld = in.readBoolean();
+          if (hasOld)
+            oldVal.read(in);
+          // rows with children that are not directories still get their counts written
+          while (belowRow != null && DIR_ORDER.compare(belowRow, dir) < 0) {
+            dirVal.read(belowIn);
+            writeCounts(belowRow, dirVal, null, batchWriter);
+            belowRow = nextCounts(belowIn);
+          }
+          if (belowRow != null && DIR_ORDER.compare(belowRow, dir) == 0) {
+            dirVal.read(belowIn);
+            belowRow = nextCounts(belowIn);
+          } else {
+            // a directory with no children gets no counts from the depth below
+            dirVal.clear();
+          }
+          writeCounts(dir, dirVal, hasOld ? oldVal : null, batchWriter);
+          countVal.incrementDirs();
+          countVal.incrementRecursive(dirVal.recursiveDirCount, dirVal.recusiveFileCount);
+        } else {
+          byte[] parent = parentRow(readRow(in), depth);
+          countVal.incrementFiles(in.readInt());
+          counts.writeRow(parent);
+          countVal.write(counts.out);
+          countVal.clear();
+        }
+      }
+      while (belowRow != null) {
+        dirVal.read(belowIn);
+        writeCounts(belowRow, dirVal, null, batchWriter);
+        belowRow = nextCounts(belowIn);
+      }
+      done = true;
+    } finally {
+      if (belowIn != null)
+        belowIn.close();
+      if (!done)
+        counts.discard();
     }
+    return counts;
+  }
 
-    while (entry != null) {
-      Key key = entry.getKey();
-
-      String dir = extractDir(key);
-
-      if (currentDir == null) {
-        currentDir = dir;
-      } else if (!currentDir.equals(dir)) {
-        batchWriter.addMutation(createMutation(depth - 1, currentDir, countVal));
-        inserts++;
-        currentDir = dir;
-        countVal.clear();
+  /**
+   * Writes the counts of the directories that have children at the lowest depth, which is only the root directory.
+   */
+  private void writeRootCounts(Records below, BatchWriter batchWriter) throws Exception {
+    CountValue countVal = new CountValue();
+    try (DataInputStream in = below.read()) {
+      byte[] row;
+      while ((row = nextCounts(in)) != null) {
+        countVal.read(in);
+        writeCounts(row, countVal, rootCounts, batchWriter);
       }
+    }
+  }
 
-      // process a whole row
-      if (key.compareColumnFamily(QueryUtil.DIR_COLF) == 0) {
-        CountValue tmpCount = new CountValue();
-        entry = findCount(entry, iterator, tmpCount);
-
-        if (tmpCount.dirCount == 0 && tmpCount.fileCount == 0) {
-          // in this case the higher depth will not insert anything if the
-          // dir has no children, so insert something here
-          Mutation m = new Mutation(key.getRow());
-          m.put(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ, visibility, tmpCount.toValue());
-          batchWriter.addMutation(m);
-          inserts++;
-        }
-
-        countVal.incrementRecursive(tmpCount);
-        countVal.incrementDirs();
-      } else {
-        entry = consumeRow(entry, iterator);
-        countVal.incrementFiles();
-      }
+  private static int nextRecord(DataInputStream in) throws IOException {
+    try {
+      return in.readByte();
+    } catch (EOFException e) {
+      return -1;
     }
+  }
 
-    if (currentDir != null) {
-      batchWriter.addMutation(createMutation(depth - 1, currentDir, countVal));
-      inserts++;
+  private static byte[] nextCounts(DataInputStream in) throws IOException {
+    if (in == null)
+      return null;
+    try {
+      return readRow(in);
+    } catch (EOFException e) {
+      return null;
     }
   }
 
@@ -246,33 +426,73 @@ public class FileCount {
     this.bwOpts = bwOpts;
   }
 
+  /**
+   * Sets how much of the directories found by the scan is held in memory, across all depths. The rest is spilled to temporary files in the given directory.
+   * Each depth also has a write buffer of 8 KB.
+   *
+   * @param memoryLimit
+   *          the maximum number of bytes held in memory for all depths together
+   * @param spillDir
+   *          the directory for spill files, or null to use the default temporary directory
+   */
+  public void setSpill(long memoryLimit, File spillDir) {
+    this.spillMemory = memoryLimit;
+    this.spillDir = spillDir;
+  }
+
   public void run() throws Exception {
 
     entriesScanned = 0;
     inserts = 0;
 
-    Scanner scanner = conn.createScanner(tableName, auths);
-    scanner.setBatchSize(scanOpts.scanBatchSize);
-    BatchWriter bw = conn.createBatchWriter(tableName, bwOpts.getBatchWriterConfig());
-
     long t1 = System.currentTimeMillis();
 
-    int depth = findMaxDepth(scanner);
-
-    long t2 = System.currentTimeMillis();
-
-    for (int d = depth; d > 0; d--) {
-      calculateCounts(scanner, d, bw);
-      // must flush so next depth can read what prev depth wrote
-      bw.flush();
+    memory = new SpillBuffer.SharedMemory(spillMemory);
+    Records[] depths = new Records[MAX_DEPTH + 1];
+    int depth = depths.length - 1;
+    boolean spilled = false;
+    long t2;
+    Records below = null;
+    try {
+      scanDepths(depths);
+      while (depth > 0 && depths[depth] == null)
+        depth--;
+      for (Records records : depths)
+        spilled |= records != null && records.buffer.spilled();
+
+      t2 = System.currentTimeMillis();
+
+      summed = CountDeltas.isSummed(conn, tableName);
+      BatchWriter bw = conn.createBatchWriter(tableName, bwOpts.getBatchWriterConfig());
+      for (int d = depth; d > 0; d--) {
+        if (depths[d] == null) {
+          // no entries at this depth, so none above it have children either
+          if (below != null)
+            below.discard();
+          below = null;
+          continue;
+        }
+        Records counts = calculateCounts(depths[d], below, d, bw);
+        depths[d].discard();
+        if (below != null)
+          below.discard();
+        below = counts;
+      }
+      if (below != null)
+        writeRootCounts(below, bw);
+      bw.close();
+    } finally {
+      if (below != null)
+        below.discard();
+      for (Records records : depths)
+        if (records != null)
+          records.discard();
     }
 
-    bw.close();
-
     long t3 = System.currentTimeMillis();
 
     System.out.printf("Max depth              : %d%n", depth);
-    System.out.printf("Time to find max depth : %,d ms%n", (t2 - t1));
+    System.out.printf("Time to scan           : %,d ms%s%n", (t2 - t1), spilled ? " (spilled to disk)" : "");
     System.out.printf("Time to compute counts : %,d ms%n", (t3 - t2));
     System.out.printf("Entries scanned        : %,d %n", entriesScanned);
     System.out.printf("Counts inserted        : %,d %n", inserts);
@@ -281,6 +501,13 @@ public class FileCount {
   public static class Opts extends ClientOnRequiredTable {
     @Parameter(names = "--vis", description = "use a given visibility for the new counts", converter = VisibilityConverter.class)
     ColumnVisibility visibility = new ColumnVisibility();
+
+    @Parameter(names = "--spillMemory", converter = MemoryConverter.class,
+        description = "memory used to hold the directories of all depths together, anything larger is spilled to temporary files")
+    long spillMemory = 16 * 1024 * 1024;
+
+    @Parameter(names = "--spillDir", description = "directory for spill files, defaults to the system temporary directory")
+    String spillDir = null;
   }
 
   public static void main(String[] args) throws Exception {
@@ -291,6 +518,7 @@ public class FileCount {
     opts.parseArgs(programName, args, scanOpts, bwOpts);
 
     FileCount fileCount = new FileCount(opts.getConnector(), opts.getTableName(), opts.auths, opts.visibility, scanOpts, bwOpts);
+    fileCount.setSpill(opts.spillMemory, opts.spillDir == null ? null : new File(opts.spillDir));
     fileCount.run();
   }
 }
@@ -16,10 +16,18 @@
  */
 package org.apache.accumulo.examples.dirlist;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.Connector;
@@ -29,10 +37,13 @@ import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.LongCombiner;
 import org.apache.accumulo.core.iterators.TypedValueCombiner.Encoder;
 import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.examples.cli.BatchScannerOpts;
 import org.apache.accumulo.examples.cli.BatchWriterOpts;
 import org.apache.accumulo.examples.cli.ClientOpts;
 import org.apache.accumulo.examples.filedata.ChunkCombiner;
+import org.apache.accumulo.examples.filedata.DuplicateChecker;
 import org.apache.accumulo.examples.filedata.FileDataIngest;
+import org.apache.accumulo.examples.filedata.ParallelFileDataIngest;
 import org.apache.hadoop.io.Text;
 
 import com.beust.jcommander.Parameter;
@@ -50,16 +61,21 @@ public class Ingest {
   public static final String HASH_CQ = "md5";
   public static final Encoder<Long> encoder = LongCombiner.FIXED_LEN_ENCODER;
 
+  /**
+   * @return the column family of the entries for a directory, or for the version of a file last modified at the given time
+   */
+  static Text getColf(boolean isDir, long lastmod) {
+    if (isDir)
+      return QueryUtil.DIR_COLF;
+    return new Text(encoder.encode(Long.MAX_VALUE - lastmod));
+  }
+
   public static Mutation buildMutation(ColumnVisibility cv, String path, boolean isDir, boolean isHidden, boolean canExec, long length, long lastmod,
       String hash) {
     if (path.equals("/"))
       path = "";
     Mutation m = new Mutation(QueryUtil.getRow(path));
-    Text colf = null;
-    if (isDir)
-      colf = QueryUtil.DIR_COLF;
-    else
-      colf = new Text(encoder.encode(Long.MAX_VALUE - lastmod));
+    Text colf = getColf(isDir, lastmod);
     m.put(colf, new Text(LENGTH_CQ), cv, new Value(Long.toString(length).getBytes()));
     m.put(colf, new Text(HIDDEN_CQ), cv, new Value(Boolean.toString(isHidden).getBytes()));
     m.put(colf, new Text(EXEC_CQ), cv, new Value(Boolean.toString(canExec).getBytes()));
@@ -69,27 +85,9 @@ public class Ingest {
     return m;
   }
 
-  private static void ingest(File src, ColumnVisibility cv, BatchWriter dirBW, BatchWriter indexBW, FileDataIngest fdi, BatchWriter data) throws Exception {
-    // build main table entry
-    String path = null;
-    try {
-      path = src.getCanonicalPath();
-    } catch (IOException e) {
-      path = src.getAbsolutePath();
-    }
-    System.out.println(path);
-
-    String hash = null;
-    if (!src.isDirectory()) {
-      try {
-        hash = fdi.insertFileData(path, data);
-      } catch (Exception e) {
-        // if something goes wrong, just skip this one
-        return;
-      }
-    }
-
-    dirBW.addMutation(buildMutation(cv, path, src.isDirectory(), src.isHidden(), src.canExecute(), src.length(), src.lastModified(), hash));
+  private static void writeEntry(ColumnVisibility cv, String path, boolean isDir, boolean isHidden, boolean canExec, long length, long lastmod, String hash,
+      BatchWriter dirBW, BatchWriter indexBW, NGramIndex ngrams) throws Exception {
+    dirBW.addMutation(buildMutation(cv, path, isDir, isHidden, canExec, length, lastmod, hash));
 
     // build index table entries
     Text row = QueryUtil.getForwardIndex(path);
@@ -103,20 +101,74 @@ public class Ingest {
       m = new Mutation(row);
       m.put(QueryUtil.INDEX_COLF, p, cv, nullValue);
       indexBW.addMutation(m);
+
+      if (ngrams != null) {
+        m = ngrams.buildMutation(cv, path);
+        if (m != null)
+          indexBW.addMutation(m);
+      }
     }
   }
 
-  private static void recurse(File src, ColumnVisibility cv, BatchWriter dirBW, BatchWriter indexBW, FileDataIngest fdi, BatchWriter data) throws Exception {
-    // ingest this File
-    ingest(src, cv, dirBW, indexBW, fdi, data);
-    // recurse into subdirectories
-    if (src.isDirectory()) {
-      File[] files = src.listFiles();
-      if (files == null)
-        return;
-      for (File child : files) {
-        recurse(child, cv, dirBW, indexBW, fdi, data);
-      }
+  /**
+   * Determines whether an entry is executable. Where the file system keeps POSIX permissions they come with the attributes read during the walk, and an
+   * entry counts as executable if any of its execute bits are set; otherwise the file system is asked.
+   */
+  private static boolean canExecute(Path path, BasicFileAttributes attrs) {
+    if (attrs instanceof PosixFileAttributes) {
+      Set<PosixFilePermission> perms = ((PosixFileAttributes) attrs).permissions();
+      return perms.contains(PosixFilePermission.OWNER_EXECUTE) || perms.contains(PosixFilePermission.GROUP_EXECUTE)
+          || perms.contains(PosixFilePermission.OTHERS_EXECUTE);
+    }
+    return Files.isExecutable(path);
+  }
+
+  /**
+   * Builds the entries for one path found by the {@link DirectoryWalker}. Directories are written right away on the walker thread. Files are queued for the
+   * ingest threads, since their entries hold the hash of their data. With a {@link ChangeDetector}, this only happens for new or modified paths, and with
+   * {@link CountDeltas} new paths are counted once written.
+   */
+  private static void ingest(Path path, BasicFileAttributes attrs, ColumnVisibility cv, BatchWriter dirBW, BatchWriter indexBW, NGramIndex ngrams,
+      ParallelFileDataIngest pool, BatchWriter data, ChangeDetector detector, CountDeltas counts) throws Exception {
+    String name = path.toString();
+    boolean isDir = attrs.isDirectory();
+    boolean isHidden = Files.isHidden(path);
+    boolean canExec = canExecute(path, attrs);
+    long length = attrs.size();
+    long lastmod = attrs.lastModifiedTime().toMillis();
+    ChangeDetector.Update update;
+    if (isDir) {
+      update = isNew -> {
+        writeEntry(cv, name, true, isHidden, canExec, length, lastmod, null, dirBW, indexBW, ngrams);
+        if (isNew && counts != null)
+          counts.added(name, true);
+      };
+    } else {
+      update = isNew -> pool.submit(fdi -> {
+        String hash;
+        try {
+          hash = fdi.insertFileData(name, data);
+        } catch (Exception e) {
+          // if something goes wrong, just skip this one
+          return;
+        }
+        writeEntry(cv, name, false, isHidden, canExec, length, lastmod, hash, dirBW, indexBW, ngrams);
+        if (isNew && counts != null)
+          counts.added(name, false);
+      });
+    }
+    if (detector == null)
+      update.apply(false);
+    else
+      detector.check(name, isDir, length, lastmod, update);
+  }
+
+  private static Path realPath(String dir) {
+    Path path = Paths.get(dir);
+    try {
+      return path.toRealPath();
+    } catch (IOException e) {
+      return path.toAbsolutePath();
     }
   }
 
@@ -131,6 +183,24 @@ public class Ingest {
     ColumnVisibility visibility = new ColumnVisibility();
     @Parameter(names = "--chunkSize", description = "the size of chunks when breaking down files")
     int chunkSize = 100000;
+    @Parameter(names = "--threads", description = "number of threads reading and chunking files")
+    int threads = 1;
+    @Parameter(names = "--queueSize", description = "number of files that may wait for an ingest thread")
+    int queueSize = 100;
+    @Parameter(names = "--walkThreads", description = "number of threads listing directories")
+    int walkThreads = 1;
+    @Parameter(names = "--incremental", description = "only ingest what changed since the last run and delete entries for files that are gone")
+    boolean incremental = false;
+    @Parameter(names = "--checkBatch", description = "number of entries looked up together in incremental mode")
+    int checkBatch = 1000;
+    @Parameter(names = "--counts", description = "keep the directory counts current with a combiner on the dir table, implies --incremental")
+    boolean counts = false;
+    @Parameter(names = "--countDirs", description = "number of directories whose count changes are held in memory before they are written")
+    int countDirs = 10000;
+    @Parameter(names = "--ngramPartitions", description = "index the trigrams of names over this many partitions for substring searches")
+    int ngramPartitions = 0;
+    @Parameter(names = "--dedup", description = "only write the references of files whose data is already in the data table, looked up in batches")
+    boolean dedup = false;
     @Parameter(description = "<dir> { <dir> ... }")
     List<String> directories = new ArrayList<>();
   }
@@ -138,11 +208,14 @@ public class Ingest {
   public static void main(String[] args) throws Exception {
     Opts opts = new Opts();
     BatchWriterOpts bwOpts = new BatchWriterOpts();
-    opts.parseArgs(Ingest.class.getName(), args, bwOpts);
+    BatchScannerOpts bsOpts = new BatchScannerOpts();
+    opts.parseArgs(Ingest.class.getName(), args, bwOpts, bsOpts);
 
     Connector conn = opts.getConnector();
     if (!conn.tableOperations().exists(opts.nameTable))
       conn.tableOperations().create(opts.nameTable);
+    if (opts.counts)
+      CountDeltas.attachCombiner(conn, opts.nameTable);
     if (!conn.tableOperations().exists(opts.indexTable))
       conn.tableOperations().create(opts.indexTable);
     if (!conn.tableOperations().exists(opts.dataTable)) {
@@ -153,21 +226,69 @@ public class Ingest {
     BatchWriter dirBW = conn.createBatchWriter(opts.nameTable, bwOpts.getBatchWriterConfig());
     BatchWriter indexBW = conn.createBatchWriter(opts.indexTable, bwOpts.getBatchWriterConfig());
     BatchWriter dataBW = conn.createBatchWriter(opts.dataTable, bwOpts.getBatchWriterConfig());
-    FileDataIngest fdi = new FileDataIngest(opts.chunkSize, opts.visibility);
+    DuplicateChecker duplicates = opts.dedup ? new DuplicateChecker(conn, opts.dataTable, opts.auths, bsOpts.scanThreads, 10000) : null;
+    ParallelFileDataIngest pool = new ParallelFileDataIngest(opts.threads, opts.queueSize, () -> {
+      FileDataIngest fdi = new FileDataIngest(opts.chunkSize, opts.visibility);
+      fdi.setDuplicateChecker(duplicates);
+      return fdi;
+    });
+    // only an entry known to be new or gone can change the counts, so counting needs the change detection
+    CountDeltas counts = opts.counts ? new CountDeltas(opts.visibility, dirBW, opts.countDirs) : null;
+    ChangeDetector detector = opts.incremental || opts.counts
+        ? new ChangeDetector(conn, opts.nameTable, opts.auths, bsOpts.scanThreads, opts.checkBatch, opts.chunkSize > 0, dirBW, indexBW) : null;
+    NGramIndex ngrams = opts.ngramPartitions > 0 ? new NGramIndex(opts.ngramPartitions) : null;
+    if (detector != null) {
+      detector.setCountDeltas(counts);
+      detector.setNGramIndex(ngrams);
+    }
+    DirectoryWalker walker = new DirectoryWalker(opts.walkThreads, new DirectoryWalker.Visitor() {
+      @Override
+      public void visit(Path path, BasicFileAttributes attrs) throws Exception {
+        ingest(path, attrs, opts.visibility, dirBW, indexBW, ngrams, pool, dataBW, detector, counts);
+      }
+
+      @Override
+      public void listed(Path dir, List<String> names) throws Exception {
+        if (detector != null)
+          detector.listed(dir.toString(), names);
+      }
+    });
+    long t1 = System.currentTimeMillis();
+    Set<Path> parents = new HashSet<>();
     for (String dir : opts.directories) {
-      recurse(new File(dir), opts.visibility, dirBW, indexBW, fdi, dataBW);
+      Path root = realPath(dir);
+      walker.walk(root);
 
       // fill in parent directory info
-      int slashIndex = -1;
-      while ((slashIndex = dir.lastIndexOf("/")) > 0) {
-        dir = dir.substring(0, slashIndex);
-        ingest(new File(dir), opts.visibility, dirBW, indexBW, fdi, dataBW);
+      for (Path parent = root.getParent(); parent != null; parent = parent.getParent()) {
+        if (parents.add(parent))
+          ingest(parent, Files.readAttributes(parent, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), opts.visibility, dirBW, indexBW, ngrams,
+              pool, dataBW, detector, counts);
       }
     }
-    ingest(new File("/"), opts.visibility, dirBW, indexBW, fdi, dataBW);
+    walker.close();
+    if (detector != null)
+      detector.flush();
+    pool.close();
+    if (duplicates != null)
+      duplicates.close();
+    if (counts != null)
+      counts.flush();
 
     dirBW.close();
     indexBW.close();
     dataBW.close();
+    long t2 = System.currentTimeMillis();
+
+    System.out.printf("Entries walked : %,d%n", walker.getEntriesVisited());
+    if (detector != null) {
+      System.out.printf("Unchanged      : %,d%n", detector.getEntriesUnchanged());
+      System.out.printf("Deleted        : %,d%n", detector.getEntriesDeleted());
+    }
+    System.out.printf("Bytes ingested : %,d%n", pool.getBytesIngested());
+    if (duplicates != null)
+      System.out.printf("Duplicates     : %,d files, %,d bytes%n", duplicates.getDuplicates(), pool.getBytesDeduplicated());
+    System.out.printf("Time           : %,d ms%n", (t2 - t1));
+    System.out.printf("Throughput     : %,.0f entries/s%n", walker.getEntriesVisited() / (Math.max(1, t2 - t1) / 1000.0));
   }
 }
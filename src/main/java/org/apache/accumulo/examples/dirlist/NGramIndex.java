@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.iterators.user.IntersectingIterator;
+import org.apache.accumulo.core.iterators.user.RegExFilter;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+
+/**
+ * A trigram index of file and directory names, kept in the index table next to the forward and reverse name indexes. Paths are spread over a number of
+ * partitions, each a row of the form {@link #NGRAM_PREFIX} + partition, holding one entry for each trigram of each name, with the trigram as the column
+ * family and the directory table row of the path as the column qualifier. This is the layout of the shard example, so an {@link IntersectingIterator} can
+ * find the paths holding every trigram of a pattern within each partition on the tablet servers.
+ */
+public class NGramIndex {
+
+  public static final Text NGRAM_PREFIX = new Text("n");
+  public static final int N = 3;
+
+  private final int partitions;
+
+  /**
+   * @param partitions
+   *          the number of partitions; must be the same for every ingest into an index table, as deletes are written to the partition of the path
+   */
+  public NGramIndex(int partitions) {
+    if (partitions < 1)
+      throw new IllegalArgumentException("number of partitions must be positive");
+    this.partitions = partitions;
+  }
+
+  /**
+   * @return the distinct trigrams of a name, in the order they appear
+   */
+  public static Set<String> getNGrams(String name) {
+    if (name.length() < N)
+      return Collections.emptySet();
+    Set<String> ngrams = new LinkedHashSet<>();
+    for (int i = 0; i + N <= name.length(); i++)
+      ngrams.add(name.substring(i, i + N));
+    return ngrams;
+  }
+
+  private Text getPartition(String path) {
+    Text row = new Text(NGRAM_PREFIX);
+    byte[] p = String.format("%04x", Math.abs(path.hashCode() % partitions)).getBytes();
+    row.append(p, 0, p.length);
+    return row;
+  }
+
+  /**
+   * @return the index entries for the trigrams of the name of a path, or null if the name is too short to have any
+   */
+  public Mutation buildMutation(ColumnVisibility cv, String path) {
+    Set<String> ngrams = getNGrams(path.substring(path.lastIndexOf("/") + 1));
+    if (ngrams.isEmpty())
+      return null;
+    Text row = QueryUtil.getRow(path);
+    Mutation m = new Mutation(getPartition(path));
+    for (String ngram : ngrams)
+      m.put(new Text(ngram), row, cv, Ingest.nullValue);
+    return m;
+  }
+
+  /**
+   * @return deletes of the index entries for a path with the given visibilities, or null if its name has no trigrams
+   */
+  public Mutation buildDelete(String path, Set<Text> visibilities) {
+    Set<String> ngrams = getNGrams(path.substring(path.lastIndexOf("/") + 1));
+    if (ngrams.isEmpty())
+      return null;
+    Text row = QueryUtil.getRow(path);
+    Mutation m = new Mutation(getPartition(path));
+    for (String ngram : ngrams)
+      for (Text vis : visibilities)
+        m.putDelete(new Text(ngram), row, new ColumnVisibility(vis));
+    return m;
+  }
+
+  /**
+   * @return true if the pattern has a run of at least {@link #N} characters between its wild cards, so the trigram index can answer it
+   */
+  public static boolean canSearch(String exp) {
+    for (String part : exp.split("\\*"))
+      if (part.length() >= N)
+        return true;
+    return false;
+  }
+
+  /**
+   * Searches the trigram index for names matching a pattern with any number of '*' wild cards, e.g. *foo*bar*. On each tablet server the trigrams of the
+   * pattern are intersected by an {@link IntersectingIterator}, and the paths found are then matched against the whole pattern by a {@link RegExFilter}, so
+   * only matching paths come back. The directory table row of each match is the column qualifier of the entries returned.
+   *
+   * @param exp
+   *          the name to search for, which must satisfy {@link #canSearch(String)} and cannot contain "/"
+   * @return a scanner over the matches, which the caller should close
+   */
+  public static BatchScanner search(Connector conn, String indexTable, Authorizations auths, int threads, String exp) throws TableNotFoundException {
+    if (exp.indexOf("/") >= 0)
+      throw new IllegalArgumentException("this method only works with unqualified names");
+    Set<String> ngrams = new LinkedHashSet<>();
+    StringBuilder regex = new StringBuilder(".*/");
+    String[] parts = exp.split("\\*", -1);
+    for (int i = 0; i < parts.length; i++) {
+      ngrams.addAll(getNGrams(parts[i]));
+      if (i > 0)
+        regex.append("[^/]*");
+      if (parts[i].length() > 0)
+        regex.append(Pattern.quote(parts[i]));
+    }
+    if (ngrams.isEmpty())
+      throw new IllegalArgumentException("search needs at least " + N + " characters between wild cards");
+
+    Text[] columns = new Text[ngrams.size()];
+    int i = 0;
+    for (String ngram : ngrams)
+      columns[i++] = new Text(ngram);
+    IteratorSetting ii = new IteratorSetting(20, "ii", IntersectingIterator.class);
+    IntersectingIterator.setColumnFamilies(ii, columns);
+    // the intersection returns each path as the column qualifier, which the filter checks against the pattern in order
+    IteratorSetting filter = new IteratorSetting(30, "regex", RegExFilter.class);
+    RegExFilter.setRegexs(filter, null, null, regex.toString(), null, false);
+
+    BatchScanner bs = conn.createBatchScanner(indexTable, auths, threads);
+    bs.addScanIterator(ii);
+    bs.addScanIterator(filter);
+    bs.setRanges(Collections.singleton(Range.prefix(NGRAM_PREFIX)));
+    return bs;
+  }
+}
@@ -16,21 +16,38 @@
  */
 package org.apache.accumulo.examples.dirlist;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.RowIterator;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.user.RegExFilter;
 import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.examples.cli.BatchScannerOpts;
 import org.apache.accumulo.examples.cli.ClientOnRequiredTable;
 import org.apache.hadoop.io.Text;
 
@@ -51,9 +68,13 @@ public class QueryUtil {
   public static final Text COUNTS_COLQ = new Text("counts");
 
   public QueryUtil(Opts opts) throws AccumuloException, AccumuloSecurityException {
-    conn = opts.getConnector();
-    this.tableName = opts.getTableName();
-    this.auths = opts.auths;
+    this(opts.getConnector(), opts.getTableName(), opts.auths);
+  }
+
+  public QueryUtil(Connector conn, String tableName, Authorizations auths) {
+    this.conn = conn;
+    this.tableName = tableName;
+    this.auths = auths;
   }
 
   /**
@@ -159,22 +180,226 @@ public class QueryUtil {
    *          the full path of a directory
    */
   public Map<String,Map<String,String>> getDirList(String path) throws TableNotFoundException {
+    Map<String,Map<String,String>> fim = new TreeMap<>();
+    for (DirEntry e : listDir(path, null, 0))
+      fim.put(e.getName(), e.getData());
+    return fim;
+  }
+
+  /**
+   * Lists the contents of several directories with one {@link BatchScanner}, rather than a scan per directory.
+   *
+   * @param paths
+   *          the full paths of directories
+   * @param numThreads
+   *          the number of threads of the batch scanner
+   * @return the listing of each directory, in the form given by {@link #getDirList(String)}, keyed by the path as given
+   */
+  public Map<String,Map<String,Map<String,String>>> getDirLists(Collection<String> paths, int numThreads) throws TableNotFoundException {
+    Map<String,Map<String,Map<String,String>>> lists = new HashMap<>();
+    // the listings by the path of the directory without a trailing slash, as it is found from the rows of its children
+    Map<String,Map<String,Map<String,String>>> byDir = new HashMap<>();
+    List<Range> ranges = new ArrayList<>();
+    for (String path : paths) {
+      String dir = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+      Map<String,Map<String,String>> fim = byDir.get(dir);
+      if (fim == null) {
+        byDir.put(dir, fim = new TreeMap<>());
+        ranges.add(Range.prefix(getRow(dir + "/")));
+      }
+      lists.put(path, fim);
+    }
+    if (ranges.isEmpty())
+      return lists;
+    BatchScanner bs = conn.createBatchScanner(tableName, auths, numThreads);
+    try {
+      bs.setRanges(ranges);
+      for (Entry<Key,Value> e : bs) {
+        String fullName = e.getKey().getRow().toString().substring(3);
+        int slash = fullName.lastIndexOf("/");
+        Map<String,Map<String,String>> fim = byDir.get(fullName.substring(0, slash));
+        if (fim == null)
+          continue;
+        String name = fullName.substring(slash + 1);
+        Map<String,String> data = fim.get(name);
+        if (data == null) {
+          fim.put(name, data = new TreeMap<>());
+          data.put("fullname", fullName);
+        }
+        Key k = e.getKey();
+        data.put(getType(k.getColumnFamily()) + k.getColumnQualifier().toString() + ":" + k.getColumnVisibility().toString(), new String(e.getValue().get()));
+      }
+    } finally {
+      bs.close();
+    }
+    return lists;
+  }
+
+  /**
+   * Streams the contents of a directory from the directory table in name order. Entries are read from the table as the returned iterator advances, and the
+   * rows are only decoded when their attributes are asked for, so a directory of any size can be listed in bounded memory.
+   *
+   * @param path
+   *          the full path of a directory
+   * @param after
+   *          the name of the entry to list after, e.g. the continuation of a {@link DirPage}, or null to list from the start
+   * @param batchSize
+   *          the number of key/value pairs fetched from the tablet servers at a time, or 0 for the scanner's default
+   * @param attributes
+   *          the attributes to read for each entry, e.g. length and lastmod, or none to read all of them
+   */
+  public Iterable<DirEntry> listDir(String path, String after, int batchSize, String... attributes) throws TableNotFoundException {
     if (!path.endsWith("/"))
       path = path + "/";
-    Map<String,Map<String,String>> fim = new TreeMap<>();
-    Scanner scanner = conn.createScanner(tableName, auths);
-    scanner.setRange(Range.prefix(getRow(path)));
-    for (Entry<Key,Value> e : scanner) {
-      String name = e.getKey().getRow().toString();
-      name = name.substring(name.lastIndexOf("/") + 1);
-      String type = getType(e.getKey().getColumnFamily());
-      if (!fim.containsKey(name)) {
-        fim.put(name, new TreeMap<String,String>());
-        fim.get(name).put("fullname", e.getKey().getRow().toString().substring(3));
+    Range range = Range.prefix(getRow(path));
+    if (after != null)
+      range = new Range(new Key(getRow(path + after)).followingKey(PartialKey.ROW), true, range.getEndKey(), range.isEndKeyInclusive());
+    final Scanner scanner = conn.createScanner(tableName, auths);
+    scanner.setRange(range);
+    if (batchSize > 0)
+      scanner.setBatchSize(batchSize);
+    if (attributes.length > 0) {
+      // files have a column family per version, so the attributes are picked out by qualifier on the server rather than with fetchColumn
+      StringBuilder regex = new StringBuilder();
+      for (String attribute : attributes) {
+        if (regex.length() > 0)
+          regex.append('|');
+        regex.append(Pattern.quote(attribute));
       }
-      fim.get(name).put(type + e.getKey().getColumnQualifier().toString() + ":" + e.getKey().getColumnVisibility().toString(), new String(e.getValue().get()));
+      IteratorSetting setting = new IteratorSetting(50, "attributes", RegExFilter.class);
+      RegExFilter.setRegexs(setting, null, null, regex.toString(), null, false);
+      scanner.addScanIterator(setting);
+    }
+    return new Iterable<DirEntry>() {
+      @Override
+      public Iterator<DirEntry> iterator() {
+        final RowIterator rows = new RowIterator(scanner);
+        return new Iterator<DirEntry>() {
+          @Override
+          public boolean hasNext() {
+            return rows.hasNext();
+          }
+
+          @Override
+          public DirEntry next() {
+            if (!rows.hasNext())
+              throw new NoSuchElementException();
+            List<Entry<Key,Value>> row = new ArrayList<>();
+            Iterator<Entry<Key,Value>> entries = rows.next();
+            while (entries.hasNext())
+              row.add(entries.next());
+            return new DirEntry(row);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Lists one page of the contents of a directory. Pass the continuation of the page to get the next one.
+   *
+   * @param path
+   *          the full path of a directory
+   * @param after
+   *          the continuation of the previous page, or null for the first page
+   * @param pageSize
+   *          the most entries to return
+   * @param attributes
+   *          the attributes to read for each entry, or none to read all of them
+   */
+  public DirPage getDirPage(String path, String after, int pageSize, String... attributes) throws TableNotFoundException {
+    if (pageSize < 1)
+      throw new IllegalArgumentException("page size must be positive");
+    // fetch about one page at a time, each entry having up to five attributes
+    int batchSize = pageSize * (attributes.length > 0 ? attributes.length : 5);
+    List<DirEntry> entries = new ArrayList<>();
+    Iterator<DirEntry> iter = listDir(path, after, batchSize, attributes).iterator();
+    while (entries.size() < pageSize && iter.hasNext())
+      entries.add(iter.next());
+    String continuation = iter.hasNext() ? entries.get(entries.size() - 1).getName() : null;
+    return new DirPage(entries, continuation);
+  }
+
+  /**
+   * A file or directory in a listing, holding the entries of its row in the directory table.
+   */
+  public static class DirEntry {
+    private final List<Entry<Key,Value>> entries;
+    private String fullName;
+
+    DirEntry(List<Entry<Key,Value>> entries) {
+      this.entries = entries;
+    }
+
+    /**
+     * @return the full path of the file or directory
+     */
+    public String getFullName() {
+      if (fullName == null)
+        fullName = entries.get(0).getKey().getRow().toString().substring(3);
+      return fullName;
+    }
+
+    /**
+     * @return the name of the file or directory within its parent
+     */
+    public String getName() {
+      String name = getFullName();
+      return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    public boolean isDir() {
+      return entries.get(0).getKey().compareColumnFamily(DIR_COLF) == 0;
+    }
+
+    /**
+     * @return the value of an attribute, e.g. length, or null if it was not read. A file with several versions gives the value of the newest.
+     */
+    public String getAttribute(String attribute) {
+      // the newest version of a file sorts first
+      Text colq = new Text(attribute);
+      for (Entry<Key,Value> e : entries)
+        if (e.getKey().compareColumnQualifier(colq) == 0)
+          return new String(e.getValue().get());
+      return null;
+    }
+
+    /**
+     * @return all the attributes read, in the form given by {@link QueryUtil#getData(String)}
+     */
+    public Map<String,String> getData() {
+      Map<String,String> data = new TreeMap<>();
+      data.put("fullname", getFullName());
+      for (Entry<Key,Value> e : entries) {
+        Key k = e.getKey();
+        data.put(getType(k.getColumnFamily()) + k.getColumnQualifier().toString() + ":" + k.getColumnVisibility().toString(), new String(e.getValue().get()));
+      }
+      return data;
+    }
+  }
+
+  /**
+   * A page of a directory listing.
+   */
+  public static class DirPage {
+    private final List<DirEntry> entries;
+    private final String continuation;
+
+    DirPage(List<DirEntry> entries, String continuation) {
+      this.entries = Collections.unmodifiableList(entries);
+      this.continuation = continuation;
+    }
+
+    public List<DirEntry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return the key to pass to {@link QueryUtil#getDirPage} for the next page, or null if this is the last page
+     */
+    public String getContinuation() {
+      return continuation;
     }
-    return fim;
   }
 
   /**
@@ -252,11 +477,143 @@ public class QueryUtil {
     return scanner;
   }
 
+  /**
+   * Receives the matches of a {@link #batchSearch}.
+   */
+  public interface SearchHandler {
+    /**
+     * Called for each file or directory matching a term, possibly before all the matches of other terms.
+     *
+     * @param term
+     *          the search term as given
+     * @param row
+     *          the directory table row of the match
+     */
+    void match(String term, String row) throws Exception;
+  }
+
+  // a term looked up by a prefix of the name index, with the pattern its names must also match when the wild card is in the middle
+  private static class PrefixTerm {
+    final String term;
+    final Pattern pattern;
+
+    PrefixTerm(String term, Pattern pattern) {
+      this.term = term;
+      this.pattern = pattern;
+    }
+  }
+
+  private static Text indexPrefix(Text prefix, String part, boolean reverse) {
+    if (part.length() == 0)
+      return new Text(prefix);
+    return reverse ? getReverseIndex(part) : getForwardIndex(part);
+  }
+
+  /**
+   * Looks up many names at once in the index table. Each term is an exact name or has a single wild card '*', as for {@link #singleWildCardSearch(String)}.
+   * The ranges of all the terms are read by one {@link BatchScanner}, and each entry found is handed to the terms whose range holds it, so the matches of a
+   * term arrive as they are found rather than in order.
+   *
+   * @param terms
+   *          the names to search for
+   * @param numThreads
+   *          the number of threads of the batch scanner
+   * @param handler
+   *          receives each match with its term
+   * @return the number of matches
+   */
+  public long batchSearch(Collection<String> terms, int numThreads, SearchHandler handler) throws Exception {
+    Map<Text,List<String>> exact = new HashMap<>();
+    Map<Text,List<PrefixTerm>> prefixes = new HashMap<>();
+    Set<Integer> prefixLengths = new TreeSet<>();
+    List<Range> ranges = new ArrayList<>();
+    for (String term : terms) {
+      if (term.length() == 0 || term.indexOf("/") >= 0)
+        throw new IllegalArgumentException("this method only works with unqualified names: " + term);
+      int starIndex = term.indexOf("*");
+      if (starIndex < 0) {
+        Text row = getForwardIndex(term);
+        exact.computeIfAbsent(row, k -> new ArrayList<>()).add(term);
+        ranges.add(new Range(row));
+        continue;
+      }
+      if (term.indexOf("*", starIndex + 1) >= 0)
+        throw new IllegalArgumentException("only one wild card for search: " + term);
+      String firstPart = term.substring(0, starIndex);
+      String lastPart = term.substring(starIndex + 1);
+      Pattern pattern = null;
+      if (firstPart.length() > 0 && lastPart.length() > 0)
+        pattern = Pattern.compile(Pattern.quote(firstPart) + ".*" + Pattern.quote(lastPart));
+      // as for a single search, the longer part narrows the range the most
+      Text prefix = firstPart.length() >= lastPart.length() ? indexPrefix(FORWARD_PREFIX, firstPart, false) : indexPrefix(REVERSE_PREFIX, lastPart, true);
+      prefixes.computeIfAbsent(prefix, k -> new ArrayList<>()).add(new PrefixTerm(term, pattern));
+      prefixLengths.add(prefix.getLength());
+      ranges.add(Range.prefix(prefix));
+    }
+    if (ranges.isEmpty())
+      return 0;
+
+    long matches = 0;
+    BatchScanner bs = conn.createBatchScanner(tableName, auths, numThreads);
+    try {
+      bs.setRanges(ranges);
+      Text row = new Text();
+      Text prefix = new Text();
+      for (Entry<Key,Value> e : bs) {
+        e.getKey().getRow(row);
+        String dirRow = e.getKey().getColumnQualifier().toString();
+        List<String> exactTerms = exact.get(row);
+        if (exactTerms != null) {
+          for (String term : exactTerms)
+            handler.match(term, dirRow);
+          matches += exactTerms.size();
+        }
+        // the terms whose range holds the row are those whose prefix is a prefix of the row
+        for (int length : prefixLengths) {
+          if (length > row.getLength())
+            break;
+          prefix.set(row.getBytes(), 0, length);
+          List<PrefixTerm> prefixTerms = prefixes.get(prefix);
+          if (prefixTerms == null)
+            continue;
+          String name = null;
+          for (PrefixTerm t : prefixTerms) {
+            if (t.pattern != null) {
+              if (name == null)
+                name = dirRow.substring(dirRow.lastIndexOf("/") + 1);
+              if (!t.pattern.matcher(name).matches())
+                continue;
+            }
+            handler.match(t.term, dirRow);
+            matches++;
+          }
+        }
+      }
+    } finally {
+      bs.close();
+    }
+    return matches;
+  }
+
   public static class Opts extends ClientOnRequiredTable {
     @Parameter(names = "--path", description = "the directory to list")
     String path = "/";
     @Parameter(names = "--search", description = "find a file or directory with the given name")
     boolean search = false;
+    @Parameter(names = "--ngrams", description = "search with the trigram index written by Ingest --ngramPartitions, which allows several wild cards")
+    boolean ngrams = false;
+    @Parameter(names = "--termFile", description = "search for each name or single wild card term in this file, one per line, in one batch")
+    String termFile = null;
+    @Parameter(names = "--pageSize", description = "list the directory a page of this many entries at a time")
+    int pageSize = 0;
+    @Parameter(names = "--after", description = "list the directory from after the entry with this name")
+    String after = null;
+    @Parameter(names = "--attributes", description = "the comma separated attributes to list, e.g. length,lastmod")
+    String attributes = null;
+  }
+
+  private static String[] attributes(Opts opts) {
+    return opts.attributes == null ? new String[0] : opts.attributes.split(",");
   }
 
   /**
@@ -264,12 +621,49 @@ public class QueryUtil {
    */
   public static void main(String[] args) throws Exception {
     Opts opts = new Opts();
-    opts.parseArgs(QueryUtil.class.getName(), args);
+    BatchScannerOpts bsOpts = new BatchScannerOpts();
+    opts.parseArgs(QueryUtil.class.getName(), args, bsOpts);
     QueryUtil q = new QueryUtil(opts);
-    if (opts.search) {
+    // exact names, prefixes and suffixes are single ranges of the name indexes, and anything else the trigram index can narrow down goes to it
+    int starIndex = opts.path.indexOf("*");
+    boolean restricted = starIndex < 0 || (opts.path.indexOf("*", starIndex + 1) < 0 && (starIndex == 0 || starIndex == opts.path.length() - 1));
+    if (opts.termFile != null) {
+      List<String> terms = Files.readAllLines(Paths.get(opts.termFile));
+      terms.removeIf(String::isEmpty);
+      Map<String,List<String>> results = new TreeMap<>();
+      long t1 = System.currentTimeMillis();
+      long matches = q.batchSearch(terms, bsOpts.scanThreads, (term, row) -> results.computeIfAbsent(term, k -> new ArrayList<>()).add(row));
+      long t2 = System.currentTimeMillis();
+      for (Entry<String,List<String>> e : results.entrySet()) {
+        System.out.println(e.getKey());
+        for (String row : e.getValue())
+          System.out.println("  " + row);
+      }
+      System.out.printf("Terms      : %,d%n", terms.size());
+      System.out.printf("Matches    : %,d%n", matches);
+      System.out.printf("Time       : %,d ms%n", (t2 - t1));
+      System.out.printf("Throughput : %,.0f lookups/s%n", terms.size() / (Math.max(1, t2 - t1) / 1000.0));
+    } else if (opts.search && opts.ngrams && !restricted && NGramIndex.canSearch(opts.path)) {
+      System.out.println("executing trigram search for " + opts.path);
+      BatchScanner bs = NGramIndex.search(q.conn, opts.getTableName(), opts.auths, bsOpts.scanThreads, opts.path);
+      bs.setTimeout(bsOpts.scanTimeout, TimeUnit.MILLISECONDS);
+      for (Entry<Key,Value> e : bs) {
+        System.out.println(e.getKey().getColumnQualifier());
+      }
+      bs.close();
+    } else if (opts.search) {
       for (Entry<Key,Value> e : q.singleWildCardSearch(opts.path)) {
         System.out.println(e.getKey().getColumnQualifier());
       }
+    } else if (opts.pageSize > 0) {
+      DirPage page = q.getDirPage(opts.path, opts.after, opts.pageSize, attributes(opts));
+      for (DirEntry e : page.getEntries())
+        System.out.println(e.getName() + "=" + e.getData());
+      if (page.getContinuation() != null)
+        System.out.println("more entries after " + page.getContinuation());
+    } else if (opts.after != null || opts.attributes != null) {
+      for (DirEntry e : q.listDir(opts.path, opts.after, 0, attributes(opts)))
+        System.out.println(e.getName() + "=" + e.getData());
     } else {
       for (Entry<String,Map<String,String>> e : q.getDirList(opts.path).entrySet()) {
         System.out.println(e);
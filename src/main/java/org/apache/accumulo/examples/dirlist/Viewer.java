@@ -17,16 +17,21 @@
 package org.apache.accumulo.examples.dirlist;
 
 import java.awt.BorderLayout;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
 import javax.swing.JTree;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TreeExpansionEvent;
 import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeSelectionEvent;
@@ -53,6 +58,7 @@ public class Viewer extends JFrame implements TreeSelectionListener, TreeExpansi
   DefaultTreeModel treeModel;
   QueryUtil q;
   FileDataQuery fdq;
+  ViewerModel model;
   String topPath;
   Map<String,DefaultMutableTreeNode> nodeNameMap;
   JTextArea text;
@@ -105,32 +111,68 @@ public class Viewer extends JFrame implements TreeSelectionListener, TreeExpansi
     setDefaultCloseOperation(EXIT_ON_CLOSE);
     q = new QueryUtil(opts);
     fdq = new FileDataQuery(opts.getConnector(), opts.dataTable, opts.auths);
+    model = new ViewerModel(q, fdq, opts.cacheSize, 10000, opts.loadThreads);
     this.topPath = opts.path;
   }
 
+  private void addChildren(DefaultMutableTreeNode node, Map<String,Map<String,String>> listing) {
+    for (Entry<String,Map<String,String>> e : listing.entrySet()) {
+      log.debug("got child for " + node.getUserObject() + ": " + e.getKey());
+      node.add(new DefaultMutableTreeNode(new NodeInfo(e.getKey(), e.getValue())));
+    }
+  }
+
   public void populate(DefaultMutableTreeNode node) throws TableNotFoundException {
     String path = ((NodeInfo) node.getUserObject()).getFullName();
     log.debug("listing " + path);
-    for (Entry<String,Map<String,String>> e : q.getDirList(path).entrySet()) {
-      log.debug("got child for " + node.getUserObject() + ": " + e.getKey());
-      node.add(new DefaultMutableTreeNode(new NodeInfo(e.getKey(), e.getValue())));
+    try {
+      addChildren(node, model.getListing(path).get());
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException("Could not list " + path, e);
     }
   }
 
-  public void populateChildren(DefaultMutableTreeNode node) throws TableNotFoundException {
+  /**
+   * Lists the subdirectories of a node in the background, with one batch scan for those not cached, and adds their children to the tree on the event thread.
+   * Then starts loading the subdirectories of those, which a further expansion would list.
+   */
+  public void populateChildren(DefaultMutableTreeNode node) {
+    final Map<String,DefaultMutableTreeNode> toList = new HashMap<>();
     @SuppressWarnings("unchecked")
     Enumeration<DefaultMutableTreeNode> children = node.children();
     while (children.hasMoreElements()) {
-      populate(children.nextElement());
+      DefaultMutableTreeNode child = children.nextElement();
+      NodeInfo info = (NodeInfo) child.getUserObject();
+      if (child.getChildCount() == 0 && ViewerModel.isDir(info.getData()))
+        toList.put(info.getFullName(), child);
     }
+    Map<String,CompletableFuture<Map<String,Map<String,String>>>> listings = model.getListings(toList.keySet());
+    for (Entry<String,CompletableFuture<Map<String,Map<String,String>>>> e : listings.entrySet()) {
+      final DefaultMutableTreeNode child = toList.get(e.getKey());
+      e.getValue().whenComplete((listing, exception) -> SwingUtilities.invokeLater(() -> {
+        if (exception != null) {
+          log.error("Could not list " + e.getKey(), exception);
+        } else if (child.getChildCount() == 0 && child.getParent() != null) {
+          addChildren(child, listing);
+          treeModel.nodeStructureChanged(child);
+        }
+      }));
+    }
+    // the subdirectories of all the children are prefetched together, as one batch
+    CompletableFuture.allOf(listings.values().toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+      List<String> subdirs = new ArrayList<>();
+      for (CompletableFuture<Map<String,Map<String,String>>> listing : listings.values())
+        subdirs.addAll(ViewerModel.getSubdirs(listing.join()));
+      model.prefetch(subdirs);
+    });
   }
 
   public void init() throws TableNotFoundException {
     DefaultMutableTreeNode root = new DefaultMutableTreeNode(new NodeInfo(topPath, q.getData(topPath)));
     populate(root);
-    populateChildren(root);
 
     treeModel = new DefaultTreeModel(root);
+    populateChildren(root);
     tree = new JTree(treeModel);
     tree.addTreeExpansionListener(this);
     tree.addTreeSelectionListener(this);
@@ -163,11 +205,7 @@ public class Viewer extends JFrame implements TreeSelectionListener, TreeExpansi
 
   @Override
   public void treeExpanded(TreeExpansionEvent event) {
-    try {
-      populateChildren((DefaultMutableTreeNode) event.getPath().getLastPathComponent());
-    } catch (TableNotFoundException e) {
-      log.error("Could not find table.", e);
-    }
+    populateChildren((DefaultMutableTreeNode) event.getPath().getLastPathComponent());
   }
 
   @Override
@@ -187,23 +225,27 @@ public class Viewer extends JFrame implements TreeSelectionListener, TreeExpansi
     TreePath selected = e.getNewLeadSelectionPath();
     if (selected == null)
       return;
-    DefaultMutableTreeNode node = (DefaultMutableTreeNode) selected.getLastPathComponent();
+    final DefaultMutableTreeNode node = (DefaultMutableTreeNode) selected.getLastPathComponent();
     text.setText(getText(node));
-    try {
-      String hash = ((NodeInfo) node.getUserObject()).getHash();
-      if (hash != null) {
-        data.setText(fdq.getSomeData(hash, 10000));
-      } else {
-        data.setText("");
-      }
-    } catch (IOException e1) {
-      log.error("Could not get data from FileDataQuery.", e1);
+    data.setText("");
+    String hash = ((NodeInfo) node.getUserObject()).getHash();
+    if (hash != null) {
+      model.getPreview(hash).whenComplete((preview, exception) -> SwingUtilities.invokeLater(() -> {
+        if (exception != null)
+          log.error("Could not get data from FileDataQuery.", exception);
+        else if (tree.getLastSelectedPathComponent() == node)
+          data.setText(preview);
+      }));
     }
   }
 
   static class Opts extends QueryUtil.Opts {
     @Parameter(names = "--dataTable")
     String dataTable = "dataTable";
+    @Parameter(names = "--cacheSize", description = "the number of directory listings and file previews cached")
+    int cacheSize = 1000;
+    @Parameter(names = "--loadThreads", description = "the number of threads loading listings and previews in the background")
+    int loadThreads = 2;
   }
 
   public static void main(String[] args) throws Exception {
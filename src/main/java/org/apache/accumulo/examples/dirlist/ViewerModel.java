@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.accumulo.examples.filedata.FileDataQuery;
+
+/**
+ * Loads what the {@link Viewer} shows, off the Swing event thread. Directory listings and previews of file data are read on background threads and kept in
+ * bounded least recently used caches, so going back to a directory or file costs no scan. The listings of several directories asked for together are read
+ * with one batch scan. Nothing here depends on Swing, so it can be used and tested without a display.
+ */
+public class ViewerModel {
+
+  private final QueryUtil q;
+  private final FileDataQuery fdq;
+  private final int previewSize;
+  private final int scanThreads;
+  private final ExecutorService loader;
+
+  // guarded by this
+  private final Map<String,Map<String,Map<String,String>>> listings;
+  private final Map<String,String> previews;
+  private final Map<String,CompletableFuture<Map<String,Map<String,String>>>> pendingListings = new HashMap<>();
+  private final Map<String,CompletableFuture<String>> pendingPreviews = new HashMap<>();
+
+  private final AtomicLong listingScans = new AtomicLong();
+
+  /**
+   * @param q
+   *          reads the directory table
+   * @param fdq
+   *          reads the data table, or null if there is no file data to preview
+   * @param cacheSize
+   *          the number of listings, and separately of previews, that are cached
+   * @param previewSize
+   *          the number of bytes of a file to preview
+   * @param numThreads
+   *          the number of background threads loading listings and previews, and of the threads of each batch scan
+   */
+  public ViewerModel(QueryUtil q, FileDataQuery fdq, final int cacheSize, int previewSize, int numThreads) {
+    if (cacheSize < 1)
+      throw new IllegalArgumentException("cache size must be positive");
+    this.q = q;
+    this.fdq = fdq;
+    this.previewSize = previewSize;
+    this.scanThreads = numThreads;
+    this.loader = Executors.newFixedThreadPool(numThreads, r -> {
+      Thread t = new Thread(r, "viewer loader");
+      t.setDaemon(true);
+      return t;
+    });
+    this.listings = lruMap(cacheSize);
+    this.previews = lruMap(cacheSize);
+  }
+
+  private static <V> Map<String,V> lruMap(final int maxSize) {
+    return new LinkedHashMap<String,V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String,V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return true if the attributes of an entry, as given in a listing, are those of a directory
+   */
+  public static boolean isDir(Map<String,String> data) {
+    for (String key : data.keySet())
+      if (key.startsWith("dir:"))
+        return true;
+    return false;
+  }
+
+  /**
+   * @return the listing of a directory, in the form given by {@link QueryUtil#getDirList(String)}, completing once it is loaded
+   */
+  public CompletableFuture<Map<String,Map<String,String>>> getListing(String path) {
+    return getListings(Collections.singletonList(path)).get(path);
+  }
+
+  /**
+   * Gets the listings of several directories. Those not cached or already loading are read together with one batch scan.
+   *
+   * @return the listing of each directory, completing once it is loaded
+   */
+  public Map<String,CompletableFuture<Map<String,Map<String,String>>>> getListings(Collection<String> paths) {
+    Map<String,CompletableFuture<Map<String,Map<String,String>>>> results = new HashMap<>();
+    // in the order asked for, which is the order they are cached in
+    final Map<String,CompletableFuture<Map<String,Map<String,String>>>> toLoad = new LinkedHashMap<>();
+    synchronized (this) {
+      for (String path : paths) {
+        Map<String,Map<String,String>> listing = listings.get(path);
+        CompletableFuture<Map<String,Map<String,String>>> future;
+        if (listing != null) {
+          future = CompletableFuture.completedFuture(listing);
+        } else {
+          future = pendingListings.get(path);
+          if (future == null) {
+            future = new CompletableFuture<>();
+            pendingListings.put(path, future);
+            toLoad.put(path, future);
+          }
+        }
+        results.put(path, future);
+      }
+    }
+    if (!toLoad.isEmpty())
+      loader.execute(() -> loadListings(toLoad));
+    return results;
+  }
+
+  /**
+   * Starts loading the listings of directories likely to be opened next, e.g. the subdirectories of those just shown, unless they are cached or loading.
+   */
+  public void prefetch(Collection<String> paths) {
+    getListings(paths);
+  }
+
+  private void loadListings(Map<String,CompletableFuture<Map<String,Map<String,String>>>> toLoad) {
+    Map<String,Map<String,Map<String,String>>> loaded;
+    try {
+      listingScans.incrementAndGet();
+      loaded = q.getDirLists(toLoad.keySet(), scanThreads);
+    } catch (Exception e) {
+      synchronized (this) {
+        pendingListings.keySet().removeAll(toLoad.keySet());
+      }
+      for (CompletableFuture<Map<String,Map<String,String>>> future : toLoad.values())
+        future.completeExceptionally(e);
+      return;
+    }
+    synchronized (this) {
+      for (String path : toLoad.keySet()) {
+        listings.put(path, loaded.get(path));
+        pendingListings.remove(path);
+      }
+    }
+    for (Entry<String,CompletableFuture<Map<String,Map<String,String>>>> e : toLoad.entrySet())
+      e.getValue().complete(loaded.get(e.getKey()));
+  }
+
+  /**
+   * @return the first bytes of the file with the given hash, completing once they are loaded
+   */
+  public CompletableFuture<String> getPreview(final String hash) {
+    final CompletableFuture<String> future;
+    synchronized (this) {
+      String preview = previews.get(hash);
+      if (preview != null)
+        return CompletableFuture.completedFuture(preview);
+      CompletableFuture<String> pending = pendingPreviews.get(hash);
+      if (pending != null)
+        return pending;
+      future = new CompletableFuture<>();
+      pendingPreviews.put(hash, future);
+    }
+    loader.execute(() -> {
+      String preview;
+      try {
+        if (fdq == null) {
+          preview = "";
+        } else {
+          // the query reuses one scanner, so previews are read one at a time
+          synchronized (fdq) {
+            preview = fdq.getSomeData(hash, previewSize);
+          }
+        }
+      } catch (Exception e) {
+        synchronized (this) {
+          pendingPreviews.remove(hash);
+        }
+        future.completeExceptionally(e);
+        return;
+      }
+      synchronized (this) {
+        previews.put(hash, preview);
+        pendingPreviews.remove(hash);
+      }
+      future.complete(preview);
+    });
+    return future;
+  }
+
+  /**
+   * @return the paths of the subdirectories in a listing
+   */
+  public static List<String> getSubdirs(Map<String,Map<String,String>> listing) {
+    List<String> subdirs = new ArrayList<>();
+    for (Map<String,String> data : listing.values())
+      if (isDir(data))
+        subdirs.add(data.get("fullname"));
+    return subdirs;
+  }
+
+  /**
+   * @return the number of batch scans run to load listings
+   */
+  public long getListingScans() {
+    return listingScans.get();
+  }
+
+  /**
+   * Stops the background threads.
+   */
+  public void close() {
+    loader.shutdownNow();
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+/**
+ * The compression applied to the values of the chunks of a file. Chunks written with a codec other than {@link #NONE} carry its id as a ninth byte of the
+ * chunk column qualifier, after the chunk size and chunk number; uncompressed chunks keep the original eight byte qualifier. The chunk size in the qualifier
+ * is always the uncompressed size.
+ */
+public enum ChunkCodec {
+  NONE(0), DEFLATE(1);
+
+  private final byte id;
+
+  ChunkCodec(int id) {
+    this.id = (byte) id;
+  }
+
+  public byte getId() {
+    return id;
+  }
+
+  public static ChunkCodec fromId(int id) {
+    for (ChunkCodec codec : values())
+      if (codec.id == id)
+        return codec;
+    throw new IllegalArgumentException("unknown chunk codec " + id);
+  }
+}
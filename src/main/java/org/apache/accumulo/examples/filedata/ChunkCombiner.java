@@ -19,8 +19,10 @@ package org.apache.accumulo.examples.filedata;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.PartialKey;
@@ -51,6 +53,11 @@ import org.apache.hadoop.io.Text;
  * </pre>
  *
  * {@link VisibilityCombiner} is used to combie the visibilities.
+ *
+ * The combined visibility of each row is kept in a least recently used cache of {@value #DEFAULT_CACHE_SIZE} rows, or the number set by the cacheSize option.
+ * The cache lasts as long as the iterator, so a batch scan that seeks back and forth between the ranges of the same files only reads their refs once.
+ *
+ * The top key and value are reused for each entry, as in other iterators, so callers must copy them to keep them past a call to next or seek.
  */
 
 public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
@@ -58,7 +65,24 @@ public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
   private SortedKeyValueIterator<Key,Value> source;
   private SortedKeyValueIterator<Key,Value> refsSource;
   private static final Collection<ByteSequence> refsColf = Collections.singleton(FileDataIngest.REFS_CF_BS);
-  private Map<Text,byte[]> lastRowVC = Collections.emptyMap();
+
+  public static final String CACHE_SIZE_OPTION = "cacheSize";
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+
+  // cached for rows without refs, whose chunks are dropped
+  private static final byte[] NO_REFS = new byte[0];
+
+  private Map<String,String> options;
+  private Map<Text,byte[]> rowVisCache;
+  private final Text row = new Text();
+  private final VisibilityCombiner visibilityCombiner = new VisibilityCombiner();
+
+  private long refsSeeks = 0;
+  private long chunksReturned = 0;
+
+  // reused for each top key and value, which share the arrays of the source's keys and values rather than copying them
+  private final MutableKey topKeyHolder = new MutableKey();
+  private final Value topValueHolder = new Value();
 
   private Key topKey = null;
   private Value topValue = null;
@@ -69,6 +93,49 @@ public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
   public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
     this.source = source;
     this.refsSource = source.deepCopy(env);
+    this.options = options;
+
+    final int cacheSize;
+    if (options != null && options.containsKey(CACHE_SIZE_OPTION))
+      cacheSize = Integer.parseInt(options.get(CACHE_SIZE_OPTION));
+    else
+      cacheSize = DEFAULT_CACHE_SIZE;
+    if (cacheSize < 1)
+      throw new IllegalArgumentException("invalid option " + CACHE_SIZE_OPTION + ":" + cacheSize);
+    rowVisCache = new LinkedHashMap<Text,byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Text,byte[]> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * A convenience method for setting the number of rows whose combined visibility is cached
+   *
+   * @param iterConfig
+   *          Iterator settings to configure
+   * @param rows
+   *          The number of rows to cache.
+   */
+  public static void setCacheSize(IteratorSetting iterConfig, int rows) {
+    iterConfig.addOption(CACHE_SIZE_OPTION, rows + "");
+  }
+
+  /**
+   * @return the number of times the refs of a row were read to combine their visibilities
+   */
+  public long getRefsSeeks() {
+    return refsSeeks;
+  }
+
+  /**
+   * @return the number of chunks returned with a combined visibility
+   */
+  public long getChunksReturned() {
+    return chunksReturned;
   }
 
   @Override
@@ -91,18 +158,23 @@ public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
     do {
       topKey = null;
       topValue = null;
-    } while (source.hasTop() && _findTop() == null);
+    } while (source.hasTop() && !_findTop());
   }
 
-  private byte[] _findTop() throws IOException {
+  /**
+   * @return false if the entry found was a chunk without refs, which is dropped
+   */
+  private boolean _findTop() throws IOException {
     long maxTS;
 
-    topKey = new Key(source.getTopKey());
-    topValue = new Value(source.getTopValue());
+    topKeyHolder.set(source.getTopKey());
+    topValueHolder.set(source.getTopValue().get());
+    topKey = topKeyHolder;
+    topValue = topValueHolder;
     source.next();
 
     if (!topKey.getColumnFamilyData().equals(FileDataIngest.CHUNK_CF_BS))
-      return topKey.getColumnVisibility().getBytes();
+      return true;
 
     maxTS = topKey.getTimestamp();
 
@@ -117,31 +189,35 @@ public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
     }
 
     byte[] vis = getVisFromRefs();
-    if (vis != null) {
-      topKey = new Key(topKey.getRowData().toArray(), topKey.getColumnFamilyData().toArray(), topKey.getColumnQualifierData().toArray(), vis, maxTS);
-    }
-    return vis;
+    if (vis == null)
+      return false;
+    topKeyHolder.setColumnVisibility(vis);
+    topKeyHolder.setTimestamp(maxTS);
+    chunksReturned++;
+    return true;
   }
 
   private byte[] getVisFromRefs() throws IOException {
-    Text row = topKey.getRow();
-    if (lastRowVC.containsKey(row))
-      return lastRowVC.get(row);
-    Range range = new Range(row);
-    refsSource.seek(range, refsColf, true);
-    VisibilityCombiner vc = null;
+    topKey.getRow(row);
+    byte[] vis = rowVisCache.get(row);
+    if (vis == null) {
+      vis = readVisFromRefs();
+      rowVisCache.put(new Text(row), vis);
+    }
+    return vis == NO_REFS ? null : vis;
+  }
+
+  private byte[] readVisFromRefs() throws IOException {
+    refsSeeks++;
+    refsSource.seek(new Range(row), refsColf, true);
+    visibilityCombiner.clear();
+    boolean found = false;
     while (refsSource.hasTop()) {
-      if (vc == null)
-        vc = new VisibilityCombiner();
-      vc.add(refsSource.getTopKey().getColumnVisibilityData());
+      visibilityCombiner.add(refsSource.getTopKey().getColumnVisibilityData());
+      found = true;
       refsSource.next();
     }
-    if (vc == null) {
-      lastRowVC = Collections.singletonMap(row, null);
-      return null;
-    }
-    lastRowVC = Collections.singletonMap(row, vc.get());
-    return vc.get();
+    return found ? visibilityCombiner.get() : NO_REFS;
   }
 
   private String diffInfo(Value v1, Value v2) {
@@ -175,10 +251,19 @@ public class ChunkCombiner implements SortedKeyValueIterator<Key,Value> {
   public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
     ChunkCombiner cc = new ChunkCombiner();
     try {
-      cc.init(source.deepCopy(env), null, env);
+      cc.init(source.deepCopy(env), options, env);
     } catch (IOException e) {
       throw new IllegalArgumentException(e);
     }
     return cc;
   }
+
+  /**
+   * A key whose visibility can be replaced, so the combined visibility is set without building a new key for each chunk.
+   */
+  private static class MutableKey extends Key {
+    void setColumnVisibility(byte[] cv) {
+      colVisibility = cv;
+    }
+  }
 }
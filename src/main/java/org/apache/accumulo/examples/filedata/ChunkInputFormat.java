@@ -24,6 +24,7 @@ import java.util.Map.Entry;
 
 import org.apache.accumulo.core.client.mapreduce.InputFormatBase;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.util.PeekingIterator;
 import org.apache.accumulo.core.util.format.DefaultFormatter;
@@ -34,6 +35,9 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 /**
  * An InputFormat that turns the file data ingested with {@link FileDataIngest} into an InputStream using {@link ChunkInputStream}. Mappers used with this
  * InputFormat must close the InputStream.
+ *
+ * Rows without chunks are skipped. For files ingested as content defined chunks, that means each chunk is presented as a file of its own, with the
+ * {@link FileDataIngest#REFS_CHUNK_OF} references of the chunk row as its key.
  */
 public class ChunkInputFormat extends InputFormatBase<List<Entry<Key,Value>>,InputStream> {
   @Override
@@ -57,6 +61,9 @@ public class ChunkInputFormat extends InputFormatBase<List<Entry<Key,Value>>,Inp
           ++numKeysRead;
           Entry<Key,Value> entry = peekingScannerIterator.peek();
           while (!entry.getKey().getColumnFamily().equals(FileDataIngest.CHUNK_CF)) {
+            // a new row started before any chunks were found
+            if (!currentK.isEmpty() && !entry.getKey().equals(currentK.get(0).getKey(), PartialKey.ROW))
+              currentK.clear();
             currentK.add(entry);
             peekingScannerIterator.next();
             if (!peekingScannerIterator.hasNext())
@@ -18,10 +18,14 @@ package org.apache.accumulo.examples.filedata;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Value;
@@ -32,21 +36,43 @@ import org.slf4j.LoggerFactory;
 
 /**
  * An input stream that reads file data stored in one or more Accumulo values. Used by {@link ChunkInputFormat} to present input streams to a mapper.
+ *
+ * A file stored as content defined chunks is read from a sequence of parts, one row per chunk, which are concatenated in order. Compressed chunks are
+ * decompressed into a buffer that is reused from one chunk to the next.
  */
 public class ChunkInputStream extends InputStream {
   private static final Logger log = LoggerFactory.getLogger(ChunkInputStream.class);
 
+  /**
+   * Supplies the rows holding the parts of a file, in order.
+   */
+  public interface PartSource {
+    /**
+     * @return the source for the next part, or null if there are no more parts
+     */
+    PeekingIterator<Entry<Key,Value>> nextPart() throws IOException;
+  }
+
   protected PeekingIterator<Entry<Key,Value>> source;
+  protected PartSource parts;
   protected Key currentKey;
   protected Set<Text> currentVis;
   protected int currentChunk;
   protected int currentChunkSize;
+  protected ChunkCodec currentCodec;
   protected boolean gotEndMarker;
 
   protected byte buf[];
   protected int count;
   protected int pos;
 
+  private Inflater inflater;
+  private byte[] decompressBuf;
+
+  // diagnostics, kept as counters rather than logged per call so that reading stays cheap
+  private long chunksRead = 0;
+  private long entriesSkipped = 0;
+
   public ChunkInputStream() {
     source = null;
   }
@@ -56,13 +82,50 @@ public class ChunkInputStream extends InputStream {
   }
 
   public void setSource(PeekingIterator<Entry<Key,Value>> in) throws IOException {
+    setSource(in, 0);
+  }
+
+  /**
+   * Reads a file starting part way through, at the given chunk. The source must be positioned at that chunk, for example by a scanner whose range starts
+   * there.
+   */
+  public void setSource(PeekingIterator<Entry<Key,Value>> in, int firstChunk) throws IOException {
     if (source != null)
       throw new IOException("setting new source without closing old one");
-    this.source = in;
+    parts = null;
     currentVis = new TreeSet<>();
+    open(in, firstChunk);
+  }
+
+  /**
+   * Reads a file made up of several parts. The visibilities returned by {@link #getVisibilities()} are those of all of the parts.
+   */
+  public void setSource(PartSource parts) throws IOException {
+    if (source != null)
+      throw new IOException("setting new source without closing old one");
+    currentVis = new TreeSet<>();
+    PeekingIterator<Entry<Key,Value>> first = parts.nextPart();
+    this.parts = parts;
+    open(first != null ? first : new PeekingIterator<>(Collections.<Entry<Key,Value>> emptyIterator()), 0);
+  }
+
+  private boolean nextPart() throws IOException {
+    if (parts == null)
+      return false;
+    PeekingIterator<Entry<Key,Value>> next = parts.nextPart();
+    if (next == null) {
+      parts = null;
+      return false;
+    }
+    log.debug("starting next part");
+    open(next, 0);
+    return true;
+  }
+
+  private void open(PeekingIterator<Entry<Key,Value>> in, int firstChunk) throws IOException {
+    this.source = in;
     count = pos = 0;
     if (!source.hasNext()) {
-      log.debug("source has no next");
       gotEndMarker = true;
       return;
     }
@@ -71,104 +134,166 @@ public class ChunkInputStream extends InputStream {
     Entry<Key,Value> entry = source.next();
     currentKey = entry.getKey();
     buf = entry.getValue().get();
-    while (!currentKey.getColumnFamily().equals(FileDataIngest.CHUNK_CF)) {
-      log.debug("skipping key: " + currentKey.toString());
+    while (!currentKey.getColumnFamilyData().equals(FileDataIngest.CHUNK_CF_BS)) {
+      entriesSkipped++;
       if (!source.hasNext())
         return;
       entry = source.next();
       currentKey = entry.getKey();
       buf = entry.getValue().get();
     }
-    log.debug("starting chunk: " + currentKey.toString());
-    count = buf.length;
+    log.debug("starting chunk: {}", currentKey);
     currentVis.add(currentKey.getColumnVisibility());
-    currentChunk = FileDataIngest.bytesToInt(currentKey.getColumnQualifier().getBytes(), 4);
-    currentChunkSize = FileDataIngest.bytesToInt(currentKey.getColumnQualifier().getBytes(), 0);
+    ByteSequence cq = currentKey.getColumnQualifierData();
+    currentChunk = intAt(cq, 4);
+    currentChunkSize = intAt(cq, 0);
     gotEndMarker = false;
     if (buf.length == 0)
       gotEndMarker = true;
-    if (currentChunk != 0) {
+    if (currentChunk != firstChunk) {
       source = null;
-      throw new IOException("starting chunk number isn't 0 for " + currentKey.getRow());
+      throw new IOException("starting chunk number isn't " + firstChunk + " for " + currentKey.getRow());
     }
+    try {
+      currentCodec = ChunkCodec.fromId(codecId(cq));
+    } catch (IllegalArgumentException e) {
+      source = null;
+      throw new IOException(e.getMessage() + " for " + currentKey.getRow());
+    }
+    count = decode(buf);
+    if (count > 0)
+      chunksRead++;
   }
 
-  private int fill() throws IOException {
-    if (source == null || !source.hasNext()) {
-      if (gotEndMarker)
-        return count = pos = 0;
-      else
-        throw new IOException("no end chunk marker but source has no data");
+  /**
+   * Points the buffer at the data of a chunk, decompressing it if needed.
+   *
+   * @return the number of bytes in the chunk
+   */
+  private int decode(byte[] value) throws IOException {
+    if (currentCodec == ChunkCodec.NONE || value.length == 0) {
+      buf = value;
+      return value.length;
+    }
+    if (inflater == null)
+      inflater = new Inflater();
+    if (decompressBuf == null || decompressBuf.length < currentChunkSize)
+      decompressBuf = new byte[currentChunkSize];
+    inflater.reset();
+    inflater.setInput(value);
+    int len = 0;
+    try {
+      while (!inflater.finished() && len < currentChunkSize) {
+        int n = inflater.inflate(decompressBuf, len, currentChunkSize - len);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        len += n;
+      }
+    } catch (DataFormatException e) {
+      String row = currentKey.getRow().toString();
+      clear();
+      throw new IOException("corrupt chunk " + currentChunk + " of " + row, e);
+    }
+    if (!inflater.finished()) {
+      String row = currentKey.getRow().toString();
+      clear();
+      throw new IOException("chunk " + currentChunk + " of " + row + " does not decompress to at most " + currentChunkSize + " bytes");
     }
+    buf = decompressBuf;
+    return len;
+  }
+
+  /**
+   * Moves to the next chunk of the current part.
+   *
+   * @return the number of bytes in the chunk, 0 at the end of the source, or -1 at the end of the row
+   */
+  private int fill() throws IOException {
+    while (true) {
+      if (source == null || !source.hasNext()) {
+        if (gotEndMarker)
+          return count = pos = 0;
+        else
+          throw new IOException("no end chunk marker but source has no data");
+      }
 
-    Entry<Key,Value> entry = source.peek();
-    Key thisKey = entry.getKey();
-    log.debug("evaluating key: " + thisKey.toString());
+      Entry<Key,Value> entry = source.peek();
+      Key thisKey = entry.getKey();
 
-    // check that we're still on the same row
-    if (!thisKey.equals(currentKey, PartialKey.ROW)) {
-      if (gotEndMarker)
-        return -1;
-      else {
-        String currentRow = currentKey.getRow().toString();
-        clear();
-        throw new IOException("got to the end of the row without end chunk marker " + currentRow);
+      // check that we're still on the same row
+      if (!thisKey.equals(currentKey, PartialKey.ROW)) {
+        if (gotEndMarker)
+          return -1;
+        else {
+          String currentRow = currentKey.getRow().toString();
+          clear();
+          throw new IOException("got to the end of the row without end chunk marker " + currentRow);
+        }
       }
-    }
-    log.debug("matches current key");
 
-    // ok to advance the iterator
-    source.next();
+      // ok to advance the iterator
+      source.next();
 
-    // check that this is part of a chunk
-    if (!thisKey.getColumnFamily().equals(FileDataIngest.CHUNK_CF)) {
-      log.debug("skipping non-chunk key");
-      return fill();
-    }
-    log.debug("is a chunk");
+      // check that this is part of a chunk
+      if (!thisKey.getColumnFamilyData().equals(FileDataIngest.CHUNK_CF_BS)) {
+        entriesSkipped++;
+        continue;
+      }
 
-    // check that the chunk size is the same as the one being read
-    if (currentChunkSize != FileDataIngest.bytesToInt(thisKey.getColumnQualifier().getBytes(), 0)) {
-      log.debug("skipping chunk of different size");
-      return fill();
-    }
+      // check that the chunk size and codec are the same as the ones being read
+      ByteSequence cq = thisKey.getColumnQualifierData();
+      if (currentChunkSize != intAt(cq, 0) || codecId(cq) != currentCodec.getId()) {
+        entriesSkipped++;
+        continue;
+      }
 
-    // add the visibility to the list if it's not there
-    if (!currentVis.contains(thisKey.getColumnVisibility()))
+      // add the visibility to the list if it's not there
       currentVis.add(thisKey.getColumnVisibility());
 
-    // check to see if it is an identical chunk with a different visibility
-    if (thisKey.getColumnQualifier().equals(currentKey.getColumnQualifier())) {
-      log.debug("skipping identical chunk with different visibility");
-      return fill();
-    }
+      // check to see if it is an identical chunk with a different visibility
+      if (cq.equals(currentKey.getColumnQualifierData())) {
+        entriesSkipped++;
+        continue;
+      }
 
-    if (gotEndMarker) {
-      log.debug("got another chunk after end marker: " + currentKey.toString() + " " + thisKey.toString());
-      clear();
-      throw new IOException("found extra chunk after end marker");
-    }
+      if (gotEndMarker) {
+        log.debug("got another chunk after end marker: {} {}", currentKey, thisKey);
+        clear();
+        throw new IOException("found extra chunk after end marker");
+      }
 
-    // got new chunk of the same file, check that it's the next chunk
-    int thisChunk = FileDataIngest.bytesToInt(thisKey.getColumnQualifier().getBytes(), 4);
-    if (thisChunk != currentChunk + 1) {
-      log.debug("new chunk same file, unexpected chunkID: " + currentKey.toString() + " " + thisKey.toString());
-      clear();
-      throw new IOException("missing chunks between " + currentChunk + " and " + thisChunk);
-    }
+      // got new chunk of the same file, check that it's the next chunk
+      int thisChunk = intAt(cq, 4);
+      if (thisChunk != currentChunk + 1) {
+        log.debug("new chunk same file, unexpected chunkID: {} {}", currentKey, thisKey);
+        clear();
+        throw new IOException("missing chunks between " + currentChunk + " and " + thisChunk);
+      }
 
-    currentKey = thisKey;
-    currentChunk = thisChunk;
-    buf = entry.getValue().get();
-    pos = 0;
+      currentKey = thisKey;
+      currentChunk = thisChunk;
+      pos = 0;
+      count = decode(entry.getValue().get());
 
-    // check to see if it's the last chunk
-    if (buf.length == 0) {
-      gotEndMarker = true;
-      return fill();
+      // check to see if it's the last chunk
+      if (count == 0) {
+        gotEndMarker = true;
+        continue;
+      }
+
+      chunksRead++;
+      return count;
     }
+  }
+
+  private static int intAt(ByteSequence bs, int offset) {
+    if (bs.length() < offset + 4)
+      throw new NumberFormatException("couldn't pull integer from bytes at offset " + offset);
+    return ((bs.byteAt(offset) & 255) << 24) + ((bs.byteAt(offset + 1) & 255) << 16) + ((bs.byteAt(offset + 2) & 255) << 8) + (bs.byteAt(offset + 3) & 255);
+  }
 
-    return count = buf.length;
+  private static byte codecId(ByteSequence cq) {
+    return cq.length() > 8 ? cq.byteAt(8) : ChunkCodec.NONE.getId();
   }
 
   public Set<Text> getVisibilities() {
@@ -177,17 +302,30 @@ public class ChunkInputStream extends InputStream {
     return currentVis;
   }
 
+  /**
+   * @return the number of chunks holding data read by this stream, over all of its sources
+   */
+  public long getChunksRead() {
+    return chunksRead;
+  }
+
+  /**
+   * @return the number of entries passed over by this stream, over all of its sources: non-chunk entries, chunks of another size or codec, and copies of a
+   *         chunk with another visibility
+   */
+  public long getEntriesSkipped() {
+    return entriesSkipped;
+  }
+
   @Override
   public int read() throws IOException {
+    if (pos < count)
+      return buf[pos++] & 0xff;
     if (source == null)
       return -1;
-    log.debug("pos: " + pos + " count: " + count);
-    if (pos >= count) {
-      if (fill() <= 0) {
-        log.debug("done reading input stream at key: " + (currentKey == null ? "null" : currentKey.toString()));
-        if (source != null && source.hasNext())
-          log.debug("next key: " + source.peek().getKey());
-        clear();
+    while (pos >= count) {
+      if (fill() <= 0 && !nextPart()) {
+        endOfStream();
         return -1;
       }
     }
@@ -204,46 +342,83 @@ public class ChunkInputStream extends InputStream {
       return 0;
     }
 
-    log.debug("filling buffer " + off + " " + len);
     int total = 0;
     while (total < len) {
       int avail = count - pos;
-      log.debug(avail + " available in current local buffer");
       if (avail <= 0) {
-        if (fill() <= 0) {
-          log.debug("done reading input stream at key: " + (currentKey == null ? "null" : currentKey.toString()));
-          if (source != null && source.hasNext())
-            log.debug("next key: " + source.peek().getKey());
-          clear();
-          log.debug("filled " + total + " bytes");
+        if (fill() <= 0 && !nextPart()) {
+          endOfStream();
           return total == 0 ? -1 : total;
         }
-        avail = count - pos;
+        continue;
       }
 
       int cnt = (avail < len - total) ? avail : len - total;
-      log.debug("copying from local buffer: local pos " + pos + " into pos " + off + " len " + cnt);
       System.arraycopy(buf, pos, b, off, cnt);
       pos += cnt;
       off += cnt;
       total += cnt;
     }
-    log.debug("filled " + total + " bytes");
     return total;
   }
 
+  private void endOfStream() {
+    if (log.isDebugEnabled()) {
+      log.debug("done reading input stream at key: {}", currentKey);
+      if (source != null && source.hasNext())
+        log.debug("next key: {}", source.peek().getKey());
+    }
+    clear();
+  }
+
+  /**
+   * Skips over data without copying it. Whole chunks are still read from the source; to skip them without reading them, see
+   * {@link SeekableChunkInputStream}.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    if (source == null || n <= 0)
+      return 0;
+    long skipped = 0;
+    while (skipped < n) {
+      if (pos >= count) {
+        if (fill() <= 0 && !nextPart()) {
+          clear();
+          break;
+        }
+        continue;
+      }
+      int cnt = (int) Math.min(count - pos, n - skipped);
+      pos += cnt;
+      skipped += cnt;
+    }
+    return skipped;
+  }
+
+  /**
+   * @return the number of bytes left in the current chunk
+   */
+  @Override
+  public int available() {
+    return source == null ? 0 : count - pos;
+  }
+
   public void clear() {
     source = null;
+    parts = null;
     buf = null;
     currentKey = null;
     currentChunk = 0;
     pos = count = 0;
   }
 
+  /**
+   * Reads through the rest of the file, over all of its parts, so that {@link #getVisibilities()} covers the whole file.
+   */
   @Override
   public void close() throws IOException {
     try {
-      while (fill() > 0) {}
+      while (fill() > 0 || nextPart()) {}
     } catch (IOException e) {
       clear();
       throw new IOException(e);
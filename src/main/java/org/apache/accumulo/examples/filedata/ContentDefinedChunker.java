@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.util.Random;
+
+/**
+ * Finds chunk boundaries based on file content, using the gear rolling hash and normalized chunking of FastCDC. Because a boundary depends only on the bytes
+ * just before it, inserting or removing data in one part of a file only changes the chunks around the edit, and the remaining chunks of two similar files are
+ * identical. Used by {@link FileDataIngest} to store chunks shared between files only once.
+ *
+ * Chunks are between a quarter of and four times the average size. Boundaries are harder to find before the average size and easier after it, which keeps
+ * most chunks close to the average.
+ */
+public class ContentDefinedChunker {
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // a fixed seed keeps chunk boundaries, and so the stored chunks, the same from one run to the next
+    Random random = new Random(1);
+    for (int i = 0; i < GEAR.length; i++)
+      GEAR[i] = random.nextLong();
+  }
+
+  private final int minSize;
+  private final int avgSize;
+  private final int maxSize;
+  private final long maskSmall;
+  private final long maskLarge;
+
+  /**
+   * @param avgSize
+   *          the average chunk size in bytes
+   */
+  public ContentDefinedChunker(int avgSize) {
+    if (avgSize < 64 || avgSize > Integer.MAX_VALUE / 4)
+      throw new IllegalArgumentException("invalid average chunk size " + avgSize);
+    this.avgSize = avgSize;
+    this.minSize = avgSize / 4;
+    this.maxSize = avgSize * 4;
+    int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+    // the high bits of the gear hash depend on the most bytes, so those are the ones tested
+    maskSmall = -1L << (64 - (bits + 1));
+    maskLarge = -1L << (64 - (bits - 1));
+  }
+
+  public int getAverageSize() {
+    return avgSize;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Finds the end of the chunk that starts at the given offset. If no boundary is found, the chunk ends at {@code len} or the maximum chunk size, whichever
+   * comes first, so callers should pass at least {@link #getMaxSize()} bytes unless they have reached the end of their data.
+   *
+   * @return the length of the chunk
+   */
+  public int nextChunkLength(byte[] b, int off, int len) {
+    if (len <= minSize)
+      return len;
+    int normal = Math.min(len, avgSize);
+    int end = Math.min(len, maxSize);
+    long hash = 0;
+    int i = minSize;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[b[off + i] & 0xff];
+      if ((hash & maskSmall) == 0)
+        return i + 1;
+    }
+    for (; i < end; i++) {
+      hash = (hash << 1) + GEAR[b[off + i] & 0xff];
+      if ((hash & maskLarge) == 0)
+        return i + 1;
+    }
+    return end;
+  }
+}
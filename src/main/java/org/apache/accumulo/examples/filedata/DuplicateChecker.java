@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Finds out whether the data of a file is already stored in the data table, by looking for the end of file marker that {@link FileDataIngest} writes after
+ * the last chunk of a file. The ingest threads ask about many files at once, and a background thread looks up everything asked for since its last lookup with
+ * one {@link BatchScanner}, so a busy ingest makes few large lookups.
+ *
+ * The data of a file may be asked about again before it has been written, e.g. when several copies of a file are ingested at the same time. The first to ask
+ * claims the hash and is told to write the data, and must then report the outcome with {@link #written(String)} or {@link #failed(String)}. The others wait
+ * for that outcome: they are told the data is stored once it is written, and if writing it failed, the next of them claims the hash and writes the data. The
+ * most recently written hashes are remembered too, as their data may not have been flushed to the table yet.
+ *
+ * A marker is only taken to be the end of file marker if its value is empty, as data chunks never are.
+ *
+ * The chunks of content defined chunking are checked the same way with {@link #areStored(List, List)}, by the marker written after each chunk, but many at a
+ * time and without claims: a caller waiting on another's claim while holding claims of its own could deadlock, so a chunk being written by another caller is
+ * written again, and the {@link ChunkCombiner} merges the copies.
+ */
+public class DuplicateChecker {
+
+  private static class Request {
+    final String hash;
+    final Text markerPrefix;
+    final CompletableFuture<Boolean> stored = new CompletableFuture<>();
+
+    Request(String hash, Text markerPrefix) {
+      this.hash = hash;
+      this.markerPrefix = markerPrefix;
+    }
+  }
+
+  // stops the lookup thread
+  private static final Request END = new Request(null, null);
+
+  private final Connector conn;
+  private final String tableName;
+  private final Authorizations auths;
+  private final int scanThreads;
+  private final LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+  private final Thread lookupThread;
+
+  // guarded by claimed; each claim completes with whether the data was written
+  private final Map<String,CompletableFuture<Boolean>> claimed = new HashMap<>();
+  private final Map<String,Boolean> recentlyWritten;
+
+  private final AtomicLong filesChecked = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong chunksChecked = new AtomicLong();
+  private final AtomicLong duplicateChunks = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+
+  /**
+   * @param auths
+   *          authorizations that can see the stored data; data that cannot be seen is written again
+   * @param scanThreads
+   *          the number of threads of each batch lookup
+   * @param maxRecent
+   *          the number of hashes of files recently written that are remembered
+   */
+  public DuplicateChecker(Connector conn, String tableName, Authorizations auths, int scanThreads, final int maxRecent) {
+    this.conn = conn;
+    this.tableName = tableName;
+    this.auths = auths;
+    this.scanThreads = scanThreads;
+    this.recentlyWritten = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String,Boolean> eldest) {
+        return size() > maxRecent;
+      }
+    };
+    lookupThread = new Thread(this::lookupLoop, "duplicate checker");
+    lookupThread.setDaemon(true);
+    lookupThread.start();
+  }
+
+  /**
+   * Checks whether the data of a file is stored, waiting for the lookup of the batch it is part of, and if another caller is writing the data, for the outcome.
+   *
+   * @param hash
+   *          the hash of the file
+   * @param markerPrefix
+   *          the start of the column qualifier of the end of file marker, see {@link FileDataIngest#endMarkerPrefix(long)}
+   * @return true if the data is stored, false if the caller has claimed the hash and should write the data, then call {@link #written(String)} or
+   *         {@link #failed(String)}
+   */
+  public boolean isStored(String hash, Text markerPrefix) throws Exception {
+    filesChecked.incrementAndGet();
+    Request request = new Request(hash, markerPrefix);
+    requests.add(request);
+    boolean stored = get(request.stored);
+    while (!stored) {
+      CompletableFuture<Boolean> claim;
+      synchronized (claimed) {
+        if (recentlyWritten.containsKey(hash))
+          break;
+        claim = claimed.get(hash);
+        if (claim == null) {
+          claimed.put(hash, new CompletableFuture<>());
+          return false;
+        }
+      }
+      // written by the claimant, or if it failed, claim the hash again
+      stored = get(claim);
+    }
+    duplicates.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Checks whether each of a list of chunks is stored, looking them up together. No claims are made; report each chunk written with {@link #written(String)},
+   * so it is known to be stored before it is flushed.
+   *
+   * @param hashes
+   *          the hashes of the chunks
+   * @param markerPrefixes
+   *          the start of the column qualifier of the marker after each chunk, see {@link FileDataIngest#chunkMarkerPrefix(int)}
+   * @return whether each chunk is stored, or was recently written
+   */
+  public boolean[] areStored(List<String> hashes, List<Text> markerPrefixes) throws Exception {
+    chunksChecked.addAndGet(hashes.size());
+    List<Request> batch = new ArrayList<>(hashes.size());
+    for (int i = 0; i < hashes.size(); i++)
+      batch.add(new Request(hashes.get(i), markerPrefixes.get(i)));
+    requests.addAll(batch);
+    boolean[] stored = new boolean[batch.size()];
+    for (int i = 0; i < stored.length; i++)
+      stored[i] = get(batch.get(i).stored);
+    synchronized (claimed) {
+      for (int i = 0; i < stored.length; i++) {
+        stored[i] |= recentlyWritten.containsKey(hashes.get(i));
+        if (stored[i])
+          duplicateChunks.incrementAndGet();
+      }
+    }
+    return stored;
+  }
+
+  private static boolean get(CompletableFuture<Boolean> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Reports that the data of a file claimed by {@link #isStored(String, Text)} was written, up to its end of file marker. Those waiting are told it is stored.
+   * Also reports a chunk written after {@link #areStored(List, List)}.
+   */
+  public void written(String hash) {
+    CompletableFuture<Boolean> claim;
+    synchronized (claimed) {
+      claim = claimed.remove(hash);
+      recentlyWritten.put(hash, Boolean.TRUE);
+    }
+    if (claim != null)
+      claim.complete(true);
+  }
+
+  /**
+   * Releases the claim on the data of a file that could not be written. One of those waiting claims it next.
+   */
+  public void failed(String hash) {
+    CompletableFuture<Boolean> claim;
+    synchronized (claimed) {
+      claim = claimed.remove(hash);
+    }
+    if (claim != null)
+      claim.complete(false);
+  }
+
+  private void lookupLoop() {
+    List<Request> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(requests.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      requests.drainTo(batch);
+      boolean end = batch.remove(END);
+      if (!batch.isEmpty())
+        lookup(batch);
+      batch.clear();
+      if (end)
+        return;
+    }
+  }
+
+  private void lookup(List<Request> batch) {
+    lookups.incrementAndGet();
+    Map<Text,List<Request>> byRow = new HashMap<>();
+    List<Range> ranges = new ArrayList<>();
+    for (Request r : batch) {
+      Text row = new Text(r.hash);
+      byRow.computeIfAbsent(row, k -> new ArrayList<>()).add(r);
+      // the qualifier may go on with the codec of the chunks
+      ranges.add(Range.prefix(row, FileDataIngest.CHUNK_CF, r.markerPrefix));
+    }
+    Set<Request> found = new HashSet<>();
+    BatchScanner bs = null;
+    try {
+      bs = conn.createBatchScanner(tableName, auths, scanThreads);
+      bs.setRanges(ranges);
+      Text row = new Text();
+      for (Entry<Key,Value> e : bs) {
+        Key k = e.getKey();
+        for (Request r : byRow.getOrDefault(k.getRow(row), Collections.emptyList())) {
+          Text cq = k.getColumnQualifier();
+          int len = r.markerPrefix.getLength();
+          // data chunks may share the prefix, but only the marker is empty
+          if (e.getValue().getSize() == 0 && cq.getLength() >= len
+              && WritableComparator.compareBytes(cq.getBytes(), 0, len, r.markerPrefix.getBytes(), 0, len) == 0)
+            found.add(r);
+        }
+      }
+    } catch (Exception e) {
+      for (Request r : batch)
+        r.stored.completeExceptionally(e);
+      return;
+    } finally {
+      if (bs != null)
+        bs.close();
+    }
+    for (Request r : batch)
+      r.stored.complete(found.contains(r));
+  }
+
+  /**
+   * Stops the lookup thread once the lookups asked for are done.
+   */
+  public void close() throws InterruptedException {
+    requests.add(END);
+    lookupThread.join();
+  }
+
+  /**
+   * @return the number of files checked
+   */
+  public long getFilesChecked() {
+    return filesChecked.get();
+  }
+
+  /**
+   * @return the number of files whose data was already stored, or written by another caller
+   */
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  /**
+   * @return the number of chunks checked
+   */
+  public long getChunksChecked() {
+    return chunksChecked.get();
+  }
+
+  /**
+   * @return the number of chunks that were already stored, or recently written
+   */
+  public long getDuplicateChunks() {
+    return duplicateChunks.get();
+  }
+
+  /**
+   * @return the number of batch lookups made
+   */
+  public long getLookups() {
+    return lookups.get();
+  }
+}
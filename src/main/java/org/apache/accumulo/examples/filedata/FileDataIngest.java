@@ -16,13 +16,24 @@
  */
 package org.apache.accumulo.examples.filedata;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.Connector;
@@ -33,6 +44,7 @@ import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.examples.cli.BatchScannerOpts;
 import org.apache.accumulo.examples.cli.BatchWriterOpts;
 import org.apache.accumulo.examples.cli.ClientOnRequiredTable;
 import org.apache.hadoop.io.Text;
@@ -47,19 +59,61 @@ public class FileDataIngest {
   public static final Text REFS_CF = new Text("refs");
   public static final String REFS_ORIG_FILE = "name";
   public static final String REFS_FILE_EXT = "filext";
+  public static final String REFS_CHUNK_OF = "chunkof";
+  public static final String REFS_HASH = "hash";
+  public static final Text MANIFEST_CF = new Text("~manifest");
+  // starts the rows of tree hashed files, which cannot start hex rows, so they never share a row with a file hashed as a whole
+  public static final String TREE_ROW_PREFIX = "t";
   public static final ByteSequence CHUNK_CF_BS = new ArrayByteSequence(CHUNK_CF.getBytes(), 0, CHUNK_CF.getLength());
   public static final ByteSequence REFS_CF_BS = new ArrayByteSequence(REFS_CF.getBytes(), 0, REFS_CF.getLength());
 
+  // space in a chunk mutation for everything but the value, so its buffer does not have to grow
+  private static final int MUTATION_OVERHEAD = 256;
+  // a mutation appends values smaller than this to its buffer and keeps a separate copy of larger ones
+  private static final int MUTATION_VALUE_CUTOFF = 1 << 15;
+  // manifest entries written per mutation
+  private static final int MANIFEST_BATCH = 1000;
+  // content defined chunks looked up at once by the duplicate checker, and the most chunk data held for one lookup
+  private static final int LOOKUP_BATCH = 256;
+  private static final int LOOKUP_BATCH_BYTES = 8 * 1024 * 1024;
+  private static final Value EMPTY_VALUE = new Value(new byte[0]);
+  // first bytes of the input of the leaf and root hashes of a tree, so neither can be given as the other
+  private static final byte TREE_LEAF_TAG = 0;
+  private static final byte TREE_ROOT_TAG = 1;
+
   int chunkSize;
   byte[] chunkSizeBytes;
   byte[] buf;
+  private ByteBuffer byteBuf;
+  private Value fullBufValue;
+  private byte[] chunkCQBytes = new byte[8];
+  private Text chunkCQ = new Text();
   MessageDigest md5digest;
+  private FileHash fileHash = FileHash.MD5;
+  private FileHash.Digest contentDigest = FileHash.MD5.newDigest();
+  private int treeLeafSize = 0;
   ColumnVisibility cv;
+  SpillBuffer spillBuffer = null;
+  long bytesIngested = 0;
+  long bytesRead = 0;
+  long bytesStored = 0;
+  long bytesDeduplicated = 0;
+  private DuplicateChecker duplicates = null;
+  private ChunkCodec codec = ChunkCodec.NONE;
+  private Deflater deflater;
+  private byte[] compressBuf;
+  private ContentDefinedChunker chunker = null;
+  private byte[] cdcBuf;
+  private ByteBuffer cdcByteBuf;
+  private FileHash.Digest chunkDigest;
 
   public FileDataIngest(int chunkSize, ColumnVisibility colvis) {
     this.chunkSize = chunkSize;
     chunkSizeBytes = intToBytes(chunkSize);
     buf = new byte[chunkSize];
+    byteBuf = ByteBuffer.wrap(buf);
+    fullBufValue = new Value(buf, false);
+    System.arraycopy(chunkSizeBytes, 0, chunkCQBytes, 0, 4);
     try {
       md5digest = MessageDigest.getInstance("MD5");
     } catch (NoSuchAlgorithmException e) {
@@ -68,32 +122,194 @@ public class FileDataIngest {
     cv = colvis;
   }
 
+  /**
+   * Enables single pass ingest. Each file is read once; its data is held in memory up to the given limit, with any remainder spilled to a temporary file in
+   * the given directory, until the hash that keys the chunks has been calculated.
+   *
+   * @param memoryLimit
+   *          the maximum number of bytes of a file to hold in memory
+   * @param spillDir
+   *          the directory for spill files, or null to use the default temporary directory
+   */
+  public void setSinglePass(long memoryLimit, File spillDir) {
+    spillBuffer = new SpillBuffer(chunkSize, memoryLimit, spillDir);
+  }
+
+  /**
+   * Enables content defined chunking. Instead of being cut every chunk size bytes, files are split where their content matches a pattern, which gives chunks
+   * averaging the chunk size. Each chunk is stored once in a row keyed by the hash of the chunk, referring back to the files it is part of, and the row of each
+   * file holds a manifest listing its chunks. Files that share content share chunks, even when the shared content is at different offsets in each file.
+   *
+   * Files are read only once in this mode, so single pass ingest is not needed. A chunk that appears more than once in a file is written once. With a
+   * {@link #setDuplicateChecker(DuplicateChecker) duplicate checker}, the chunks are looked up in batches as they are read, and only a reference is written
+   * for those already stored; without one, every chunk is written, and the copies only take less space once the table is compacted.
+   */
+  public void setContentDefinedChunking() {
+    chunker = new ContentDefinedChunker(chunkSize);
+    // room for two maximum size chunks, so the data is only moved to the front of the buffer about once per maximum chunk size
+    cdcBuf = new byte[chunker.getMaxSize() * 2];
+    cdcByteBuf = ByteBuffer.wrap(cdcBuf);
+    chunkDigest = fileHash.newDigest();
+  }
+
+  /**
+   * Sets the hash that keys the data of each file, and each chunk with content defined chunking. MD5 by default. The file names are still hashed with MD5 to
+   * make the ids of the references, so a file keeps its reference id whatever the hash of its data.
+   */
+  public void setHash(FileHash fileHash) {
+    this.fileHash = fileHash;
+    contentDigest = fileHash.newDigest();
+    if (chunkDigest != null)
+      chunkDigest = fileHash.newDigest();
+  }
+
+  /**
+   * Hashes files of at least two leaves as a tree: the leaves of the given size are hashed in parallel, and the hash of the file is the hash of the name of the
+   * tree hash followed by the hashes of the leaves in order. The leaf and root inputs start with different tag bytes, and the row of a tree hashed file is
+   * the hash prefixed with {@link #TREE_ROW_PREFIX}, so no file hashed as a whole can be given the row of a tree hashed one. The recorded name of the hash
+   * says it is a tree hash and gives the leaf size. The file is read again to write its chunks, so single pass ingest does not apply to these files. Not used
+   * with content defined chunking.
+   *
+   * @param leafSize
+   *          the size of the leaves, or 0 to hash every file as a whole
+   */
+  public void setTreeHashing(int leafSize) {
+    if (leafSize < 0)
+      throw new IllegalArgumentException("leaf size must not be negative");
+    treeLeafSize = leafSize;
+  }
+
+  /**
+   * @return the name of the hash of a file of the given length, as written to its references
+   */
+  public String getHashName(long length) {
+    if (useTree(length))
+      return fileHash.getName() + "-tree" + treeLeafSize;
+    return fileHash.getName();
+  }
+
+  private boolean useTree(long length) {
+    return treeLeafSize > 0 && chunker == null && length >= 2L * treeLeafSize;
+  }
+
+  /**
+   * Compresses the value of each chunk with the given codec. Reading the chunks back decompresses them transparently.
+   */
+  public void setCodec(ChunkCodec codec) {
+    this.codec = codec;
+    chunkCQBytes = new byte[codec == ChunkCodec.NONE ? 8 : 9];
+    System.arraycopy(chunkSizeBytes, 0, chunkCQBytes, 0, 4);
+    if (codec != ChunkCodec.NONE)
+      chunkCQBytes[8] = codec.getId();
+    if (codec == ChunkCodec.DEFLATE)
+      deflater = new Deflater(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * Skips writing the chunks of files whose data is already stored, which the checker finds by the end of file marker of the data. Only the references to
+   * such a file are written, and the {@link ChunkCombiner} makes the stored data visible to them. With content defined chunking, each chunk is checked by the
+   * marker written after it instead, and a chunk already stored only gets the reference to the file it is part of.
+   */
+  public void setDuplicateChecker(DuplicateChecker duplicates) {
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * @return the start of the column qualifier of the end of file marker for a file of the given length: the chunk size and the number of chunks
+   */
+  public Text endMarkerPrefix(long length) {
+    long chunkCount = (length + chunkSize - 1) / chunkSize;
+    if (chunkCount > Integer.MAX_VALUE)
+      throw new RuntimeException("too many chunks for a file of " + length + " bytes, try raising chunk size");
+    byte[] cq = new byte[8];
+    System.arraycopy(chunkSizeBytes, 0, cq, 0, 4);
+    System.arraycopy(intToBytes((int) chunkCount), 0, cq, 4, 4);
+    return new Text(cq);
+  }
+
+  /**
+   * @return the start of the column qualifier of the marker written after a content defined chunk of the given length: the length and the number 1
+   */
+  public Text chunkMarkerPrefix(int length) {
+    byte[] cq = new byte[8];
+    System.arraycopy(intToBytes(length), 0, cq, 0, 4);
+    System.arraycopy(intToBytes(1), 0, cq, 4, 4);
+    return new Text(cq);
+  }
+
+  /**
+   * @return the total size of the files ingested by this instance
+   */
+  public long getBytesIngested() {
+    return bytesIngested;
+  }
+
+  /**
+   * @return the number of bytes of chunk data written by this instance, after compression
+   */
+  public long getBytesStored() {
+    return bytesStored;
+  }
+
+  /**
+   * @return the total size of the files, or content defined chunks, ingested by this instance whose data was already stored, so it was not written
+   */
+  public long getBytesDeduplicated() {
+    return bytesDeduplicated;
+  }
+
+  /**
+   * @return the number of bytes read from disk by this instance, which is twice the size of the files ingested unless single pass ingest is enabled
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
   public String insertFileData(String filename, BatchWriter bw) throws MutationsRejectedException, IOException {
     if (chunkSize == 0)
       return "";
     md5digest.reset();
     String uid = hexString(md5digest.digest(filename.getBytes()));
+    if (chunker != null)
+      return insertContentDefinedChunks(filename, uid, bw);
+    if (spillBuffer == null)
+      return insertFixedChunks(filename, uid, bw);
+    try {
+      return insertFixedChunks(filename, uid, bw);
+    } finally {
+      // removes any spill file, whether or not the file was ingested
+      spillBuffer.reset();
+    }
+  }
 
+  private String insertFixedChunks(String filename, String uid, BatchWriter bw) throws MutationsRejectedException, IOException {
     // read through file once, calculating hashes
-    md5digest.reset();
-    InputStream fis = null;
-    int numRead = 0;
-    try {
-      fis = new FileInputStream(filename);
-      numRead = fis.read(buf);
-      while (numRead >= 0) {
-        if (numRead > 0) {
-          md5digest.update(buf, 0, numRead);
+    long length = 0;
+    String hash;
+    boolean buffered = false;
+    try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      length = channel.size();
+      if (useTree(length)) {
+        hash = TREE_ROW_PREFIX + hexString(treeHash(channel, length));
+        bytesIngested += length;
+        bytesRead += length;
+      } else {
+        length = 0;
+        buffered = spillBuffer != null;
+        contentDigest.reset();
+        int numRead;
+        while ((numRead = readChunk(channel)) > 0) {
+          contentDigest.update(buf, 0, numRead);
+          length += numRead;
+          bytesIngested += numRead;
+          bytesRead += numRead;
+          if (buffered)
+            spillBuffer.write(buf, 0, numRead);
         }
-        numRead = fis.read(buf);
-      }
-    } finally {
-      if (fis != null) {
-        fis.close();
+        hash = hexString(contentDigest.digest());
       }
     }
 
-    String hash = hexString(md5digest.digest());
     Text row = new Text(hash);
 
     // write info to accumulo
@@ -102,44 +318,278 @@ public class FileDataIngest {
     String fext = getExt(filename);
     if (fext != null)
       m.put(REFS_CF, KeyUtil.buildNullSepText(uid, REFS_FILE_EXT), cv, new Value(fext.getBytes()));
+    m.put(REFS_CF, KeyUtil.buildNullSepText(uid, REFS_HASH), cv, new Value(getHashName(length).getBytes()));
     bw.addMutation(m);
 
-    // read through file again, writing chunks to accumulo
+    if (duplicates != null) {
+      boolean stored;
+      try {
+        stored = duplicates.isStored(hash, endMarkerPrefix(length));
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException("could not check for the data of " + filename, e);
+      }
+      if (stored) {
+        bytesDeduplicated += length;
+        return hash;
+      }
+    }
+
+    // read through the buffered data, or the file again, writing chunks to accumulo
     int chunkCount = 0;
+    InputStream spillIn = null;
+    FileChannel channel = null;
+    boolean written = false;
     try {
-      fis = new FileInputStream(filename);
-      numRead = fis.read(buf);
-      while (numRead >= 0) {
-        while (numRead < buf.length) {
-          int moreRead = fis.read(buf, numRead, buf.length - numRead);
-          if (moreRead > 0)
-            numRead += moreRead;
-          else if (moreRead < 0)
-            break;
-        }
-        m = new Mutation(row);
-        Text chunkCQ = new Text(chunkSizeBytes);
-        chunkCQ.append(intToBytes(chunkCount), 0, 4);
-        m.put(CHUNK_CF, chunkCQ, cv, new Value(buf, 0, numRead));
+      if (buffered)
+        spillIn = spillBuffer.getInputStream();
+      else
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      int numRead = spillIn != null ? readChunk(spillIn) : readChunk(channel);
+      // an empty file has no chunks, only an end marker
+      while (numRead > 0) {
+        if (spillIn == null)
+          bytesRead += numRead;
+        // the mutation copies the value, so a full buffer can be passed without copying it first
+        Value value = codec == ChunkCodec.NONE && numRead == buf.length ? fullBufValue : chunkValue(buf, 0, numRead);
+        m = new Mutation(row, MUTATION_OVERHEAD + (value.getSize() < MUTATION_VALUE_CUTOFF ? value.getSize() : 0));
+        m.put(CHUNK_CF, chunkQualifier(chunkCount), cv, value);
+        bytesStored += value.getSize();
         bw.addMutation(m);
         if (chunkCount == Integer.MAX_VALUE)
           throw new RuntimeException("too many chunks for file " + filename + ", try raising chunk size");
         chunkCount++;
-        numRead = fis.read(buf);
+        if (numRead < buf.length)
+          break;
+        numRead = spillIn != null ? readChunk(spillIn) : readChunk(channel);
       }
+      m = new Mutation(row);
+      m.put(CHUNK_CF, chunkQualifier(chunkCount), cv, EMPTY_VALUE);
+      bw.addMutation(m);
+      written = true;
     } finally {
-      if (fis != null) {
-        fis.close();
+      if (duplicates != null) {
+        // copies of the file waiting on this one may now be told the data is stored, or claim it themselves
+        if (written)
+          duplicates.written(hash);
+        else
+          duplicates.failed(hash);
+      }
+      if (spillIn != null)
+        spillIn.close();
+      if (channel != null)
+        channel.close();
+    }
+    return hash;
+  }
+
+  private String insertContentDefinedChunks(String filename, String uid, BatchWriter bw) throws MutationsRejectedException, IOException {
+    // the file hash is only known at the end, so the manifest is held until then
+    List<String> chunkHashes = new ArrayList<>();
+    List<Long> chunkOffsets = new ArrayList<>();
+    // chunks waiting to be looked up, and those of the file already written or waiting
+    List<String> pendingHashes = new ArrayList<>();
+    List<byte[]> pendingData = new ArrayList<>();
+    int pendingBytes = 0;
+    Set<String> fileChunks = new HashSet<>();
+    Text chunkOfQualifier = KeyUtil.buildNullSepText(uid, REFS_CHUNK_OF);
+    Value chunkOf = new Value(filename.getBytes());
+    long offset = 0;
+    contentDigest.reset();
+    try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      int start = 0;
+      int end = 0;
+      boolean eof = false;
+      while (true) {
+        if (!eof && end - start < chunker.getMaxSize()) {
+          System.arraycopy(cdcBuf, start, cdcBuf, 0, end - start);
+          end -= start;
+          start = 0;
+          cdcByteBuf.limit(cdcBuf.length).position(end);
+          while (cdcByteBuf.hasRemaining() && !eof)
+            eof = channel.read(cdcByteBuf) < 0;
+          bytesRead += cdcByteBuf.position() - end;
+          end = cdcByteBuf.position();
+        }
+        if (start == end)
+          break;
+
+        int len = chunker.nextChunkLength(cdcBuf, start, end - start);
+        contentDigest.update(cdcBuf, start, len);
+        chunkDigest.reset();
+        chunkDigest.update(cdcBuf, start, len);
+        String chunkHash = hexString(chunkDigest.digest());
+        chunkHashes.add(chunkHash);
+        chunkOffsets.add(offset);
+
+        // a chunk repeated within the file is written, along with its reference, only once
+        if (fileChunks.add(chunkHash)) {
+          if (duplicates == null) {
+            writeChunk(chunkHash, chunkOfQualifier, chunkOf, cdcBuf, start, len, bw);
+          } else {
+            pendingHashes.add(chunkHash);
+            pendingData.add(Arrays.copyOfRange(cdcBuf, start, start + len));
+            pendingBytes += len;
+            if (pendingHashes.size() >= LOOKUP_BATCH || pendingBytes >= LOOKUP_BATCH_BYTES) {
+              writeNewChunks(filename, pendingHashes, pendingData, chunkOfQualifier, chunkOf, bw);
+              pendingHashes.clear();
+              pendingData.clear();
+              pendingBytes = 0;
+            }
+          }
+        }
+
+        start += len;
+        offset += len;
+        bytesIngested += len;
+      }
+    }
+    if (!pendingHashes.isEmpty())
+      writeNewChunks(filename, pendingHashes, pendingData, chunkOfQualifier, chunkOf, bw);
+
+    String hash = hexString(contentDigest.digest());
+    Text row = new Text(hash);
+    Mutation m = new Mutation(row);
+    m.put(REFS_CF, KeyUtil.buildNullSepText(uid, REFS_ORIG_FILE), cv, new Value(filename.getBytes()));
+    String fext = getExt(filename);
+    if (fext != null)
+      m.put(REFS_CF, KeyUtil.buildNullSepText(uid, REFS_FILE_EXT), cv, new Value(fext.getBytes()));
+    m.put(REFS_CF, KeyUtil.buildNullSepText(uid, REFS_HASH), cv, new Value(getHashName(offset).getBytes()));
+    for (int i = 0; i < chunkHashes.size(); i++) {
+      m.put(MANIFEST_CF, manifestQualifier(chunkOffsets.get(i)), cv, new Value(chunkHashes.get(i).getBytes()));
+      if ((i + 1) % MANIFEST_BATCH == 0) {
+        bw.addMutation(m);
+        m = new Mutation(row);
       }
     }
-    m = new Mutation(row);
-    Text chunkCQ = new Text(chunkSizeBytes);
-    chunkCQ.append(intToBytes(chunkCount), 0, 4);
-    m.put(new Text(CHUNK_CF), chunkCQ, cv, new Value(new byte[0]));
+    // the end marker holds the file length
+    m.put(MANIFEST_CF, manifestQualifier(offset), cv, EMPTY_VALUE);
     bw.addMutation(m);
     return hash;
   }
 
+  /**
+   * Looks up a batch of content defined chunks, and writes those not already stored. The stored ones only get the reference to the file.
+   */
+  private void writeNewChunks(String filename, List<String> hashes, List<byte[]> data, Text chunkOfQualifier, Value chunkOf, BatchWriter bw)
+      throws MutationsRejectedException, IOException {
+    List<Text> markerPrefixes = new ArrayList<>(hashes.size());
+    for (byte[] chunk : data)
+      markerPrefixes.add(chunkMarkerPrefix(chunk.length));
+    boolean[] stored;
+    try {
+      stored = duplicates.areStored(hashes, markerPrefixes);
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("could not check for the chunks of " + filename, e);
+    }
+    for (int i = 0; i < stored.length; i++) {
+      if (stored[i]) {
+        Mutation m = new Mutation(hashes.get(i));
+        m.put(REFS_CF, chunkOfQualifier, cv, chunkOf);
+        bw.addMutation(m);
+        bytesDeduplicated += data.get(i).length;
+      } else {
+        writeChunk(hashes.get(i), chunkOfQualifier, chunkOf, data.get(i), 0, data.get(i).length, bw);
+        duplicates.written(hashes.get(i));
+      }
+    }
+  }
+
+  /**
+   * Writes a content defined chunk, followed by the marker that shows it is stored, with the reference to the file it is part of.
+   */
+  private void writeChunk(String chunkHash, Text chunkOfQualifier, Value chunkOf, byte[] b, int off, int len, BatchWriter bw)
+      throws MutationsRejectedException {
+    Value value = chunkValue(b, off, len);
+    Mutation m = new Mutation(new Text(chunkHash), MUTATION_OVERHEAD + (value.getSize() < MUTATION_VALUE_CUTOFF ? value.getSize() : 0));
+    m.put(REFS_CF, chunkOfQualifier, cv, chunkOf);
+    m.put(CHUNK_CF, chunkQualifier(len, 0), cv, value);
+    bytesStored += value.getSize();
+    m.put(CHUNK_CF, chunkQualifier(len, 1), cv, EMPTY_VALUE);
+    bw.addMutation(m);
+  }
+
+  /**
+   * Builds a manifest column qualifier: the average chunk size, so that manifests made with different sizes can be told apart, followed by the offset of the
+   * chunk in the file.
+   */
+  private Text manifestQualifier(long offset) {
+    byte[] cq = new byte[12];
+    System.arraycopy(chunkSizeBytes, 0, cq, 0, 4);
+    for (int i = 0; i < 8; i++)
+      cq[4 + i] = (byte) (offset >>> (56 - 8 * i));
+    return new Text(cq);
+  }
+
+  private Text chunkQualifier(int size, int chunkNumber) {
+    byte[] cq = chunkCQBytes.clone();
+    System.arraycopy(intToBytes(size), 0, cq, 0, 4);
+    System.arraycopy(intToBytes(chunkNumber), 0, cq, 4, 4);
+    return new Text(cq);
+  }
+
+  /**
+   * Builds the value for a chunk, compressing it with the configured codec.
+   */
+  private Value chunkValue(byte[] b, int off, int len) {
+    if (codec == ChunkCodec.NONE)
+      return new Value(b, off, len);
+    deflater.reset();
+    deflater.setInput(b, off, len);
+    deflater.finish();
+    if (compressBuf == null)
+      compressBuf = new byte[len + len / 8 + 64];
+    int clen = 0;
+    while (!deflater.finished()) {
+      if (clen == compressBuf.length)
+        compressBuf = Arrays.copyOf(compressBuf, compressBuf.length * 2);
+      clen += deflater.deflate(compressBuf, clen, compressBuf.length - clen);
+    }
+    return new Value(compressBuf, 0, clen);
+  }
+
+  /**
+   * Fills the chunk buffer from a file channel.
+   *
+   * @return the number of bytes read, which is less than the chunk size only at the end of the file
+   */
+  private int readChunk(FileChannel channel) throws IOException {
+    byteBuf.clear();
+    while (byteBuf.hasRemaining() && channel.read(byteBuf) >= 0) {}
+    return byteBuf.position();
+  }
+
+  /**
+   * Fills the chunk buffer from a stream.
+   *
+   * @return the number of bytes read, which is less than the chunk size only at the end of the stream
+   */
+  private int readChunk(InputStream in) throws IOException {
+    int numRead = 0;
+    while (numRead < buf.length) {
+      int moreRead = in.read(buf, numRead, buf.length - numRead);
+      if (moreRead < 0)
+        break;
+      numRead += moreRead;
+    }
+    return numRead;
+  }
+
+  /**
+   * Sets the chunk number in the reused chunk qualifier. The mutation copies the qualifier when it is added, so it can be updated again for the next chunk.
+   */
+  private Text chunkQualifier(int chunkNumber) {
+    chunkCQBytes[4] = (byte) (chunkNumber >>> 24);
+    chunkCQBytes[5] = (byte) (chunkNumber >>> 16);
+    chunkCQBytes[6] = (byte) (chunkNumber >>> 8);
+    chunkCQBytes[7] = (byte) chunkNumber;
+    chunkCQ.set(chunkCQBytes);
+    return chunkCQ;
+  }
+
   public static int bytesToInt(byte[] b, int offset) {
     if (b.length <= offset + 3)
       throw new NumberFormatException("couldn't pull integer from bytes at offset " + offset);
@@ -163,11 +613,49 @@ public class FileDataIngest {
   }
 
   public String hexString(byte[] bytes) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : bytes) {
-      sb.append(String.format("%02x", b));
+    return FileHash.toHex(bytes);
+  }
+
+  /**
+   * Hashes a file as a tree, reading and hashing its leaves in parallel in the common fork join pool. Positional reads of a file channel do not move its
+   * position, so the leaves can be read from one channel at once.
+   */
+  private byte[] treeHash(final FileChannel channel, final long length) throws IOException {
+    int leaves = (int) ((length + treeLeafSize - 1) / treeLeafSize);
+    List<byte[]> leafHashes;
+    try {
+      leafHashes = IntStream.range(0, leaves).parallel().mapToObj(i -> {
+        FileHash.Digest digest = fileHash.newDigest();
+        digest.update(new byte[] {TREE_LEAF_TAG}, 0, 1);
+        ByteBuffer leafBuf = ByteBuffer.allocate(Math.min(treeLeafSize, 64 * 1024));
+        long pos = (long) i * treeLeafSize;
+        long end = Math.min(length, pos + treeLeafSize);
+        try {
+          while (pos < end) {
+            leafBuf.clear();
+            leafBuf.limit((int) Math.min(leafBuf.capacity(), end - pos));
+            int numRead = channel.read(leafBuf, pos);
+            if (numRead < 0)
+              throw new IOException("file shrank while it was hashed");
+            digest.update(leafBuf.array(), 0, numRead);
+            pos += numRead;
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return digest.digest();
+      }).collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
-    return sb.toString();
+    FileHash.Digest root = fileHash.newDigest();
+    byte[] name = getHashName(length).getBytes();
+    root.update(new byte[] {TREE_ROOT_TAG}, 0, 1);
+    root.update(intToBytes(name.length), 0, 4);
+    root.update(name, 0, name.length);
+    for (byte[] leafHash : leafHashes)
+      root.update(leafHash, 0, leafHash.length);
+    return root.digest();
   }
 
   public static class Opts extends ClientOnRequiredTable {
@@ -177,6 +665,39 @@ public class FileDataIngest {
     @Parameter(names = "--chunk", description = "size of the chunks used to store partial files")
     int chunkSize = 64 * 1024;
 
+    @Parameter(names = "--cdc", description = "split files into content defined chunks averaging the chunk size, storing chunks shared between files once")
+    boolean contentDefined = false;
+
+    @Parameter(names = "--codec", description = "compression for the chunk values, NONE or DEFLATE")
+    ChunkCodec codec = ChunkCodec.NONE;
+
+    @Parameter(names = "--singlePass", description = "read each file only once, buffering its data while the hash is calculated")
+    boolean singlePass = false;
+
+    @Parameter(names = "--singlePassMemory", converter = MemoryConverter.class,
+        description = "memory used by each thread to buffer a file in single pass mode, anything larger is spilled to a temporary file")
+    long singlePassMemory = 64 * 1024 * 1024;
+
+    @Parameter(names = "--spillDir", description = "directory for single pass spill files, defaults to the system temporary directory")
+    String spillDir = null;
+
+    @Parameter(names = "--threads", description = "number of threads reading and chunking files")
+    int threads = 1;
+
+    @Parameter(names = "--queueSize", description = "number of files that may wait for an ingest thread")
+    int queueSize = 100;
+
+    @Parameter(names = "--hash", description = "the hash that keys the file data, MD5, SHA256 or MURMUR3_128 (fast, but not for untrusted data)")
+    FileHash hash = FileHash.MD5;
+
+    @Parameter(names = "--treeLeafSize", converter = MemoryConverter.class,
+        description = "hash files of at least two leaves of this size as a tree, with the leaves hashed in parallel; 0 hashes every file as a whole")
+    long treeLeafSize = 0;
+
+    @Parameter(names = "--dedup",
+        description = "only write the references of files whose data is already stored, looked up in batches; always on for the chunks of --cdc")
+    boolean dedup = false;
+
     @Parameter(description = "<file> { <file> ... }")
     List<String> files = new ArrayList<>();
   }
@@ -184,7 +705,10 @@ public class FileDataIngest {
   public static void main(String[] args) throws Exception {
     Opts opts = new Opts();
     BatchWriterOpts bwOpts = new BatchWriterOpts();
-    opts.parseArgs(FileDataIngest.class.getName(), args, bwOpts);
+    BatchScannerOpts bsOpts = new BatchScannerOpts();
+    opts.parseArgs(FileDataIngest.class.getName(), args, bwOpts, bsOpts);
+    if (opts.treeLeafSize < 0 || opts.treeLeafSize >= Integer.MAX_VALUE)
+      throw new IllegalArgumentException("--treeLeafSize must be at least 0 and less than " + Integer.MAX_VALUE + " bytes, was " + opts.treeLeafSize);
 
     Connector conn = opts.getConnector();
     if (!conn.tableOperations().exists(opts.getTableName())) {
@@ -192,11 +716,47 @@ public class FileDataIngest {
       conn.tableOperations().attachIterator(opts.getTableName(), new IteratorSetting(1, ChunkCombiner.class));
     }
     BatchWriter bw = conn.createBatchWriter(opts.getTableName(), bwOpts.getBatchWriterConfig());
-    FileDataIngest fdi = new FileDataIngest(opts.chunkSize, opts.visibility);
+    // content defined chunks are always looked up, so chunks shared with stored files are not written again
+    DuplicateChecker duplicates = null;
+    if (opts.dedup || opts.contentDefined)
+      duplicates = new DuplicateChecker(conn, opts.getTableName(), opts.auths, bsOpts.scanThreads, 10000);
+    ParallelFileDataIngest pool = new ParallelFileDataIngest(opts.threads, opts.queueSize, () -> {
+      FileDataIngest fdi = new FileDataIngest(opts.chunkSize, opts.visibility);
+      fdi.setCodec(opts.codec);
+      fdi.setHash(opts.hash);
+      fdi.setTreeHashing((int) opts.treeLeafSize);
+      fdi.setDuplicateChecker(duplicates);
+      if (opts.contentDefined)
+        fdi.setContentDefinedChunking();
+      else if (opts.singlePass)
+        fdi.setSinglePass(opts.singlePassMemory, opts.spillDir == null ? null : new File(opts.spillDir));
+      return fdi;
+    });
+    long t1 = System.currentTimeMillis();
     for (String filename : opts.files) {
-      fdi.insertFileData(filename, bw);
+      pool.submit(filename, bw);
     }
+    pool.close();
+    if (duplicates != null)
+      duplicates.close();
     bw.close();
+    long t2 = System.currentTimeMillis();
+
+    String mode = opts.contentDefined ? "content defined chunks" : opts.singlePass ? "single pass" : "two pass";
+    System.out.printf("Ingest mode    : %s, %s codec, %s hash, %d thread(s)%n", mode, opts.codec.name().toLowerCase(), opts.hash.getName(), opts.threads);
+    System.out.printf("Files ingested : %,d%n", opts.files.size());
+    System.out.printf("Bytes ingested : %,d%n", pool.getBytesIngested());
+    System.out.printf("Bytes stored   : %,d%n", pool.getBytesStored());
+    if (opts.contentDefined) {
+      System.out.printf("Duplicates     : %,d of %,d chunks, %,d bytes, %,d lookups%n", duplicates.getDuplicateChunks(), duplicates.getChunksChecked(),
+          pool.getBytesDeduplicated(), duplicates.getLookups());
+    } else if (duplicates != null) {
+      System.out.printf("Duplicates     : %,d files, %,d bytes, %,d lookups%n", duplicates.getDuplicates(), pool.getBytesDeduplicated(),
+          duplicates.getLookups());
+    }
+    System.out.printf("Bytes read     : %,d%n", pool.getBytesRead());
+    System.out.printf("Time           : %,d ms%n", (t2 - t1));
+    System.out.printf("Throughput     : %,.2f MB/s%n", (pool.getBytesIngested() / (1024.0 * 1024.0)) / (Math.max(1, t2 - t1) / 1000.0));
     //TODO
     //opts.stopTracing();
   }
@@ -17,9 +17,18 @@
 package org.apache.accumulo.examples.filedata;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
@@ -31,43 +40,236 @@ import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.util.PeekingIterator;
+import org.apache.hadoop.io.Text;
 
 /**
  * Retrieves file data based on the hash of the file. Used by the {@link org.apache.accumulo.examples.dirlist.Viewer}. See README.dirlist for
  * instructions.
+ *
+ * Files ingested as content defined chunks are reassembled by reading the chunks listed in their manifest one after another.
+ *
+ * By default each chunk is fetched when the reader reaches it, costing a round trip to the tablet server per chunk. {@link #setReadahead(int)} keeps a
+ * window of upcoming chunks in flight instead, so the reader overlaps the network latency with its own processing. {@link #close()} stops the threads that
+ * fetch them.
  */
-public class FileDataQuery {
+public class FileDataQuery implements AutoCloseable {
+  // manifest entries are small, so they are fetched many at a time
+  private static final int MANIFEST_BATCH_SIZE = 1000;
+
   List<Entry<Key,Value>> lastRefs;
   private ChunkInputStream cis;
   Scanner scanner;
+  private final Connector conn;
+  private final String tableName;
+  private final Authorizations auths;
+  private int readahead = 1;
+  private ExecutorService prefetcher = null;
 
   public FileDataQuery(Connector conn, String tableName, Authorizations auths)
       throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
     lastRefs = new ArrayList<>();
     cis = new ChunkInputStream();
     scanner = conn.createScanner(tableName, auths);
+    this.conn = conn;
+    this.tableName = tableName;
+    this.auths = auths;
+  }
+
+  /**
+   * Sets the number of chunks fetched ahead of the reader by {@link #getData(String)}. For files stored in fixed size chunks, the scanner fetches this many
+   * chunks per round trip and starts fetching the next batch in the background as soon as the current one arrives. For files stored as content defined
+   * chunks, this many chunk rows are fetched in parallel on background threads. Up to twice this many chunks may be held in memory.
+   *
+   * @param chunks
+   *          the number of chunks to fetch ahead, 1 to fetch each chunk only when it is needed
+   */
+  public void setReadahead(int chunks) {
+    if (chunks < 1)
+      throw new IllegalArgumentException("readahead must be at least 1 chunk");
+    readahead = chunks;
+    // the default threshold waits for a few batches before reading ahead, which is a whole small file at one chunk per batch
+    scanner.setReadaheadThreshold(chunks > 1 ? 0 : 3);
+    if (prefetcher != null)
+      prefetcher.shutdown();
+    prefetcher = null;
+    if (chunks > 1) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(chunks, chunks, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), r -> {
+        Thread t = new Thread(r, "chunk prefetch");
+        t.setDaemon(true);
+        return t;
+      });
+      executor.allowCoreThreadTimeOut(true);
+      prefetcher = executor;
+    }
   }
 
   public List<Entry<Key,Value>> getLastRefs() {
     return lastRefs;
   }
 
+  /**
+   * @return the name of the hash that keys the file read by the last {@link #getData(String)}, as recorded in its references, or md5 for files stored
+   *         before the hash was recorded
+   */
+  public String getLastHashName() {
+    for (Entry<Key,Value> e : lastRefs) {
+      String[] cq = KeyUtil.splitNullSepText(e.getKey().getColumnQualifier());
+      if (cq.length == 2 && cq[1].equals(FileDataIngest.REFS_HASH))
+        return new String(e.getValue().get());
+    }
+    return FileHash.MD5.getName();
+  }
+
   public ChunkInputStream getData(String hash) throws IOException {
     scanner.setRange(new Range(hash));
-    scanner.setBatchSize(1);
+    scanner.setBatchSize(readahead);
     lastRefs.clear();
     PeekingIterator<Entry<Key,Value>> pi = new PeekingIterator<>(scanner.iterator());
-    if (pi.hasNext()) {
-      while (!pi.peek().getKey().getColumnFamily().equals(FileDataIngest.CHUNK_CF)) {
-        lastRefs.add(pi.peek());
-        pi.next();
-      }
+    while (pi.hasNext() && !isData(pi.peek().getKey().getColumnFamily())) {
+      lastRefs.add(pi.next());
     }
     cis.clear();
-    cis.setSource(pi);
+    if (pi.hasNext() && pi.peek().getKey().getColumnFamily().equals(FileDataIngest.MANIFEST_CF)) {
+      List<String> chunks = new ArrayList<>();
+      readManifest(scanner, hash, chunks, new ArrayList<Long>());
+      cis.setSource(prefetcher == null ? chunkParts(scanner, hash, chunks.iterator()) : prefetchedChunkParts(hash, chunks.iterator()));
+    } else {
+      cis.setSource(pi);
+    }
     return cis;
   }
 
+  private static boolean isData(Text colf) {
+    return colf.equals(FileDataIngest.CHUNK_CF) || colf.equals(FileDataIngest.MANIFEST_CF);
+  }
+
+  /**
+   * Opens a stream over a file that can seek to any offset, reading only the chunks from that offset on. The stream uses the scanner of this query, so it
+   * can only be used until the next call to this query.
+   */
+  public SeekableChunkInputStream getSeekableData(String hash) throws IOException {
+    scanner.setRange(Range.exact(new Text(hash), FileDataIngest.CHUNK_CF));
+    scanner.setBatchSize(1);
+    Iterator<Entry<Key,Value>> iter = scanner.iterator();
+    if (iter.hasNext())
+      return new SeekableChunkInputStream(scanner, hash, FileDataIngest.bytesToInt(iter.next().getKey().getColumnQualifier().getBytes(), 0));
+    List<String> chunks = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    scanner.setRange(Range.exact(new Text(hash), FileDataIngest.MANIFEST_CF));
+    if (!scanner.iterator().hasNext())
+      throw new IOException("no data for " + hash);
+    long length = readManifest(scanner, hash, chunks, offsets);
+    return new SeekableChunkInputStream(scanner, hash, chunks, offsets, length);
+  }
+
+  /**
+   * Reads part of a file, fetching only the chunks that hold the requested bytes.
+   *
+   * @return the requested bytes, or fewer if the end of the file is reached
+   */
+  public byte[] readRange(String hash, long offset, int len) throws IOException {
+    try (SeekableChunkInputStream in = getSeekableData(hash)) {
+      return in.readRange(offset, len);
+    }
+  }
+
+  /**
+   * Reads the parts of a file stored as content defined chunks, one chunk row at a time.
+   */
+  static ChunkInputStream.PartSource chunkParts(final Scanner scanner, final String hash, final Iterator<String> chunks) {
+    // each chunk row holds the chunk and its end marker
+    scanner.setBatchSize(2);
+    return () -> {
+      if (!chunks.hasNext())
+        return null;
+      String chunk = chunks.next();
+      scanner.setRange(Range.exact(new Text(chunk), FileDataIngest.CHUNK_CF));
+      PeekingIterator<Entry<Key,Value>> part = new PeekingIterator<>(scanner.iterator());
+      if (!part.hasNext())
+        throw new IOException("missing chunk " + chunk + " of " + hash);
+      return part;
+    };
+  }
+
+  /**
+   * Reads the parts of a file stored as content defined chunks, keeping the next few chunk rows in flight on the prefetch threads. Each fetch uses its own
+   * scanner, since scanners are not thread safe.
+   */
+  private ChunkInputStream.PartSource prefetchedChunkParts(final String hash, final Iterator<String> chunks) {
+    final Deque<Future<List<Entry<Key,Value>>>> pending = new ArrayDeque<>();
+    final ExecutorService executor = prefetcher;
+    return () -> {
+      while (pending.size() < readahead && chunks.hasNext()) {
+        final String chunk = chunks.next();
+        pending.add(executor.submit(() -> {
+          List<Entry<Key,Value>> entries = new ArrayList<>(2);
+          try (Scanner chunkScanner = conn.createScanner(tableName, auths)) {
+            chunkScanner.setRange(Range.exact(new Text(chunk), FileDataIngest.CHUNK_CF));
+            for (Entry<Key,Value> entry : chunkScanner)
+              entries.add(entry);
+          }
+          if (entries.isEmpty())
+            throw new IOException("missing chunk " + chunk + " of " + hash);
+          return entries;
+        }));
+      }
+      Future<List<Entry<Key,Value>>> next = pending.poll();
+      if (next == null)
+        return null;
+      try {
+        return new PeekingIterator<>(next.get().iterator());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException(e.getCause());
+      }
+    };
+  }
+
+  /**
+   * Reads the chunk hashes and offsets from a manifest. If the file was ingested more than once with different average chunk sizes, only the first manifest
+   * is used; entries repeated with different visibilities are read once.
+   *
+   * @return the length of the file
+   */
+  static long readManifest(Scanner scanner, String hash, List<String> chunks, List<Long> offsets) throws IOException {
+    scanner.setRange(Range.exact(new Text(hash), FileDataIngest.MANIFEST_CF));
+    scanner.setBatchSize(MANIFEST_BATCH_SIZE);
+    Iterator<Entry<Key,Value>> pi = scanner.iterator();
+    int avgSize = -1;
+    long lastOffset = -1;
+    boolean gotEndMarker = false;
+    while (pi.hasNext()) {
+      Entry<Key,Value> entry = pi.next();
+      byte[] cq = entry.getKey().getColumnQualifierData().toArray();
+      int size = FileDataIngest.bytesToInt(cq, 0);
+      if (avgSize == -1)
+        avgSize = size;
+      else if (size != avgSize)
+        continue;
+      long offset = 0;
+      for (int i = 4; i < 12; i++)
+        offset = (offset << 8) + (cq[i] & 0xff);
+      if (offset == lastOffset)
+        continue;
+      if (gotEndMarker)
+        throw new IOException("found manifest entries after end marker for " + hash);
+      lastOffset = offset;
+      if (entry.getValue().getSize() == 0) {
+        gotEndMarker = true;
+      } else {
+        chunks.add(entry.getValue().toString());
+        offsets.add(offset);
+      }
+    }
+    if (!gotEndMarker)
+      throw new IOException("no end marker in manifest for " + hash);
+    return lastOffset;
+  }
+
   public String getSomeData(String hash, int numBytes) throws IOException {
     ChunkInputStream is = getData(hash);
     byte[] buf = new byte[numBytes];
@@ -77,4 +279,15 @@ public class FileDataQuery {
       return "";
     }
   }
+
+  /**
+   * Stops the readahead threads and closes the scanner. Streams returned by this query cannot be read afterwards.
+   */
+  @Override
+  public void close() {
+    if (prefetcher != null)
+      prefetcher.shutdownNow();
+    prefetcher = null;
+    scanner.close();
+  }
 }
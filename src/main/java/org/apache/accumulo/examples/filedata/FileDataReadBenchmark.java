@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.examples.cli.ClientOnRequiredTable;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Measures the rate of sequential reads of stored files through {@link FileDataQuery} for a range of readahead windows.
+ */
+public class FileDataReadBenchmark {
+
+  static class Opts extends ClientOnRequiredTable {
+    @Parameter(names = "--windows", description = "comma separated readahead windows to measure, in chunks")
+    List<Integer> windows = new ArrayList<>(Arrays.asList(1, 4, 16));
+
+    @Parameter(names = "--maxFiles", description = "number of files to read when no hashes are given")
+    int maxFiles = 100;
+
+    @Parameter(names = "--repeat", description = "number of times to read the files for each window")
+    int repeat = 3;
+
+    @Parameter(description = "{ <hash> ... } (defaults to the first files in the table)")
+    List<String> hashes = new ArrayList<>();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Opts opts = new Opts();
+    opts.parseArgs(FileDataReadBenchmark.class.getName(), args);
+
+    Connector conn = opts.getConnector();
+    List<String> hashes = opts.hashes;
+    if (hashes.isEmpty())
+      hashes = findFiles(conn, opts);
+
+    byte[] buf = new byte[64 * 1024];
+    for (int window : opts.windows) {
+      long bytes = 0;
+      long t1 = System.currentTimeMillis();
+      try (FileDataQuery fdq = new FileDataQuery(conn, opts.getTableName(), opts.auths)) {
+        fdq.setReadahead(window);
+        for (int i = 0; i < opts.repeat; i++) {
+          for (String hash : hashes) {
+            InputStream in = fdq.getData(hash);
+            int n;
+            while ((n = in.read(buf)) > 0)
+              bytes += n;
+            in.close();
+          }
+        }
+      }
+      long t2 = System.currentTimeMillis();
+      System.out.printf("window %3d : %,d files, %,d bytes in %,d ms, %,.2f MB/s%n", window, hashes.size() * opts.repeat, bytes, (t2 - t1),
+          (bytes / (1024.0 * 1024.0)) / (Math.max(1, t2 - t1) / 1000.0));
+    }
+  }
+
+  /**
+   * Finds files by their name references. Rows holding content defined chunks only have chunk references, so they are not picked.
+   */
+  private static List<String> findFiles(Connector conn, Opts opts) throws Exception {
+    Set<String> hashes = new LinkedHashSet<>();
+    Scanner scanner = conn.createScanner(opts.getTableName(), opts.auths);
+    scanner.fetchColumnFamily(FileDataIngest.REFS_CF);
+    for (Entry<Key,Value> entry : scanner) {
+      String[] cq = KeyUtil.splitNullSepText(entry.getKey().getColumnQualifier());
+      if (cq.length == 2 && cq[1].equals(FileDataIngest.REFS_ORIG_FILE))
+        hashes.add(entry.getKey().getRow().toString());
+      if (hashes.size() >= opts.maxFiles)
+        break;
+    }
+    return new ArrayList<>(hashes);
+  }
+}
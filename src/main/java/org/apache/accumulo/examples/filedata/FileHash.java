@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * The hash that keys the data of a file, and the chunks of files stored as content defined chunks. The name of the hash is written to the references of each
+ * file, so a table holding data keyed by several hashes can tell them apart. References without a hash name are from before it was recorded and used MD5.
+ *
+ * {@link #MURMUR3_128} is not a cryptographic hash. It is much faster than the others, but files could be crafted to collide, so it only suits data from a
+ * trusted source.
+ */
+public enum FileHash {
+  MD5("md5"), SHA256("sha256"), MURMUR3_128("murmur3_128");
+
+  /**
+   * A running hash, which starts over after each {@link #digest()} or {@link #reset()}.
+   */
+  public interface Digest {
+    void update(byte[] b, int off, int len);
+
+    byte[] digest();
+
+    void reset();
+  }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String name;
+
+  FileHash(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the name of the hash as recorded in the references of a file
+   */
+  public String getName() {
+    return name;
+  }
+
+  public Digest newDigest() {
+    switch (this) {
+      case MD5:
+        return messageDigest("MD5");
+      case SHA256:
+        return messageDigest("SHA-256");
+      default:
+        return hashFunction(Hashing.murmur3_128());
+    }
+  }
+
+  private static Digest messageDigest(String algorithm) {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    return new Digest() {
+      @Override
+      public void update(byte[] b, int off, int len) {
+        md.update(b, off, len);
+      }
+
+      @Override
+      public byte[] digest() {
+        return md.digest();
+      }
+
+      @Override
+      public void reset() {
+        md.reset();
+      }
+    };
+  }
+
+  private static Digest hashFunction(final HashFunction function) {
+    return new Digest() {
+      private Hasher hasher = function.newHasher();
+
+      @Override
+      public void update(byte[] b, int off, int len) {
+        hasher.putBytes(b, off, len);
+      }
+
+      @Override
+      public byte[] digest() {
+        byte[] hash = hasher.hash().asBytes();
+        reset();
+        return hash;
+      }
+
+      @Override
+      public void reset() {
+        hasher = function.newHasher();
+      }
+    };
+  }
+
+  /**
+   * Encodes bytes as lower case hex, looking up each half byte in a table.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >>> 4) & 0x0f];
+      hex[2 * i + 1] = HEX[bytes[i] & 0x0f];
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.accumulo.core.client.BatchWriter;
+
+/**
+ * Runs {@link FileDataIngest} over many files in parallel. Submitted files wait in a bounded queue for a pool of ingest threads. Each thread reads, hashes and
+ * chunks files with its own {@link FileDataIngest} and hands the mutations to a shared {@link BatchWriter}, which is thread safe and batches them for the
+ * tablet servers.
+ *
+ * Backpressure works in two places. Submitting blocks while the queue is full, so the code walking the files never gets far ahead of the readers. The batch
+ * writer blocks the readers when its memory limit is reached, so they never get far ahead of the tablet servers.
+ *
+ * Each thread has its own {@link FileDataIngest}, so per-instance memory is multiplied by the number of threads. In single pass mode, for example, up to the
+ * number of threads times the single pass memory limit may be buffered at once.
+ *
+ * A task that fails, with an exception or an error such as running out of memory, stops the tasks not yet started, and the failure is thrown by the next
+ * {@link #submit(FileTask)} or by {@link #close()}.
+ */
+public class ParallelFileDataIngest {
+
+  /**
+   * A unit of work run on one of the ingest threads with that thread's {@link FileDataIngest}.
+   */
+  public interface FileTask {
+    void ingest(FileDataIngest fdi) throws Exception;
+  }
+
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final ThreadLocal<FileDataIngest> threadIngest;
+  private final List<FileDataIngest> instances = new ArrayList<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /**
+   * @param numThreads
+   *          the number of threads reading and chunking files
+   * @param queueSize
+   *          the number of submitted files that may wait for a thread before {@link #submit(FileTask)} blocks
+   * @param factory
+   *          creates the {@link FileDataIngest} used by each thread
+   */
+  public ParallelFileDataIngest(int numThreads, int queueSize, final Supplier<FileDataIngest> factory) {
+    if (numThreads < 1)
+      throw new IllegalArgumentException("number of threads must be positive");
+    if (queueSize < 0)
+      throw new IllegalArgumentException("queue size must not be negative");
+    permits = new Semaphore(numThreads + queueSize);
+    threadIngest = ThreadLocal.withInitial(() -> {
+      FileDataIngest fdi = factory.get();
+      synchronized (instances) {
+        instances.add(fdi);
+      }
+      return fdi;
+    });
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread t = new Thread(r, "file data ingest " + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+  }
+
+  /**
+   * Queues a task, blocking while the queue is full.
+   *
+   * @throws Exception
+   *           if a previously submitted task failed
+   */
+  public void submit(final FileTask task) throws Exception {
+    checkFailure();
+    permits.acquire();
+    try {
+      executor.execute(() -> {
+        try {
+          if (failure.get() == null)
+            task.ingest(threadIngest.get());
+        } catch (Throwable t) {
+          // errors are recorded too, so that close does not report success with files missing
+          failure.compareAndSet(null, t);
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Queues a file to be archived using {@link FileDataIngest#insertFileData(String, BatchWriter)}, blocking while the queue is full.
+   */
+  public void submit(final String filename, final BatchWriter bw) throws Exception {
+    submit(fdi -> fdi.insertFileData(filename, bw));
+  }
+
+  /**
+   * Waits for all submitted tasks to finish and stops the ingest threads.
+   *
+   * @throws Exception
+   *           the first failure of any submitted task; an {@link Error} thrown by a task is rethrown as it is
+   */
+  public void close() throws Exception {
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {}
+    checkFailure();
+  }
+
+  /**
+   * @return the total size of the files ingested by all threads
+   */
+  public long getBytesIngested() {
+    long total = 0;
+    synchronized (instances) {
+      for (FileDataIngest fdi : instances)
+        total += fdi.getBytesIngested();
+    }
+    return total;
+  }
+
+  /**
+   * @return the number of bytes of chunk data written by all threads
+   */
+  public long getBytesStored() {
+    long total = 0;
+    synchronized (instances) {
+      for (FileDataIngest fdi : instances)
+        total += fdi.getBytesStored();
+    }
+    return total;
+  }
+
+  /**
+   * @return the total size of the files ingested by all threads whose data was already stored
+   */
+  public long getBytesDeduplicated() {
+    long total = 0;
+    synchronized (instances) {
+      for (FileDataIngest fdi : instances)
+        total += fdi.getBytesDeduplicated();
+    }
+    return total;
+  }
+
+  /**
+   * @return the number of bytes read from disk by all threads
+   */
+  public long getBytesRead() {
+    long total = 0;
+    synchronized (instances) {
+      for (FileDataIngest fdi : instances)
+        total += fdi.getBytesRead();
+    }
+    return total;
+  }
+
+  private void checkFailure() throws Exception {
+    Throwable t = failure.get();
+    if (t instanceof Error)
+      throw (Error) t;
+    if (t != null)
+      throw (Exception) t;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.util.PeekingIterator;
+import org.apache.hadoop.io.Text;
+
+/**
+ * An input stream over a stored file that can seek to any offset. Seeking works out which chunk holds the offset, from the chunk size for files stored in
+ * fixed size chunks or from the manifest for files stored as content defined chunks, and restarts the scan at that chunk, so reading a range of a large file
+ * only fetches the chunks holding that range. Created by {@link FileDataQuery#getSeekableData(String)}.
+ */
+public class SeekableChunkInputStream extends InputStream {
+  private final Scanner scanner;
+  private final String hash;
+  private final Text row;
+  private final ChunkInputStream cis = new ChunkInputStream();
+
+  // fixed size chunks
+  private final int chunkSize;
+
+  // content defined chunks
+  private final List<String> chunks;
+  private final List<Long> offsets;
+  private final long length;
+
+  private long pos;
+
+  SeekableChunkInputStream(Scanner scanner, String hash, int chunkSize) throws IOException {
+    this(scanner, hash, chunkSize, null, null, -1);
+  }
+
+  SeekableChunkInputStream(Scanner scanner, String hash, List<String> chunks, List<Long> offsets, long length) throws IOException {
+    this(scanner, hash, 0, chunks, offsets, length);
+  }
+
+  private SeekableChunkInputStream(Scanner scanner, String hash, int chunkSize, List<String> chunks, List<Long> offsets, long length) throws IOException {
+    this.scanner = scanner;
+    this.hash = hash;
+    this.row = new Text(hash);
+    this.chunkSize = chunkSize;
+    this.chunks = chunks;
+    this.offsets = offsets;
+    this.length = length;
+    seek(0);
+  }
+
+  /**
+   * @return the offset of the next byte to be read
+   */
+  public long getPosition() {
+    return pos;
+  }
+
+  /**
+   * Moves to the given offset. Seeking past the end of the file is allowed, reads there return -1.
+   */
+  public void seek(long offset) throws IOException {
+    if (offset < 0)
+      throw new IOException("negative seek offset " + offset);
+    cis.clear();
+    pos = offset;
+    long skip;
+    if (chunks == null) {
+      long chunk = offset / chunkSize;
+      if (chunk > Integer.MAX_VALUE)
+        chunk = Integer.MAX_VALUE;
+      // the range covers the chunks of this chunk size from the one holding the offset, any later ones have a different chunk size
+      byte[] start = new byte[8];
+      System.arraycopy(FileDataIngest.intToBytes(chunkSize), 0, start, 0, 4);
+      System.arraycopy(FileDataIngest.intToBytes((int) chunk), 0, start, 4, 4);
+      Key startKey = new Key(row, FileDataIngest.CHUNK_CF, new Text(start));
+      Key endKey = new Key(row, FileDataIngest.CHUNK_CF, new Text(FileDataIngest.intToBytes(chunkSize + 1)));
+      scanner.setRange(new Range(startKey, true, endKey, false));
+      scanner.setBatchSize(1);
+      cis.setSource(new PeekingIterator<>(scanner.iterator()), (int) chunk);
+      skip = offset - chunk * chunkSize;
+    } else if (offset >= length) {
+      cis.setSource(FileDataQuery.chunkParts(scanner, hash, Collections.<String> emptyIterator()));
+      skip = 0;
+    } else {
+      int i = Collections.binarySearch(offsets, offset);
+      if (i < 0)
+        i = -i - 2;
+      cis.setSource(FileDataQuery.chunkParts(scanner, hash, chunks.subList(i, chunks.size()).iterator()));
+      skip = offset - offsets.get(i);
+    }
+    cis.skip(skip);
+  }
+
+  /**
+   * Skips forward, seeking rather than reading when the skip goes past the current chunk. As for a file, skipping past the end is allowed.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+    if (n <= cis.available()) {
+      cis.skip(n);
+      pos += n;
+    } else {
+      seek(pos + n);
+    }
+    return n;
+  }
+
+  /**
+   * Reads part of the file.
+   *
+   * @return the requested bytes, or fewer if the end of the file is reached
+   */
+  public byte[] readRange(long offset, int len) throws IOException {
+    seek(offset);
+    byte[] b = new byte[len];
+    int total = 0;
+    while (total < len) {
+      int n = read(b, total, len - total);
+      if (n < 0)
+        break;
+      total += n;
+    }
+    return total == len ? b : Arrays.copyOf(b, total);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int c = cis.read();
+    if (c >= 0)
+      pos++;
+    return c;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = cis.read(b, off, len);
+    if (n > 0)
+      pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return cis.available();
+  }
+
+  @Override
+  public void close() {
+    cis.clear();
+  }
+}
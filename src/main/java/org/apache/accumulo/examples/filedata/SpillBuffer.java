@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buffer that holds data in memory up to a fixed limit and spills anything beyond that limit to a local temporary file. Used by {@link FileDataIngest} to
+ * read each file only once: the data is buffered while its hash is calculated and then replayed to write the chunks. Memory blocks are kept between uses, so
+ * a single buffer can be reset and reused for many files. Also used by {@link org.apache.accumulo.examples.dirlist.FileCount} to hold the directories of each
+ * depth, with all depths sharing one {@link SharedMemory} limit.
+ *
+ * <p>
+ * A spill file is only removed by {@link #reset()}, so callers must reset the buffer once they are done with its data, including when they fail.
+ */
+public class SpillBuffer {
+  private final int blockSize;
+  private final int maxBlocks;
+  private final SharedMemory sharedMemory;
+  private final File spillDir;
+
+  private final List<byte[]> blocks = new ArrayList<>();
+  private long length = 0;
+  private long memoryLength = 0;
+  private File spillFile = null;
+  private OutputStream spillOut = null;
+
+  public SpillBuffer(int blockSize, long memoryLimit, File spillDir) {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("block size must be positive");
+    this.blockSize = blockSize;
+    this.maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryLimit / blockSize));
+    this.sharedMemory = null;
+    this.spillDir = spillDir;
+  }
+
+  /**
+   * Creates a buffer whose memory blocks are taken from a limit shared with other buffers. The blocks are given back to the limit on reset, rather than kept.
+   */
+  public SpillBuffer(int blockSize, SharedMemory sharedMemory, File spillDir) {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("block size must be positive");
+    this.blockSize = blockSize;
+    this.maxBlocks = Integer.MAX_VALUE;
+    this.sharedMemory = sharedMemory;
+    this.spillDir = spillDir;
+  }
+
+  /**
+   * An amount of memory that several buffers take blocks from. Each buffer spills once no more is left.
+   */
+  public static class SharedMemory {
+    private long available;
+
+    /**
+     * @param limit
+     *          the maximum number of bytes held in memory by all the buffers together
+     */
+    public SharedMemory(long limit) {
+      this.available = limit;
+    }
+
+    synchronized boolean take(long bytes) {
+      if (bytes > available)
+        return false;
+      available -= bytes;
+      return true;
+    }
+
+    synchronized void giveBack(long bytes) {
+      available += bytes;
+    }
+  }
+
+  /**
+   * @return the total number of bytes written since the last reset
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * @return true if some of the data written since the last reset was spilled to disk
+   */
+  public boolean spilled() {
+    return spillFile != null;
+  }
+
+  // whether the next byte written can be held in memory, adding a block if there is room for one
+  private boolean fitsInMemory() {
+    if (length < (long) blocks.size() * blockSize)
+      return true;
+    if (blocks.size() == maxBlocks || (sharedMemory != null && !sharedMemory.take(blockSize)))
+      return false;
+    blocks.add(new byte[blockSize]);
+    return true;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (spillOut == null && fitsInMemory()) {
+        int block = (int) (length / blockSize);
+        int blockOff = (int) (length % blockSize);
+        int cnt = Math.min(len, blockSize - blockOff);
+        System.arraycopy(b, off, blocks.get(block), blockOff, cnt);
+        off += cnt;
+        len -= cnt;
+        length += cnt;
+        memoryLength += cnt;
+      } else {
+        if (spillOut == null) {
+          spillFile = File.createTempFile("filedata", ".spill", spillDir);
+          spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), blockSize);
+        }
+        spillOut.write(b, off, len);
+        length += len;
+        len = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns a stream over everything written since the last reset. No more data may be written once this has been called.
+   */
+  public InputStream getInputStream() throws IOException {
+    if (spillOut != null) {
+      spillOut.close();
+      spillOut = null;
+    }
+    return new BufferInputStream();
+  }
+
+  /**
+   * Discards the buffered data and removes any spill file. Memory blocks are retained for reuse, unless they were taken from a {@link SharedMemory}.
+   */
+  public void reset() throws IOException {
+    try {
+      if (spillOut != null)
+        spillOut.close();
+    } finally {
+      spillOut = null;
+      if (spillFile != null && !spillFile.delete() && spillFile.exists())
+        throw new IOException("unable to delete spill file " + spillFile);
+      spillFile = null;
+      length = 0;
+      memoryLength = 0;
+      if (sharedMemory != null) {
+        sharedMemory.giveBack((long) blocks.size() * blockSize);
+        blocks.clear();
+      }
+    }
+  }
+
+  private class BufferInputStream extends InputStream {
+    private final long memoryEnd = memoryLength;
+    private long pos = 0;
+    private InputStream spillIn = null;
+
+    @Override
+    public int read() throws IOException {
+      if (pos < memoryEnd) {
+        int b = blocks.get((int) (pos / blockSize))[(int) (pos % blockSize)] & 0xff;
+        pos++;
+        return b;
+      }
+      if (spillFile == null)
+        return -1;
+      int b = spillIn().read();
+      if (b >= 0)
+        pos++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (pos < memoryEnd) {
+        int blockOff = (int) (pos % blockSize);
+        int cnt = (int) Math.min(Math.min(len, blockSize - blockOff), memoryEnd - pos);
+        System.arraycopy(blocks.get((int) (pos / blockSize)), blockOff, b, off, cnt);
+        pos += cnt;
+        return cnt;
+      }
+      if (spillFile == null)
+        return -1;
+      int cnt = spillIn().read(b, off, len);
+      if (cnt > 0)
+        pos += cnt;
+      return cnt;
+    }
+
+    private InputStream spillIn() throws IOException {
+      if (spillIn == null)
+        spillIn = new BufferedInputStream(new FileInputStream(spillFile), blockSize);
+      return spillIn;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (spillIn != null)
+        spillIn.close();
+      spillIn = null;
+    }
+  }
+}
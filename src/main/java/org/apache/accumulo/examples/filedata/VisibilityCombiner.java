@@ -16,26 +16,93 @@
  */
 package org.apache.accumulo.examples.filedata;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+import org.apache.accumulo.core.data.ArrayByteSequence;
 import org.apache.accumulo.core.data.ByteSequence;
 
+import com.google.common.primitives.UnsignedBytes;
+
 /**
  * A utility for merging visibilities into the form {@code (VIS1)|(VIS2)|...|(VISN)}. Used by the {@link ChunkCombiner}.
+ *
+ * Visibilities are handled as bytes. Each is split into its top level disjuncts, and each disjunct into its set of top level conjuncts. The parsed form of
+ * recently seen visibilities is kept, so when one instance is reused with {@link #clear()} for many rows, each distinct visibility is parsed once. A disjunct
+ * whose conjuncts include all those of another is dropped, since it can only grant access the other already grants, so {@code A|(A&B)} becomes {@code (A)}.
+ * The combined visibility is kept until another disjunct is added.
  */
 public class VisibilityCombiner {
 
-  private TreeSet<String> visibilities = new TreeSet<>();
+  private static final Comparator<byte[]> BYTES = UnsignedBytes.lexicographicalComparator();
+
+  // the disjuncts of recently added visibilities, which repeat from one row to the next
+  private static final int INTERNED_SIZE = 1000;
+  private final Map<ByteSequence,Disjunct[]> interned = new LinkedHashMap<ByteSequence,Disjunct[]>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteSequence,Disjunct[]> eldest) {
+      return size() > INTERNED_SIZE;
+    }
+  };
+
+  // each disjunct, as written in the combined visibility
+  private final TreeMap<byte[],Disjunct> disjuncts = new TreeMap<>(BYTES);
+  private byte[] combined = null;
+
+  /**
+   * Removes all visibilities, keeping those parsed so far for reuse.
+   */
+  void clear() {
+    disjuncts.clear();
+    combined = null;
+  }
 
   void add(ByteSequence cv) {
     if (cv.length() == 0)
       return;
 
+    Disjunct[] parsed = interned.get(cv);
+    if (parsed == null) {
+      ByteSequence copy = new ArrayByteSequence(cv.toArray().clone());
+      parsed = parse(copy);
+      interned.put(copy, parsed);
+    }
+
+    for (Disjunct disjunct : parsed) {
+      if (!disjuncts.containsKey(disjunct.text)) {
+        disjuncts.put(disjunct.text, disjunct);
+        combined = null;
+      }
+    }
+  }
+
+  private static Disjunct[] parse(ByteSequence cv) {
+    List<Disjunct> parsed = new ArrayList<>(1);
     int depth = 0;
     int offset = 0;
+    int firstClose = -1;
+    boolean quoted = false;
 
     for (int i = 0; i < cv.length(); i++) {
-      switch (cv.byteAt(i)) {
+      byte b = cv.byteAt(i);
+      if (quoted) {
+        if (b == '\\')
+          i++;
+        else if (b == '"')
+          quoted = false;
+        continue;
+      }
+      switch (b) {
+        case '"':
+          quoted = true;
+          break;
         case '(':
           depth++;
           break;
@@ -43,65 +110,188 @@ public class VisibilityCombiner {
           depth--;
           if (depth < 0)
             throw new IllegalArgumentException("Invalid vis " + cv);
+          if (depth == 0 && firstClose < 0)
+            firstClose = i;
           break;
         case '|':
           if (depth == 0) {
-            insert(cv.subSequence(offset, i));
+            parsed.add(disjunct(cv, offset, i, firstClose));
             offset = i + 1;
+            firstClose = -1;
           }
-
           break;
       }
     }
 
-    insert(cv.subSequence(offset, cv.length()));
+    if (depth != 0 || quoted)
+      throw new IllegalArgumentException("Invalid vis " + cv);
+
+    parsed.add(disjunct(cv, offset, cv.length(), firstClose));
+    return parsed.toArray(new Disjunct[parsed.size()]);
+  }
 
-    if (depth != 0)
+  private static Disjunct disjunct(ByteSequence cv, int start, int end, int firstClose) {
+    if (start == end)
       throw new IllegalArgumentException("Invalid vis " + cv);
 
+    // a disjunct is written in parentheses unless it already is a single parenthesized expression
+    boolean enclosed = cv.byteAt(start) == '(' && firstClose == end - 1;
+    byte[] text = new byte[end - start + (enclosed ? 0 : 2)];
+    int pos = 0;
+    if (!enclosed)
+      text[pos++] = '(';
+    for (int i = start; i < end; i++)
+      text[pos++] = cv.byteAt(i);
+    if (!enclosed)
+      text[pos] = ')';
+    return new Disjunct(text);
   }
 
-  private void insert(ByteSequence cv) {
-    for (int i = 0; i < cv.length(); i++) {
+  byte[] get() {
+    if (combined != null)
+      return combined;
+
+    List<byte[]> kept = new ArrayList<>(disjuncts.size());
+    int len = 0;
+    for (Disjunct disjunct : disjuncts.values()) {
+      if (!absorbed(disjunct)) {
+        kept.add(disjunct.text);
+        len += disjunct.text.length + 1;
+      }
+    }
+
+    combined = new byte[Math.max(0, len - 1)];
+    int pos = 0;
+    for (byte[] disjunct : kept) {
+      if (pos > 0)
+        combined[pos++] = '|';
+      System.arraycopy(disjunct, 0, combined, pos, disjunct.length);
+      pos += disjunct.length;
+    }
+    return combined;
+  }
+
+  /**
+   * @return true if another disjunct has a subset of the conjuncts of this one. Of two disjuncts with the same conjuncts, the shorter is kept, or the first in
+   *         sort order if they are the same length.
+   */
+  private boolean absorbed(Disjunct disjunct) {
+    for (Disjunct other : disjuncts.values()) {
+      if (other == disjunct || !other.isSubsetOf(disjunct))
+        continue;
+      if (other.conjuncts.length < disjunct.conjuncts.length)
+        return true;
+      if (other.text.length < disjunct.text.length || (other.text.length == disjunct.text.length && BYTES.compare(other.text, disjunct.text) < 0))
+        return true;
+    }
+    return false;
+  }
+
+  private static class Disjunct {
+    final byte[] text;
+    final byte[][] conjuncts;
+    // a bit for the hash of each conjunct, to rule out most subset tests without comparing conjuncts
+    final long signature;
 
+    Disjunct(byte[] text) {
+      this.text = text;
+      this.conjuncts = conjuncts(text);
+      long sig = 0;
+      for (byte[] conjunct : conjuncts)
+        sig |= 1L << (Arrays.hashCode(conjunct) & 63);
+      this.signature = sig;
     }
 
-    String cvs = cv.toString();
-
-    if (cvs.charAt(0) != '(')
-      cvs = "(" + cvs + ")";
-    else {
-      int depth = 0;
-      int depthZeroCloses = 0;
-      for (int i = 0; i < cv.length(); i++) {
-        switch (cv.byteAt(i)) {
-          case '(':
-            depth++;
-            break;
-          case ')':
-            depth--;
-            if (depth == 0)
-              depthZeroCloses++;
-            break;
-        }
+    boolean isSubsetOf(Disjunct set) {
+      if (conjuncts.length > set.conjuncts.length || (signature & ~set.signature) != 0)
+        return false;
+      int j = 0;
+      for (byte[] term : conjuncts) {
+        while (j < set.conjuncts.length && BYTES.compare(set.conjuncts[j], term) < 0)
+          j++;
+        if (j == set.conjuncts.length || BYTES.compare(set.conjuncts[j], term) != 0)
+          return false;
+        j++;
       }
+      return true;
+    }
+  }
 
-      if (depthZeroCloses > 1)
-        cvs = "(" + cvs + ")";
+  /**
+   * Splits an expression into its top level conjuncts, with enclosing parentheses removed, sorted and deduplicated.
+   */
+  private static byte[][] conjuncts(byte[] expr) {
+    byte[] inner = stripParens(expr);
+
+    List<byte[]> terms = new ArrayList<>();
+    int depth = 0;
+    int offset = 0;
+    for (int i = 0; i < inner.length; i++) {
+      switch (inner[i]) {
+        case '"':
+          i = closingQuote(inner, i);
+          break;
+        case '(':
+          depth++;
+          break;
+        case ')':
+          depth--;
+          break;
+        case '&':
+          if (depth == 0) {
+            terms.add(stripParens(Arrays.copyOfRange(inner, offset, i)));
+            offset = i + 1;
+          }
+          break;
+      }
     }
+    terms.add(stripParens(Arrays.copyOfRange(inner, offset, inner.length)));
 
-    visibilities.add(cvs);
+    byte[][] sorted = terms.toArray(new byte[terms.size()][]);
+    Arrays.sort(sorted, BYTES);
+    int n = 0;
+    for (int i = 0; i < sorted.length; i++)
+      if (n == 0 || BYTES.compare(sorted[n - 1], sorted[i]) != 0)
+        sorted[n++] = sorted[i];
+    return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
   }
 
-  byte[] get() {
-    StringBuilder sb = new StringBuilder();
-    String sep = "";
-    for (String cvs : visibilities) {
-      sb.append(sep);
-      sep = "|";
-      sb.append(cvs);
+  private static byte[] stripParens(byte[] expr) {
+    int start = 0;
+    int end = expr.length;
+    while (end - start > 1 && expr[start] == '(' && closing(expr, start) == end - 1) {
+      start++;
+      end--;
     }
+    return start == 0 ? expr : Arrays.copyOfRange(expr, start, end);
+  }
 
-    return sb.toString().getBytes();
+  private static int closing(byte[] expr, int open) {
+    int depth = 0;
+    for (int i = open; i < expr.length; i++) {
+      switch (expr[i]) {
+        case '"':
+          i = closingQuote(expr, i);
+          break;
+        case '(':
+          depth++;
+          break;
+        case ')':
+          if (--depth == 0)
+            return i;
+          break;
+      }
+    }
+    return -1;
+  }
+
+  private static int closingQuote(byte[] expr, int open) {
+    for (int i = open + 1; i < expr.length; i++) {
+      if (expr[i] == '\\')
+        i++;
+      else if (expr[i] == '"')
+        return i;
+    }
+    return expr.length;
   }
 }
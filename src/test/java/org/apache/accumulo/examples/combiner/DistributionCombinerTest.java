@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.junit.Test;
+
+public class DistributionCombinerTest {
+
+  private static final Key KEY = new Key("r", "latency", "q");
+
+  private static DistributionCombiner combiner(double accuracy) throws IOException {
+    IteratorSetting is = new IteratorSetting(10, DistributionCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    DistributionCombiner.setAccuracy(is, accuracy);
+    DistributionCombiner dc = new DistributionCombiner();
+    dc.init(new SortedMapIterator(new TreeMap<Key,Value>()), is.getOptions(), null);
+    return dc;
+  }
+
+  private static void assertQuantiles(long[] sorted, Distribution d, double accuracy) {
+    for (double q : new double[] {0, 0.01, 0.25, 0.5, 0.9, 0.99, 0.999, 1}) {
+      long expected = sorted[(int) (q * (sorted.length - 1))];
+      double actual = d.getQuantile(q);
+      assertTrue("q=" + q + " expected " + expected + " got " + actual, Math.abs(actual - expected) <= accuracy * Math.abs(expected) + 1e-9);
+    }
+  }
+
+  @Test
+  public void testReduce() throws IOException {
+    Random random = new Random(7);
+    long[] values = new long[10000];
+    for (int i = 0; i < values.length; i++)
+      values[i] = (long) Math.exp(random.nextGaussian() * 2 + 8) - 100;
+
+    // combine in several rounds, as compactions would
+    DistributionCombiner dc = combiner(0.02);
+    List<Value> compacted = new ArrayList<>();
+    for (int start = 0; start < values.length; start += 1000) {
+      List<Value> round = new ArrayList<>();
+      for (int i = start; i < start + 1000; i++)
+        round.add(new Value(Long.toString(values[i]).getBytes()));
+      compacted.add(dc.reduce(KEY, round.iterator()));
+    }
+    compacted.add(new Value("0".getBytes()));
+    Distribution d = Distribution.decode(dc.reduce(KEY, compacted.iterator()));
+
+    long[] sorted = Arrays.copyOf(values, values.length + 1);
+    Arrays.sort(sorted);
+    assertEquals(sorted.length, d.getCount());
+    assertEquals(sorted[0], d.getMin());
+    assertEquals(sorted[sorted.length - 1], d.getMax());
+    long sum = 0;
+    double sumSquares = 0;
+    for (long v : sorted) {
+      sum += v;
+      sumSquares += (double) v * v;
+    }
+    assertEquals(sum, d.getSum());
+    double mean = (double) sum / sorted.length;
+    assertEquals(Math.sqrt(sumSquares / sorted.length - mean * mean), d.getStdDev(), 1e-6);
+    assertQuantiles(sorted, d, 0.02);
+  }
+
+  @Test
+  public void testMergeAccuracies() {
+    Distribution coarse = new Distribution(0.05);
+    Distribution fine = new Distribution(0.01);
+    long[] sorted = new long[2000];
+    for (int i = 0; i < 1000; i++) {
+      sorted[i] = i + 1;
+      sorted[i + 1000] = -(i + 1);
+      coarse.add(i + 1);
+      fine.add(-(i + 1));
+    }
+    Arrays.sort(sorted);
+    fine.merge(Distribution.decode(coarse.toValue()));
+    assertEquals(2000, fine.getCount());
+    // buckets moved from the coarser sketch keep its accuracy
+    assertQuantiles(sorted, fine, 0.05 + 0.01);
+  }
+
+  @Test
+  public void testEmptyAndSingle() {
+    Distribution d = new Distribution(0.01);
+    assertTrue(Double.isNaN(d.getQuantile(0.5)));
+    d.add(42);
+    d = Distribution.decode(d.toValue());
+    assertEquals(42.0, d.getQuantile(0.5), 0);
+    assertEquals(0.0, d.getStdDev(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testValidateAccuracy() {
+    IteratorSetting is = new IteratorSetting(10, DistributionCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    DistributionCombiner.setAccuracy(is, 1.5);
+    new DistributionCombiner().validateOptions(is.getOptions());
+  }
+
+  @Test
+  public void testValidateAccuracyLowerBound() {
+    for (double accuracy : new double[] {1e-9, 0, -0.01, Distribution.MIN_ACCURACY / 2}) {
+      IteratorSetting is = new IteratorSetting(10, DistributionCombiner.class);
+      Combiner.setCombineAllColumns(is, true);
+      DistributionCombiner.setAccuracy(is, accuracy);
+      try {
+        new DistributionCombiner().validateOptions(is.getOptions());
+        fail("accepted accuracy " + accuracy);
+      } catch (IllegalArgumentException e) {}
+    }
+
+    // the finest accuracy allowed still keeps the extremes of the long range apart
+    IteratorSetting is = new IteratorSetting(10, DistributionCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    DistributionCombiner.setAccuracy(is, Distribution.MIN_ACCURACY);
+    assertTrue(new DistributionCombiner().validateOptions(is.getOptions()));
+    Distribution d = new Distribution(Distribution.MIN_ACCURACY);
+    d.add(1);
+    d.add(Long.MAX_VALUE);
+    d.add(Long.MIN_VALUE + 1);
+    d = Distribution.decode(d.toValue());
+    assertEquals(3, d.getCount());
+    assertEquals(Long.MAX_VALUE, d.getQuantile(1), Long.MAX_VALUE * Distribution.MIN_ACCURACY);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.junit.Test;
+
+public class HyperLogLogCombinerTest {
+
+  private static final Key KEY = new Key("r", "cf", "cq");
+
+  private static HyperLogLogCombiner combiner(int precision) throws IOException {
+    IteratorSetting is = new IteratorSetting(10, HyperLogLogCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    HyperLogLogCombiner.setPrecision(is, precision);
+    HyperLogLogCombiner hc = new HyperLogLogCombiner();
+    hc.init(new SortedMapIterator(new TreeMap<Key,Value>()), is.getOptions(), null);
+    return hc;
+  }
+
+  // items are written twice, in separate rounds, and each round is combined as a minor compaction would
+  private static Value ingest(HyperLogLogCombiner hc, int distinct, int perRound) {
+    List<Value> compacted = new ArrayList<>();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int start = 0; start < distinct; start += perRound) {
+        List<Value> round = new ArrayList<>();
+        for (int i = start; i < Math.min(distinct, start + perRound); i++)
+          round.add(HyperLogLog.valueOf(("item" + i).getBytes()));
+        compacted.add(hc.reduce(KEY, round.iterator()));
+      }
+    }
+    return hc.reduce(KEY, compacted.iterator());
+  }
+
+  @Test
+  public void testSmallIsExact() throws IOException {
+    Value v = ingest(combiner(12), 300, 100);
+    assertTrue(HyperLogLog.decode(v).isSparse());
+    assertEquals(300, HyperLogLogCombiner.getCount(v));
+  }
+
+  @Test
+  public void testLarge() throws IOException {
+    for (int distinct : new int[] {2000, 100000}) {
+      Value v = ingest(combiner(12), distinct, 10000);
+      assertFalse(HyperLogLog.decode(v).isSparse());
+      assertEquals(2 + 4096, v.getSize());
+      // within four standard errors
+      assertEquals(distinct, HyperLogLogCombiner.getCount(v), distinct * 4 * 1.04 / 64);
+    }
+  }
+
+  @Test
+  public void testMergePrecisions() throws IOException {
+    HyperLogLog fine = new HyperLogLog(14);
+    HyperLogLog coarse = new HyperLogLog(10);
+    for (int i = 0; i < 50000; i++) {
+      fine.add(("item" + i).getBytes());
+      coarse.add(("item" + (i + 25000)).getBytes());
+    }
+    // merging a finer sketch into a coarser one folds its registers
+    HyperLogLog merged = HyperLogLog.decode(coarse.toValue());
+    merged.merge(fine);
+    assertEquals(10, merged.getPrecision());
+    assertEquals(75000, merged.estimate(), 75000 * 4 * 1.04 / 32);
+
+    // the combiner lowers its precision to that of the coarser sketch
+    List<Value> values = new ArrayList<>();
+    values.add(fine.toValue());
+    values.add(coarse.toValue());
+    values.add(HyperLogLog.valueOf("another".getBytes()));
+    HyperLogLog combined = HyperLogLog.decode(combiner(12).reduce(KEY, values.iterator()));
+    assertEquals(10, combined.getPrecision());
+    assertEquals(merged.estimate(), combined.estimate(), 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testValidatePrecision() {
+    IteratorSetting is = new IteratorSetting(10, HyperLogLogCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    HyperLogLogCombiner.setPrecision(is, 30);
+    new HyperLogLogCombiner().validateOptions(is.getOptions());
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.combiner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.junit.Test;
+
+public class StatsCombinerTest {
+
+  private static final Key KEY = new Key("r", "stat", "q");
+
+  private static StatsCombiner combiner(String radix, String encoding) throws IOException {
+    IteratorSetting is = new IteratorSetting(10, StatsCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    if (radix != null)
+      is.addOption(StatsCombiner.RADIX_OPTION, radix);
+    if (encoding != null)
+      is.addOption(StatsCombiner.ENCODING_OPTION, encoding);
+    StatsCombiner sc = new StatsCombiner();
+    sc.init(new SortedMapIterator(new TreeMap<Key,Value>()), is.getOptions(), null);
+    return sc;
+  }
+
+  private static Value reduce(StatsCombiner sc, Value... values) {
+    return sc.reduce(KEY, Arrays.asList(values).iterator());
+  }
+
+  private static Value v(String s) {
+    return new Value(s.getBytes());
+  }
+
+  @Test
+  public void testString() throws IOException {
+    StatsCombiner sc = combiner(null, null);
+    assertEquals("220,240,690,3", reduce(sc, v("240"), v("230"), v("220")).toString());
+    assertEquals("-5,240,925,5", reduce(sc, v("220,240,690,3"), v("-5"), v("+240")).toString());
+    assertEquals(Long.MIN_VALUE + "," + Long.MAX_VALUE + ",-1,2", reduce(sc, v(Long.toString(Long.MIN_VALUE)), v(Long.toString(Long.MAX_VALUE))).toString());
+
+    sc = combiner("16", null);
+    assertEquals("6a,6b,d5,2", reduce(sc, v("6a"), v("6B")).toString());
+  }
+
+  @Test
+  public void testBinary() throws IOException {
+    StatsCombiner sc = combiner(null, StatsCombiner.BINARY_ENCODING);
+    Value result = reduce(sc, v("240"), v("220,230,450,2"));
+    assertEquals(33, result.getSize());
+    assertArrayEquals(new long[] {220, 240, 690, 3}, StatsCombiner.decode(result, 10));
+
+    // binary values are read whatever the encoding option, so a table can be switched back and forth
+    result = reduce(sc, result, v("250"));
+    assertArrayEquals(new long[] {220, 250, 940, 4}, StatsCombiner.decode(result, 10));
+    assertEquals("-1,250,939,5", reduce(combiner(null, StatsCombiner.STRING_ENCODING), result, v("-1")).toString());
+
+    assertArrayEquals(new long[] {7, 7, 7, 1}, StatsCombiner.decode(v("7"), 10));
+    assertArrayEquals(new long[] {Long.MIN_VALUE, -1, 0, Long.MAX_VALUE},
+        StatsCombiner.decode(new Value(StatsCombiner.encode(Long.MIN_VALUE, -1, 0, Long.MAX_VALUE)), 10));
+  }
+
+  @Test
+  public void testInvalid() throws IOException {
+    StatsCombiner sc = combiner(null, null);
+    for (String bad : new String[] {"", "-", "12a", "1,2", "1,2,3,4,5", "1,,3,4", "9223372036854775808"}) {
+      try {
+        reduce(sc, v(bad));
+        throw new AssertionError("expected failure for " + bad);
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testValidateEncoding() {
+    IteratorSetting is = new IteratorSetting(10, StatsCombiner.class);
+    Combiner.setCombineAllColumns(is, true);
+    is.addOption(StatsCombiner.ENCODING_OPTION, "varint");
+    new StatsCombiner().validateOptions(is.getOptions());
+  }
+}
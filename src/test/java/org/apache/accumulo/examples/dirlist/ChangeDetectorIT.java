@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.examples.cli.BatchWriterOpts;
+import org.apache.accumulo.examples.cli.ScannerOpts;
+import org.apache.accumulo.minicluster.impl.MiniAccumuloConfigImpl;
+import org.apache.accumulo.test.functional.ConfigurableMacBase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeDetectorIT extends ConfigurableMacBase {
+
+  private Connector conn;
+  private String dirTable;
+  private String indexTable;
+
+  @Override
+  protected void configure(MiniAccumuloConfigImpl cfg, Configuration hadoopCoreSite) {
+    cfg.setProperty(Property.TSERV_NATIVEMAP_ENABLED, "false");
+  }
+
+  @Before
+  public void setupInstance() throws Exception {
+    String[] names = getUniqueNames(2);
+    dirTable = names[0];
+    indexTable = names[1];
+    conn = getConnector();
+    conn.tableOperations().create(dirTable);
+    conn.tableOperations().create(indexTable);
+    BatchWriter bw = conn.createBatchWriter(dirTable, new BatchWriterConfig());
+    BatchWriter indexBW = conn.createBatchWriter(indexTable, new BatchWriterConfig());
+    ColumnVisibility cv = new ColumnVisibility();
+    bw.addMutation(Ingest.buildMutation(cv, "/local", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/same", false, false, false, 1024, 12345, "abc"));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/modified", false, false, false, 1024, 12345, "abc"));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/nohash", false, false, false, 1024, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/gone", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/gone/file", false, false, false, 10, 12345, "def"));
+    for (String path : Arrays.asList("/local/gone", "/local/gone/file")) {
+      Mutation m = new Mutation(QueryUtil.getForwardIndex(path));
+      m.put(QueryUtil.INDEX_COLF, QueryUtil.getRow(path), cv, new Value(new byte[0]));
+      indexBW.addMutation(m);
+    }
+    bw.close();
+    indexBW.close();
+  }
+
+  @Test
+  public void test() throws Exception {
+    BatchWriter dirBW = conn.createBatchWriter(dirTable, new BatchWriterConfig());
+    BatchWriter indexBW = conn.createBatchWriter(indexTable, new BatchWriterConfig());
+    ChangeDetector detector = new ChangeDetector(conn, dirTable, Authorizations.EMPTY, 2, 2, true, dirBW, indexBW);
+
+    List<String> updated = new ArrayList<>();
+    List<String> added = new ArrayList<>();
+    for (String path : Arrays.asList("/local", "/local/same", "/local/nohash"))
+      detector.check(path, path.equals("/local"), path.equals("/local") ? 272 : 1024, 12345, isNew -> updated.add(path));
+    detector.check("/local/modified", false, 1024, 23456, isNew -> updated.add("/local/modified"));
+    detector.check("/local/new", false, 5, 12345, isNew -> {
+      updated.add("/local/new");
+      if (isNew)
+        added.add("/local/new");
+    });
+    detector.listed("/local", Arrays.asList("same", "modified", "nohash", "new"));
+    detector.flush();
+    dirBW.close();
+    indexBW.close();
+
+    assertEquals(Arrays.asList("/local/nohash", "/local/modified", "/local/new"), updated);
+    assertEquals(Arrays.asList("/local/new"), added);
+    assertEquals(5, detector.getEntriesChecked());
+    assertEquals(2, detector.getEntriesUnchanged());
+    assertEquals(2, detector.getEntriesDeleted());
+
+    TreeSet<String> rows = new TreeSet<>();
+    Scanner scanner = conn.createScanner(dirTable, Authorizations.EMPTY);
+    for (Entry<Key,Value> e : scanner)
+      rows.add(e.getKey().getRow().toString());
+    assertEquals(new TreeSet<>(Arrays.asList(QueryUtil.getRow("/local").toString(), QueryUtil.getRow("/local/same").toString(),
+        QueryUtil.getRow("/local/modified").toString(), QueryUtil.getRow("/local/nohash").toString())), rows);
+
+    scanner = conn.createScanner(indexTable, Authorizations.EMPTY);
+    assertEquals(false, scanner.iterator().hasNext());
+  }
+
+  @Test
+  public void testCounts() throws Exception {
+    CountDeltas.attachCombiner(conn, dirTable);
+    new FileCount(conn, dirTable, Authorizations.EMPTY, new ColumnVisibility(), new ScannerOpts(), new BatchWriterOpts()).run();
+    assertEquals("1,0,2,4", getCounts(""));
+    assertEquals("1,3,1,4", getCounts("/local"));
+
+    BatchWriter dirBW = conn.createBatchWriter(dirTable, new BatchWriterConfig());
+    BatchWriter indexBW = conn.createBatchWriter(indexTable, new BatchWriterConfig());
+    CountDeltas counts = new CountDeltas(new ColumnVisibility(), dirBW, 1);
+    ChangeDetector detector = new ChangeDetector(conn, dirTable, Authorizations.EMPTY, 2, 10, true, dirBW, indexBW);
+    detector.setCountDeltas(counts);
+    detector.check("/local/new", false, 5, 12345, isNew -> {
+      dirBW.addMutation(Ingest.buildMutation(new ColumnVisibility(), "/local/new", false, false, false, 5, 12345, "ghi"));
+      if (isNew)
+        counts.added("/local/new", false);
+    });
+    detector.listed("/local", Arrays.asList("same", "modified", "nohash", "new"));
+    detector.flush();
+    counts.flush();
+    dirBW.close();
+    indexBW.close();
+
+    assertEquals("1,0,1,4", getCounts(""));
+    assertEquals("0,4,0,4", getCounts("/local"));
+
+    // the counts are current, so recounting leaves them as they are
+    new FileCount(conn, dirTable, Authorizations.EMPTY, new ColumnVisibility(), new ScannerOpts(), new BatchWriterOpts()).run();
+    assertEquals("1,0,1,4", getCounts(""));
+    assertEquals("0,4,0,4", getCounts("/local"));
+  }
+
+  private String getCounts(String path) throws Exception {
+    Scanner scanner = conn.createScanner(dirTable, Authorizations.EMPTY);
+    scanner.setRange(new Range(QueryUtil.getRow(path)));
+    scanner.fetchColumn(QueryUtil.DIR_COLF, QueryUtil.COUNTS_COLQ);
+    String counts = null;
+    for (Entry<Key,Value> e : scanner)
+      counts = e.getValue().toString();
+    return counts;
+  }
+}
@@ -88,6 +88,38 @@ public class CountIT extends ConfigurableMacBase {
     expected.add(new Pair<>(QueryUtil.getRow("/local/user1").toString(), "0,2,0,2"));
     expected.add(new Pair<>(QueryUtil.getRow("/local/user2").toString(), "0,0,0,0"));
 
+    checkCounts(scanner, expected);
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    // directories whose names continue past a sibling's name have their children scanned first
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    ColumnVisibility cv = new ColumnVisibility();
+    bw.addMutation(Ingest.buildMutation(cv, "/local.d", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local.d/file", false, false, false, 1024, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1.x", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1.x/file", false, false, false, 1024, 12345, null));
+    bw.close();
+
+    FileCount fc = new FileCount(conn, tableName, Authorizations.EMPTY, new ColumnVisibility(), new ScannerOpts(), new BatchWriterOpts());
+    fc.setSpill(16, null);
+    fc.run();
+
+    ArrayList<Pair<String,String>> expected = new ArrayList<>();
+    expected.add(new Pair<>(QueryUtil.getRow("").toString(), "2,0,5,5"));
+    expected.add(new Pair<>(QueryUtil.getRow("/local").toString(), "3,1,3,4"));
+    expected.add(new Pair<>(QueryUtil.getRow("/local.d").toString(), "0,1,0,1"));
+    expected.add(new Pair<>(QueryUtil.getRow("/local/user1").toString(), "0,2,0,2"));
+    expected.add(new Pair<>(QueryUtil.getRow("/local/user1.x").toString(), "0,1,0,1"));
+    expected.add(new Pair<>(QueryUtil.getRow("/local/user2").toString(), "0,0,0,0"));
+
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    scanner.fetchColumn(new Text("dir"), new Text("counts"));
+    checkCounts(scanner, expected);
+  }
+
+  private void checkCounts(Scanner scanner, ArrayList<Pair<String,String>> expected) {
     int i = 0;
     for (Entry<Key,Value> e : scanner) {
       assertEquals(e.getKey().getRow().toString(), expected.get(i).getFirst());
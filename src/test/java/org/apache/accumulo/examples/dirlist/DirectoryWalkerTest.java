@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryWalkerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWalk() throws Exception {
+    Path root = folder.getRoot().toPath();
+    Map<String,Long> expected = new TreeMap<>();
+    expected.put(root.toString(), -1L);
+    for (int i = 0; i < 5; i++) {
+      Path dir = Files.createDirectory(root.resolve("dir" + i));
+      expected.put(dir.toString(), -1L);
+      for (int j = 0; j < 20; j++) {
+        Path sub = Files.createDirectory(dir.resolve("sub" + j));
+        expected.put(sub.toString(), -1L);
+        Path file = Files.write(sub.resolve("file"), new byte[j]);
+        expected.put(file.toString(), (long) j);
+      }
+    }
+
+    Map<String,Long> visited = new ConcurrentHashMap<>();
+    DirectoryWalker walker = new DirectoryWalker(4, (path, attrs) -> {
+      Long previous = visited.put(path.toString(), attrs.isDirectory() ? -1L : attrs.size());
+      assertEquals(null, previous);
+    });
+    walker.walk(root);
+    walker.close();
+
+    assertEquals(expected, new TreeMap<>(visited));
+    assertEquals(expected.size(), walker.getEntriesVisited());
+  }
+
+  @Test
+  public void testListed() throws Exception {
+    Path root = folder.getRoot().toPath();
+    Path dir = Files.createDirectory(root.resolve("dir"));
+    Files.write(dir.resolve("a"), new byte[1]);
+    Files.write(dir.resolve("b"), new byte[2]);
+    Files.createDirectory(dir.resolve("c"));
+
+    Map<Path,List<String>> listings = new ConcurrentHashMap<>();
+    DirectoryWalker walker = new DirectoryWalker(2, new DirectoryWalker.Visitor() {
+      @Override
+      public void visit(Path path, BasicFileAttributes attrs) {}
+
+      @Override
+      public void listed(Path d, List<String> names) {
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        listings.put(d, sorted);
+      }
+    });
+    walker.walk(root);
+    walker.close();
+
+    assertEquals(Arrays.asList("dir"), listings.get(root));
+    assertEquals(Arrays.asList("a", "b", "c"), listings.get(dir));
+    assertEquals(Collections.emptyList(), listings.get(dir.resolve("c")));
+    assertEquals(3, listings.size());
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    Path root = folder.getRoot().toPath();
+    for (int i = 0; i < 10; i++)
+      Files.createDirectory(root.resolve("dir" + i));
+
+    DirectoryWalker walker = new DirectoryWalker(2, (path, attrs) -> {
+      if (path.getFileName().toString().equals("dir5"))
+        throw new IOException("failed on " + path);
+    });
+    try {
+      walker.walk(root);
+      throw new AssertionError("expected the failure to be rethrown");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().endsWith("dir5"));
+    } finally {
+      walker.close();
+    }
+  }
+}
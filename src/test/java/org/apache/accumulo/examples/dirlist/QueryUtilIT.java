@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.examples.dirlist.QueryUtil.DirEntry;
+import org.apache.accumulo.examples.dirlist.QueryUtil.DirPage;
+import org.apache.accumulo.minicluster.impl.MiniAccumuloConfigImpl;
+import org.apache.accumulo.test.functional.ConfigurableMacBase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryUtilIT extends ConfigurableMacBase {
+
+  private Connector conn;
+  private QueryUtil q;
+
+  @Override
+  protected void configure(MiniAccumuloConfigImpl cfg, Configuration hadoopCoreSite) {
+    cfg.setProperty(Property.TSERV_NATIVEMAP_ENABLED, "false");
+  }
+
+  @Before
+  public void setupInstance() throws Exception {
+    String tableName = getUniqueNames(1)[0];
+    conn = getConnector();
+    conn.tableOperations().create(tableName);
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    ColumnVisibility cv = new ColumnVisibility();
+    bw.addMutation(Ingest.buildMutation(cv, "/local", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/a", false, false, false, 1024, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/a", false, false, false, 2048, 23456, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/b", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/b/c", false, false, false, 10, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/d", false, false, false, 20, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/e", false, false, false, 30, 12345, null));
+    bw.close();
+    q = new QueryUtil(conn, tableName, new Authorizations());
+  }
+
+  @Test
+  public void testBatchSearch() throws Exception {
+    String indexTable = getUniqueNames(2)[1];
+    conn.tableOperations().create(indexTable);
+    BatchWriter bw = conn.createBatchWriter(indexTable, new BatchWriterConfig());
+    for (String path : Arrays.asList("/local/foobar", "/local/foo.txt", "/local/bar.txt", "/home/foo.txt", "/local/readme")) {
+      Text row = QueryUtil.getRow(path);
+      Mutation m = new Mutation(QueryUtil.getForwardIndex(path));
+      m.put(QueryUtil.INDEX_COLF, row, new Value(new byte[0]));
+      bw.addMutation(m);
+      m = new Mutation(QueryUtil.getReverseIndex(path));
+      m.put(QueryUtil.INDEX_COLF, row, new Value(new byte[0]));
+      bw.addMutation(m);
+    }
+    bw.close();
+
+    QueryUtil index = new QueryUtil(conn, indexTable, new Authorizations());
+    Map<String,Set<String>> results = new HashMap<>();
+    long matches = index.batchSearch(Arrays.asList("foo.txt", "foo*", "*.txt", "f*r", "missing", "foo.txt"), 2,
+        (term, row) -> results.computeIfAbsent(term, k -> new HashSet<>()).add(row));
+    // the repeated term gets its matches twice
+    assertEquals(11, matches);
+    assertEquals(new HashSet<>(Arrays.asList("002/home/foo.txt", "002/local/foo.txt")), results.get("foo.txt"));
+    assertEquals(new HashSet<>(Arrays.asList("002/home/foo.txt", "002/local/foo.txt", "002/local/foobar")), results.get("foo*"));
+    assertEquals(new HashSet<>(Arrays.asList("002/home/foo.txt", "002/local/foo.txt", "002/local/bar.txt")), results.get("*.txt"));
+    assertEquals(new HashSet<>(Arrays.asList("002/local/foobar")), results.get("f*r"));
+    assertNull(results.get("missing"));
+  }
+
+  @Test
+  public void testPages() throws Exception {
+    List<String> names = new ArrayList<>();
+    String after = null;
+    int pages = 0;
+    do {
+      DirPage page = q.getDirPage("/local", after, 2);
+      assertTrue(page.getEntries().size() <= 2);
+      for (DirEntry e : page.getEntries())
+        names.add(e.getName());
+      after = page.getContinuation();
+      pages++;
+    } while (after != null);
+    assertEquals(Arrays.asList("a", "b", "d", "e"), names);
+    assertEquals(2, pages);
+
+    DirPage page = q.getDirPage("/local/", "b", 10);
+    assertEquals(2, page.getEntries().size());
+    assertEquals("/local/d", page.getEntries().get(0).getFullName());
+    assertNull(page.getContinuation());
+  }
+
+  @Test
+  public void testAttributes() throws Exception {
+    List<DirEntry> entries = q.getDirPage("/local", null, 10, "length").getEntries();
+    assertEquals(4, entries.size());
+    DirEntry a = entries.get(0);
+    assertFalse(a.isDir());
+    // the newest version comes first
+    assertEquals("2048", a.getAttribute("length"));
+    assertNull(a.getAttribute("lastmod"));
+    assertTrue(entries.get(1).isDir());
+    assertEquals("272", entries.get(1).getAttribute("length"));
+
+    // the full listing holds the same attributes as getData
+    Map<String,Map<String,String>> list = q.getDirList("/local");
+    assertEquals(Arrays.asList("a", "b", "d", "e"), new ArrayList<>(list.keySet()));
+    assertEquals(q.getData("/local/b"), list.get("b"));
+    assertEquals(q.getData("/local/a"), list.get("a"));
+  }
+
+  @Test
+  public void testNGramSearch() throws Exception {
+    String indexTable = getUniqueNames(2)[1];
+    conn.tableOperations().create(indexTable);
+    BatchWriter bw = conn.createBatchWriter(indexTable, new BatchWriterConfig());
+    NGramIndex ngrams = new NGramIndex(4);
+    ColumnVisibility cv = new ColumnVisibility();
+    for (String path : Arrays.asList("/local/foobar", "/local/foo.bar", "/local/barfoo", "/local/foo/bar", "/local/afoob.bard", "/local/fo"))
+      if (ngrams.buildMutation(cv, path) != null)
+        bw.addMutation(ngrams.buildMutation(cv, path));
+    bw.flush();
+    // a file that is gone
+    bw.addMutation(ngrams.buildDelete("/local/foo.bar", Collections.singleton(new Text())));
+    bw.close();
+
+    assertEquals(new HashSet<>(Arrays.asList("002/local/foobar", "002/local/afoob.bard")), search(indexTable, "*foo*bar*"));
+    assertEquals(new HashSet<>(Arrays.asList("002/local/foobar")), search(indexTable, "foo*bar"));
+    assertEquals(new HashSet<>(Arrays.asList("002/local/barfoo")), search(indexTable, "*rfo*"));
+    assertTrue(NGramIndex.canSearch("*foo*"));
+    assertFalse(NGramIndex.canSearch("*fo*ob*"));
+  }
+
+  private Set<String> search(String indexTable, String exp) throws Exception {
+    Set<String> found = new HashSet<>();
+    BatchScanner bs = NGramIndex.search(conn, indexTable, new Authorizations(), 2, exp);
+    for (Entry<Key,Value> e : bs)
+      found.add(e.getKey().getColumnQualifier().toString());
+    bs.close();
+    return found;
+  }
+}
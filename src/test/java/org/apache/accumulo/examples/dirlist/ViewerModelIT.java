@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.dirlist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.minicluster.impl.MiniAccumuloConfigImpl;
+import org.apache.accumulo.test.functional.ConfigurableMacBase;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ViewerModelIT extends ConfigurableMacBase {
+
+  private QueryUtil q;
+  private ViewerModel model;
+
+  @Override
+  protected void configure(MiniAccumuloConfigImpl cfg, Configuration hadoopCoreSite) {
+    cfg.setProperty(Property.TSERV_NATIVEMAP_ENABLED, "false");
+  }
+
+  @Before
+  public void setupInstance() throws Exception {
+    String tableName = getUniqueNames(1)[0];
+    Connector conn = getConnector();
+    conn.tableOperations().create(tableName);
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    ColumnVisibility cv = new ColumnVisibility();
+    bw.addMutation(Ingest.buildMutation(cv, "/local", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user2", true, false, true, 272, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/file", false, false, false, 1024, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1/file1", false, false, false, 2024, 12345, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1/file2", false, false, false, 1028, 23456, null));
+    bw.addMutation(Ingest.buildMutation(cv, "/local/user1/sub", true, false, true, 272, 12345, null));
+    bw.close();
+    q = new QueryUtil(conn, tableName, new Authorizations());
+    model = new ViewerModel(q, null, 3, 100, 2);
+  }
+
+  @After
+  public void closeModel() {
+    model.close();
+  }
+
+  @Test
+  public void testListings() throws Exception {
+    Map<String,CompletableFuture<Map<String,Map<String,String>>>> listings = model.getListings(Arrays.asList("/local", "/local/user1", "/local/user2"));
+    Map<String,Map<String,String>> local = listings.get("/local").get();
+    assertEquals(Arrays.asList("file", "user1", "user2"), new ArrayList<>(local.keySet()));
+    assertEquals(q.getDirList("/local"), local);
+    assertEquals(q.getDirList("/local/user1"), listings.get("/local/user1").get());
+    assertTrue(listings.get("/local/user2").get().isEmpty());
+    // the three directories were read together
+    assertEquals(1, model.getListingScans());
+    assertEquals(Arrays.asList("/local/user1", "/local/user2"), ViewerModel.getSubdirs(local));
+    assertEquals(Arrays.asList("/local/user1/sub"), ViewerModel.getSubdirs(listings.get("/local/user1").get()));
+
+    // cached listings are not read again
+    assertEquals(local, model.getListing("/local").get());
+    assertEquals(1, model.getListingScans());
+
+    // a fourth listing drops the least recently used one
+    assertTrue(model.getListing("/local/user1/sub").get().isEmpty());
+    assertEquals(2, model.getListingScans());
+    model.getListing("/local").get();
+    assertEquals(2, model.getListingScans());
+    model.getListing("/local/user1").get();
+    assertEquals(3, model.getListingScans());
+  }
+}
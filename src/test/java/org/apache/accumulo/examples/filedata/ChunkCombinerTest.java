@@ -234,6 +234,26 @@ public class ChunkCombinerTest extends TestCase {
     }
   }
 
+  public void testCacheAcrossSeeks() throws IOException {
+    assertEquals(2, interleavedSeeks(null));
+    assertEquals(6, interleavedSeeks("1"));
+  }
+
+  // seeks back and forth between the chunks of two rows, as a batch scan over ranges of two files might, and returns the refs seeks
+  private long interleavedSeeks(String cacheSize) throws IOException {
+    ChunkCombiner iter = new ChunkCombiner();
+    iter.init(new MapIterator(allRows), cacheSize == null ? null : Collections.singletonMap(ChunkCombiner.CACHE_SIZE_OPTION, cacheSize), null);
+    for (int i = 0; i < 3; i++) {
+      for (String row : new String[] {"row1", "row3"}) {
+        iter.seek(Range.exact(row, FileDataIngest.CHUNK_CF.toString()), emptyColfs, true);
+        assertTrue(iter.hasTop());
+        assertEquals(allCRows.get(iter.getTopKey()), iter.getTopValue());
+      }
+    }
+    assertEquals(6, iter.getChunksReturned());
+    return iter.getRefsSeeks();
+  }
+
   private void runTest(boolean reseek, TreeMap<Key,Value> source, TreeMap<Key,Value> result, Collection<ByteSequence> cols) throws IOException {
     MapIterator src = new MapIterator(source);
     SortedKeyValueIterator<Key,Value> iter = new ChunkCombiner();
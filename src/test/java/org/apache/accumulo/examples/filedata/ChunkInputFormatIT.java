@@ -68,6 +68,7 @@ public class ChunkInputFormatIT extends AccumuloClusterHarness {
 
   private static List<Entry<Key,Value>> data;
   private static List<Entry<Key,Value>> baddata;
+  private static List<Entry<Key,Value>> refsdata;
 
   private Connector conn;
   private String tableName;
@@ -98,6 +99,13 @@ public class ChunkInputFormatIT extends AccumuloClusterHarness {
     baddata = new ArrayList<>();
     ChunkInputStreamIT.addData(baddata, "c", "refs", "ida\0ext", "A&B", "ext");
     ChunkInputStreamIT.addData(baddata, "c", "refs", "ida\0name", "A&B", "name");
+    // the row of a file stored as content defined chunks has no chunks of its own, only its refs and manifest
+    refsdata = new ArrayList<>();
+    ChunkInputStreamIT.addData(refsdata, "a", "refs", "ida\0name", "A&B", "name");
+    ChunkInputStreamIT.addData(refsdata, "a", "~manifest", "offset", "A&B", "b");
+    ChunkInputStreamIT.addData(refsdata, "b", "refs", "idb\0chunkof", "A&B", "name");
+    ChunkInputStreamIT.addData(refsdata, "b", "~chunk", 100, 0, "A&B", "qwertyuiop");
+    ChunkInputStreamIT.addData(refsdata, "b", "~chunk", 100, 1, "A&B", "");
   }
 
   public static void entryEquals(Entry<Key,Value> e1, Entry<Key,Value> e2) {
@@ -227,6 +235,50 @@ public class ChunkInputFormatIT extends AccumuloClusterHarness {
       }
     }
 
+    public static class TestRefsReset extends Mapper<List<Entry<Key,Value>>,InputStream,List<Entry<Key,Value>>,InputStream> {
+      int count = 0;
+
+      @Override
+      protected void map(List<Entry<Key,Value>> key, InputStream value, Context context) throws IOException, InterruptedException {
+        String table = context.getConfiguration().get("MRTester_tableName");
+        assertNotNull(table);
+
+        byte[] b = new byte[20];
+        int read;
+        try {
+          switch (count) {
+            case 0:
+              // only the refs of the row holding the chunks, not those of the row before it
+              assertEquals(1, key.size());
+              entryEquals(key.get(0), refsdata.get(2));
+              assertEquals(read = value.read(b), 10);
+              assertEquals(new String(b, 0, read), "qwertyuiop");
+              assertEquals(read = value.read(b), -1);
+              break;
+            default:
+              fail();
+          }
+        } catch (AssertionError e) {
+          assertionErrors.put(table, e);
+        } finally {
+          value.close();
+        }
+        count++;
+      }
+
+      @Override
+      protected void cleanup(Context context) throws IOException, InterruptedException {
+        String table = context.getConfiguration().get("MRTester_tableName");
+        assertNotNull(table);
+
+        try {
+          assertEquals(1, count);
+        } catch (AssertionError e) {
+          assertionErrors.put(table, e);
+        }
+      }
+    }
+
     @Override
     public int run(String[] args) throws Exception {
       if (args.length != 2) {
@@ -322,4 +374,20 @@ public class ChunkInputFormatIT extends AccumuloClusterHarness {
     assertEquals(0, CIFTester.main(tableName, CIFTester.TestBadData.class.getName()));
     assertEquals(1, assertionErrors.get(tableName).size());
   }
+
+  @Test
+  public void testRefsResetForNewRow() throws Exception {
+    conn.tableOperations().create(tableName);
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    for (Entry<Key,Value> e : refsdata) {
+      Key k = e.getKey();
+      Mutation m = new Mutation(k.getRow());
+      m.put(k.getColumnFamily(), k.getColumnQualifier(), new ColumnVisibility(k.getColumnVisibility()), k.getTimestamp(), e.getValue());
+      bw.addMutation(m);
+    }
+    bw.close();
+
+    assertEquals(0, CIFTester.main(tableName, CIFTester.TestRefsReset.class.getName()));
+    assertEquals(1, assertionErrors.get(tableName).size());
+  }
 }
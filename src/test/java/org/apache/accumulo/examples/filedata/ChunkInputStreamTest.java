@@ -22,8 +22,11 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.zip.Deflater;
 
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.KeyValue;
@@ -392,4 +395,158 @@ public class ChunkInputStreamTest {
     cis.close();
     assertEquals(cis.getVisibilities().toString(), "[A&B]");
   }
+
+  private static void addDeflatedData(List<Entry<Key,Value>> data, String row, int chunkSize, int chunkCount, String vis, String value) {
+    Text chunkCQ = new Text(FileDataIngest.intToBytes(chunkSize));
+    chunkCQ.append(FileDataIngest.intToBytes(chunkCount), 0, 4);
+    chunkCQ.append(new byte[] {ChunkCodec.DEFLATE.getId()}, 0, 1);
+    byte[] compressed = new byte[0];
+    if (!value.isEmpty()) {
+      Deflater deflater = new Deflater();
+      deflater.setInput(value.getBytes());
+      deflater.finish();
+      byte[] b = new byte[100];
+      compressed = Arrays.copyOf(b, deflater.deflate(b));
+    }
+    data.add(new KeyValue(new Key(new Text(row), new Text("~chunk"), chunkCQ, new Text(vis)), compressed));
+  }
+
+  @Test
+  public void testCompressedChunks() throws IOException {
+    List<Entry<Key,Value>> compressed = new ArrayList<>();
+    // a raw and a compressed copy of the same file
+    addData(compressed, "a", "~chunk", 10, 0, "A", "qwertyuiop");
+    addDeflatedData(compressed, "a", 10, 0, "B", "qwertyuiop");
+    addData(compressed, "a", "~chunk", 10, 1, "A", "asdf");
+    addDeflatedData(compressed, "a", 10, 1, "B", "asdf");
+    addData(compressed, "a", "~chunk", 10, 2, "A", "");
+    addDeflatedData(compressed, "a", 10, 2, "B", "");
+    addDeflatedData(compressed, "b", 10, 0, "A", "qwertyuiop");
+    addDeflatedData(compressed, "b", 10, 1, "A", "asdf");
+    addDeflatedData(compressed, "b", 10, 2, "A", "");
+    addDeflatedData(compressed, "c", 4, 0, "A", "qwertyuiop");
+    addDeflatedData(compressed, "c", 4, 1, "A", "");
+
+    ChunkInputStream cis = new ChunkInputStream();
+    PeekingIterator<Entry<Key,Value>> pi = new PeekingIterator<>(compressed.iterator());
+    byte[] b = new byte[20];
+
+    cis.setSource(pi);
+    assertEquals(14, cis.read(b));
+    assertEquals("qwertyuiopasdf", new String(b, 0, 14));
+    assertEquals(-1, cis.read(b));
+    cis.close();
+    assertEquals("[A]", cis.getVisibilities().toString());
+    // the compressed copy of each chunk and of the end marker is skipped
+    assertEquals(2, cis.getChunksRead());
+    assertEquals(3, cis.getEntriesSkipped());
+
+    cis.setSource(pi);
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = cis.read()) >= 0)
+      sb.append((char) c);
+    assertEquals("qwertyuiopasdf", sb.toString());
+    cis.close();
+
+    // a chunk larger than its recorded size is rejected
+    try {
+      cis.setSource(pi);
+      fail();
+    } catch (IOException e) {}
+  }
+
+  private static ChunkInputStream.PartSource parts(final List<List<Entry<Key,Value>>> rows) {
+    final Iterator<List<Entry<Key,Value>>> iter = rows.iterator();
+    return () -> iter.hasNext() ? new PeekingIterator<>(iter.next().iterator()) : null;
+  }
+
+  @Test
+  public void testParts() throws IOException {
+    List<Entry<Key,Value>> part1 = new ArrayList<>();
+    addData(part1, "p1", "~chunk", 8, 0, "A&B", "asdfjkl;");
+    addData(part1, "p1", "~chunk", 8, 1, "A&B", "");
+    List<Entry<Key,Value>> part2 = new ArrayList<>();
+    addData(part2, "p2", "~chunk", 10, 0, "A&B", "qwertyuiop");
+    addData(part2, "p2", "~chunk", 10, 0, "B&C", "qwertyuiop");
+    addData(part2, "p2", "~chunk", 10, 1, "A&B", "");
+    addData(part2, "p2", "~chunk", 10, 1, "B&C", "");
+
+    ChunkInputStream cis = new ChunkInputStream();
+    byte[] b = new byte[5];
+    cis.setSource(parts(Arrays.asList(part1, part2, part1)));
+    StringBuilder sb = new StringBuilder();
+    int read;
+    while ((read = cis.read(b)) > 0)
+      sb.append(new String(b, 0, read));
+    assertEquals("asdfjkl;qwertyuiopasdfjkl;", sb.toString());
+    cis.close();
+    assertEquals("[A&B, B&C]", cis.getVisibilities().toString());
+
+    cis.setSource(parts(Arrays.asList(part2, part1)));
+    sb = new StringBuilder();
+    while ((read = cis.read()) >= 0)
+      sb.append((char) read);
+    assertEquals("qwertyuiopasdfjkl;", sb.toString());
+    cis.close();
+
+    cis.setSource(parts(new ArrayList<List<Entry<Key,Value>>>()));
+    assertEquals(-1, cis.read(b));
+    cis.close();
+  }
+
+  @Test
+  public void testCloseReadsAllParts() throws IOException {
+    List<Entry<Key,Value>> part1 = new ArrayList<>();
+    addData(part1, "p1", "~chunk", 8, 0, "A", "asdfjkl;");
+    addData(part1, "p1", "~chunk", 8, 1, "A", "");
+    List<Entry<Key,Value>> part2 = new ArrayList<>();
+    addData(part2, "p2", "~chunk", 10, 0, "B", "qwertyuiop");
+    addData(part2, "p2", "~chunk", 10, 1, "B", "");
+    List<Entry<Key,Value>> part3 = new ArrayList<>();
+    addData(part3, "p3", "~chunk", 4, 0, "C", "zxcv");
+    addData(part3, "p3", "~chunk", 4, 1, "C", "");
+
+    // closed part way through the first part, the visibilities still cover the later parts
+    ChunkInputStream cis = new ChunkInputStream();
+    byte[] b = new byte[3];
+    cis.setSource(parts(Arrays.asList(part1, part2, part3)));
+    assertEquals(3, cis.read(b));
+    cis.close();
+    assertEquals("[A, B, C]", cis.getVisibilities().toString());
+    assertEquals(3, cis.getChunksRead());
+
+    // a missing end marker in a later part is found on close too
+    List<Entry<Key,Value>> bad = new ArrayList<>();
+    addData(bad, "p4", "~chunk", 4, 0, "D", "zxcv");
+    cis.setSource(parts(Arrays.asList(part1, bad)));
+    assertEquals(3, cis.read(b));
+    try {
+      cis.close();
+      fail();
+    } catch (IOException e) {}
+  }
+
+  @Test
+  public void testStartPartWayAndSkip() throws IOException {
+    List<Entry<Key,Value>> chunks = new ArrayList<>();
+    addData(chunks, "a", "~chunk", 4, 0, "A", "0123");
+    addData(chunks, "a", "~chunk", 4, 1, "A", "4567");
+    addData(chunks, "a", "~chunk", 4, 2, "A", "89");
+    addData(chunks, "a", "~chunk", 4, 3, "A", "");
+
+    ChunkInputStream cis = new ChunkInputStream();
+    cis.setSource(new PeekingIterator<>(chunks.subList(1, chunks.size()).iterator()), 1);
+    assertEquals(4, cis.available());
+    assertEquals(3, cis.skip(3));
+    assertEquals('7', cis.read());
+    assertEquals(2, cis.skip(10));
+    assertEquals(-1, cis.read());
+    cis.close();
+
+    try {
+      cis.setSource(new PeekingIterator<>(chunks.subList(1, chunks.size()).iterator()), 2);
+      fail();
+    } catch (IOException e) {}
+  }
 }
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+  private static Set<String> chunks(ContentDefinedChunker chunker, byte[] data) {
+    Set<String> chunks = new HashSet<>();
+    int off = 0;
+    while (off < data.length) {
+      int len = chunker.nextChunkLength(data, off, data.length - off);
+      assertTrue(len > 0 && len <= chunker.getMaxSize());
+      if (off + len < data.length)
+        assertTrue(len >= chunker.getAverageSize() / 4);
+      chunks.add(new String(data, off, len, StandardCharsets.ISO_8859_1));
+      off += len;
+    }
+    assertEquals(data.length, off);
+    return chunks;
+  }
+
+  @Test
+  public void testChunkSizes() {
+    ContentDefinedChunker chunker = new ContentDefinedChunker(1024);
+    byte[] data = new byte[1 << 20];
+    new Random(42).nextBytes(data);
+    Set<String> chunks = chunks(chunker, data);
+    // normalized chunking keeps the average close to the requested size
+    double avg = (double) data.length / chunks.size();
+    assertTrue("average chunk size " + avg, avg > 512 && avg < 2048);
+  }
+
+  @Test
+  public void testInsertionOnlyChangesNearbyChunks() {
+    ContentDefinedChunker chunker = new ContentDefinedChunker(1024);
+    byte[] data = new byte[256 * 1024];
+    new Random(42).nextBytes(data);
+    byte[] edited = new byte[data.length + 3];
+    int at = data.length / 2;
+    System.arraycopy(data, 0, edited, 0, at);
+    edited[at] = 'x';
+    edited[at + 1] = 'y';
+    edited[at + 2] = 'z';
+    System.arraycopy(data, at, edited, at + 3, data.length - at);
+
+    Set<String> original = chunks(chunker, data);
+    Set<String> changed = chunks(chunker, edited);
+    changed.removeAll(original);
+    assertTrue("new chunks " + changed.size(), changed.size() <= 2);
+  }
+
+  @Test
+  public void testStableAcrossInstances() {
+    byte[] data = new byte[64 * 1024];
+    new Random(7).nextBytes(data);
+    assertEquals(chunks(new ContentDefinedChunker(4096), data), chunks(new ContentDefinedChunker(4096), data));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooSmall() {
+    new ContentDefinedChunker(16);
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.harness.AccumuloClusterHarness;
+import org.apache.accumulo.minicluster.impl.MiniAccumuloConfigImpl;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DuplicateCheckerIT extends AccumuloClusterHarness {
+  @Override
+  public void configureMiniCluster(MiniAccumuloConfigImpl cfg, Configuration hadoopCoreSite) {
+    cfg.setProperty(Property.TSERV_NATIVEMAP_ENABLED, "false");
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder(new File(System.getProperty("user.dir") + "/target"));
+
+  private Connector conn;
+  private String tableName;
+
+  @Before
+  public void setupInstance() throws Exception {
+    conn = getConnector();
+    tableName = getUniqueNames(1)[0];
+    conn.tableOperations().create(tableName);
+  }
+
+  private File writeFile(String name, String content) throws Exception {
+    File f = folder.newFile(name);
+    Files.write(f.toPath(), content.getBytes());
+    return f;
+  }
+
+  @Test
+  public void testDuplicates() throws Exception {
+    File original = writeFile("original.txt", "the quick brown fox jumps over the lazy dog");
+    File copy = writeFile("copy.txt", "the quick brown fox jumps over the lazy dog");
+    File other = writeFile("other.txt", "a different file");
+    File empty = writeFile("empty.txt", "");
+    File emptyCopy = writeFile("emptyCopy.txt", "");
+
+    DuplicateChecker duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100);
+    FileDataIngest fdi = new FileDataIngest(10, new ColumnVisibility());
+    fdi.setDuplicateChecker(duplicates);
+
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    String hash = fdi.insertFileData(original.getPath(), bw);
+    String emptyHash = fdi.insertFileData(empty.getPath(), bw);
+    bw.flush();
+    long stored = fdi.getBytesStored();
+    assertEquals(43, stored);
+    assertEquals(0, fdi.getBytesDeduplicated());
+
+    // the copies only get references
+    assertEquals(hash, fdi.insertFileData(copy.getPath(), bw));
+    assertEquals(emptyHash, fdi.insertFileData(emptyCopy.getPath(), bw));
+    assertEquals(stored, fdi.getBytesStored());
+    assertEquals(43, fdi.getBytesDeduplicated());
+
+    fdi.insertFileData(other.getPath(), bw);
+    assertEquals(stored + 16, fdi.getBytesStored());
+    bw.close();
+    duplicates.close();
+    assertEquals(5, duplicates.getFilesChecked());
+    assertEquals(2, duplicates.getDuplicates());
+
+    int names = 0;
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    scanner.setRange(new Range(hash));
+    scanner.fetchColumnFamily(FileDataIngest.REFS_CF);
+    for (Entry<Key,Value> e : scanner)
+      if (e.getKey().getColumnQualifier().toString().endsWith(FileDataIngest.REFS_ORIG_FILE))
+        names++;
+    assertEquals(2, names);
+  }
+
+  @Test
+  public void testClaims() throws Exception {
+    DuplicateChecker duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100);
+    FileDataIngest fdi = new FileDataIngest(10, new ColumnVisibility());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // nothing is stored, so the first to ask claims the hash and later ones wait for it to be written
+      assertFalse(duplicates.isStored("abc", fdi.endMarkerPrefix(5)));
+      Future<Boolean> waiting = executor.submit(() -> duplicates.isStored("abc", fdi.endMarkerPrefix(5)));
+      assertFalse(duplicates.isStored("def", fdi.endMarkerPrefix(5)));
+      Thread.sleep(100);
+      assertFalse(waiting.isDone());
+      duplicates.written("abc");
+      assertTrue(waiting.get(30, TimeUnit.SECONDS));
+      // written but not flushed, so only known from the recently written hashes
+      assertTrue(duplicates.isStored("abc", fdi.endMarkerPrefix(5)));
+
+      // when the writer fails, one of those waiting claims the hash
+      waiting = executor.submit(() -> duplicates.isStored("def", fdi.endMarkerPrefix(5)));
+      Thread.sleep(100);
+      assertFalse(waiting.isDone());
+      duplicates.failed("def");
+      assertFalse(waiting.get(30, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    duplicates.close();
+    assertEquals(5, duplicates.getFilesChecked());
+    assertEquals(2, duplicates.getDuplicates());
+  }
+
+  @Test
+  public void testFailedWriteReleasesClaim() throws Exception {
+    File copy = writeFile("copy.txt", "some data");
+    DuplicateChecker duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100);
+    FileDataIngest fdi = new FileDataIngest(10, new ColumnVisibility());
+    fdi.setDuplicateChecker(duplicates);
+    final BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    // fails to write the chunks of the first copy
+    BatchWriter failing = new BatchWriter() {
+      @Override
+      public void addMutation(Mutation m) throws MutationsRejectedException {
+        for (ColumnUpdate update : m.getUpdates())
+          if (FileDataIngest.CHUNK_CF.equals(new Text(update.getColumnFamily())))
+            throw new IllegalStateException("chunk not written");
+        bw.addMutation(m);
+      }
+
+      @Override
+      public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+        for (Mutation m : iterable)
+          addMutation(m);
+      }
+
+      @Override
+      public void flush() throws MutationsRejectedException {
+        bw.flush();
+      }
+
+      @Override
+      public void close() throws MutationsRejectedException {
+        bw.close();
+      }
+    };
+    try {
+      fdi.insertFileData(copy.getPath(), failing);
+      fail("the chunks should not have been written");
+    } catch (IllegalStateException e) {}
+
+    // the claim was released, so the next copy writes the data instead of being told it is stored
+    String hash = fdi.insertFileData(copy.getPath(), bw);
+    assertEquals(0, fdi.getBytesDeduplicated());
+    assertEquals(9, fdi.getBytesStored());
+    bw.close();
+    assertTrue(duplicates.isStored(hash, fdi.endMarkerPrefix(9)));
+    duplicates.close();
+  }
+
+  @Test
+  public void testDataChunkIsNotMarker() throws Exception {
+    File big = writeFile("big.txt", "0123456789012345678901234");
+    DuplicateChecker duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100);
+    FileDataIngest fdi = new FileDataIngest(10, new ColumnVisibility());
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    String hash = fdi.insertFileData(big.getPath(), bw);
+    bw.close();
+    // the second data chunk of the file has the qualifier of the end marker of a file of one chunk
+    assertFalse(duplicates.isStored(hash, fdi.endMarkerPrefix(5)));
+    duplicates.failed(hash);
+    assertTrue(duplicates.isStored(hash, fdi.endMarkerPrefix(25)));
+    duplicates.close();
+  }
+
+  private static byte[] randomData(int len, long seed) {
+    byte[] data = new byte[len];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[1000];
+    int n;
+    while ((n = in.read(b)) >= 0)
+      out.write(b, 0, n);
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testContentDefinedChunks() throws Exception {
+    byte[] data = randomData(100000, 7);
+    // a new version of the file, with some of its content replaced in the middle
+    byte[] edited = data.clone();
+    System.arraycopy(randomData(100, 8), 0, edited, 50000, 100);
+    File original = folder.newFile("original.bin");
+    Files.write(original.toPath(), data);
+    File version = folder.newFile("version.bin");
+    Files.write(version.toPath(), edited);
+    File copy = folder.newFile("copy.bin");
+    Files.write(copy.toPath(), edited);
+
+    DuplicateChecker duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100000);
+    FileDataIngest fdi = new FileDataIngest(64, new ColumnVisibility());
+    fdi.setContentDefinedChunking();
+    fdi.setDuplicateChecker(duplicates);
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    String hash = fdi.insertFileData(original.getPath(), bw);
+    assertEquals(data.length, fdi.getBytesStored());
+    assertEquals(0, fdi.getBytesDeduplicated());
+
+    // the chunks of the original are not flushed yet, so they are only known as recently written
+    String editedHash = fdi.insertFileData(version.getPath(), bw);
+    long changed = fdi.getBytesStored() - data.length;
+    assertTrue(changed > 0);
+    assertTrue(changed < edited.length / 10);
+    assertEquals(edited.length - changed, fdi.getBytesDeduplicated());
+    bw.close();
+    duplicates.close();
+    assertTrue(duplicates.getDuplicateChunks() > 0);
+
+    // a new checker finds every chunk of the copy in the table
+    duplicates = new DuplicateChecker(conn, tableName, new Authorizations(), 2, 100);
+    fdi.setDuplicateChecker(duplicates);
+    long stored = fdi.getBytesStored();
+    bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    assertEquals(editedHash, fdi.insertFileData(copy.getPath(), bw));
+    bw.close();
+    duplicates.close();
+    assertEquals(stored, fdi.getBytesStored());
+    assertEquals(duplicates.getChunksChecked(), duplicates.getDuplicateChunks());
+
+    // the stored chunks have references to the files that share them
+    try (FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations())) {
+      assertArrayEquals(data, readAll(fdq.getData(hash)));
+      assertArrayEquals(edited, readAll(fdq.getData(editedHash)));
+      List<String> chunks = new ArrayList<>();
+      FileDataQuery.readManifest(conn.createScanner(tableName, new Authorizations()), editedHash, chunks, new ArrayList<Long>());
+      int names = 0;
+      Scanner scanner = conn.createScanner(tableName, new Authorizations());
+      scanner.setRange(new Range(chunks.get(0)));
+      scanner.fetchColumnFamily(FileDataIngest.REFS_CF);
+      for (Entry<Key,Value> e : scanner)
+        if (e.getKey().getColumnQualifier().toString().endsWith(FileDataIngest.REFS_CHUNK_OF))
+          names++;
+      assertEquals(3, names);
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.harness.AccumuloClusterHarness;
+import org.apache.accumulo.minicluster.impl.MiniAccumuloConfigImpl;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileDataQueryIT extends AccumuloClusterHarness {
+  @Override
+  public void configureMiniCluster(MiniAccumuloConfigImpl cfg, Configuration hadoopCoreSite) {
+    cfg.setProperty(Property.TSERV_NATIVEMAP_ENABLED, "false");
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder(new File(System.getProperty("user.dir") + "/target"));
+
+  private Connector conn;
+  private String tableName;
+
+  @Before
+  public void setupInstance() throws Exception {
+    conn = getConnector();
+    tableName = getUniqueNames(1)[0];
+    conn.tableOperations().create(tableName);
+  }
+
+  private String ingest(FileDataIngest fdi, byte[] data) throws Exception {
+    File f = writeFile(data);
+    BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    String hash = fdi.insertFileData(f.getPath(), bw);
+    bw.close();
+    return hash;
+  }
+
+  private static byte[] randomData(int len, long seed) {
+    byte[] data = new byte[len];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static void assertReadsAt(SeekableChunkInputStream in, byte[] data, long offset) throws Exception {
+    in.seek(offset);
+    assertEquals(offset, in.getPosition());
+    if (offset >= data.length) {
+      assertEquals(-1, in.read());
+      assertEquals(offset, in.getPosition());
+    } else {
+      assertEquals(data[(int) offset] & 0xff, in.read());
+      assertEquals(offset + 1, in.getPosition());
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[1000];
+    int n;
+    while ((n = in.read(b)) >= 0)
+      out.write(b, 0, n);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testContentDefinedChunks() throws Exception {
+    // over 1000 chunks averaging 64 bytes, so the manifest is split over several mutations
+    byte[] data = randomData(100000, 3);
+    // shares the first half of its content with the first file, behind a different prefix
+    byte[] edited = new byte[50010];
+    System.arraycopy(randomData(10, 4), 0, edited, 0, 10);
+    System.arraycopy(data, 0, edited, 10, 50000);
+
+    FileDataIngest fdi = new FileDataIngest(64, new ColumnVisibility());
+    fdi.setContentDefinedChunking();
+    final BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+    final List<Integer> manifestMutationSizes = new ArrayList<>();
+    BatchWriter counting = new BatchWriter() {
+      @Override
+      public void addMutation(Mutation m) throws MutationsRejectedException {
+        int manifestEntries = 0;
+        for (ColumnUpdate update : m.getUpdates())
+          if (FileDataIngest.MANIFEST_CF.equals(new Text(update.getColumnFamily())))
+            manifestEntries++;
+        if (manifestEntries > 0)
+          manifestMutationSizes.add(manifestEntries);
+        bw.addMutation(m);
+      }
+
+      @Override
+      public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+        for (Mutation m : iterable)
+          addMutation(m);
+      }
+
+      @Override
+      public void flush() throws MutationsRejectedException {
+        bw.flush();
+      }
+
+      @Override
+      public void close() throws MutationsRejectedException {
+        bw.close();
+      }
+    };
+    String hash = fdi.insertFileData(writeFile(data).getPath(), counting);
+    String editedHash = fdi.insertFileData(writeFile(edited).getPath(), counting);
+    String emptyHash = fdi.insertFileData(writeFile(new byte[0]).getPath(), counting);
+    counting.close();
+    assertEquals(data.length + edited.length, fdi.getBytesIngested());
+    assertEquals(data.length + edited.length, fdi.getBytesRead());
+    // without a duplicate checker, every chunk is written, even those already stored
+    assertEquals(data.length + edited.length, fdi.getBytesStored());
+
+    List<String> chunks = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    assertEquals(data.length, FileDataQuery.readManifest(scanner, hash, chunks, offsets));
+    assertTrue(chunks.size() > 1000);
+    // no manifest mutation holds more than a batch of entries
+    assertEquals(1000, (int) manifestMutationSizes.get(0));
+    for (int size : manifestMutationSizes)
+      assertTrue(size <= 1000);
+    // the offsets are those of consecutive chunks that make up the file
+    int off = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      assertEquals(off, (long) offsets.get(i));
+      int len = (i + 1 < chunks.size() ? offsets.get(i + 1).intValue() : data.length) - off;
+      FileHash.Digest digest = FileHash.MD5.newDigest();
+      digest.update(data, off, len);
+      assertEquals(FileHash.toHex(digest.digest()), chunks.get(i));
+      off += len;
+    }
+
+    // the edited file ends with chunks of the first file
+    List<String> editedChunks = new ArrayList<>();
+    assertEquals(edited.length, FileDataQuery.readManifest(scanner, editedHash, editedChunks, new ArrayList<Long>()));
+    Set<String> shared = new HashSet<>(editedChunks);
+    shared.retainAll(chunks);
+    assertTrue(shared.size() > editedChunks.size() / 2);
+
+    // the files are reassembled from their manifests
+    FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations());
+    assertArrayEquals(data, readAll(fdq.getData(hash)));
+    assertArrayEquals(edited, readAll(fdq.getData(editedHash)));
+
+    // an empty file has a manifest with only the end marker
+    chunks.clear();
+    offsets.clear();
+    assertEquals(0, FileDataQuery.readManifest(scanner, emptyHash, chunks, offsets));
+    assertTrue(chunks.isEmpty());
+    ChunkInputStream cis = fdq.getData(emptyHash);
+    assertEquals(-1, cis.read());
+    cis.close();
+    try (SeekableChunkInputStream in = fdq.getSeekableData(emptyHash)) {
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testReadahead() throws Exception {
+    byte[] data = randomData(30000, 5);
+    FileDataIngest cdc = new FileDataIngest(64, new ColumnVisibility());
+    cdc.setContentDefinedChunking();
+    String cdcHash = ingest(cdc, data);
+    // different content, as the same content would be keyed by the same row
+    byte[] fixedData = randomData(30000, 6);
+    String fixedHash = ingest(new FileDataIngest(100, new ColumnVisibility()), fixedData);
+
+    try (FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations())) {
+      fdq.setReadahead(8);
+      // the chunks fetched in parallel come back in file order
+      for (int i = 0; i < 3; i++) {
+        assertArrayEquals(data, readAll(fdq.getData(cdcHash)));
+        assertArrayEquals(fixedData, readAll(fdq.getData(fixedHash)));
+      }
+
+      // a file reassembled part way when the query changes its window
+      ChunkInputStream cis = fdq.getData(cdcHash);
+      byte[] b = new byte[1000];
+      assertEquals(1000, cis.read(b));
+      cis.close();
+      assertArrayEquals(Arrays.copyOf(data, 1000), b);
+      fdq.setReadahead(3);
+      assertArrayEquals(data, readAll(fdq.getData(cdcHash)));
+
+      // drop a chunk in the middle of the file
+      List<String> chunks = new ArrayList<>();
+      List<Long> offsets = new ArrayList<>();
+      FileDataQuery.readManifest(conn.createScanner(tableName, new Authorizations()), cdcHash, chunks, offsets);
+      int missing = chunks.size() / 2;
+      BatchWriter bw = conn.createBatchWriter(tableName, new BatchWriterConfig());
+      Mutation m = new Mutation(chunks.get(missing));
+      try (Scanner scanner = conn.createScanner(tableName, new Authorizations())) {
+        scanner.setRange(Range.exact(chunks.get(missing), FileDataIngest.CHUNK_CF.toString()));
+        for (Entry<Key,Value> e : scanner)
+          m.putDelete(e.getKey().getColumnFamily(), e.getKey().getColumnQualifier());
+      }
+      bw.addMutation(m);
+      bw.close();
+
+      // the chunks before it are read in order, then the reader gets the error
+      cis = fdq.getData(cdcHash);
+      byte[] before = new byte[(int) (long) offsets.get(missing)];
+      int total = 0;
+      while (total < before.length)
+        total += cis.read(before, total, before.length - total);
+      assertArrayEquals(Arrays.copyOf(data, before.length), before);
+      try {
+        cis.read();
+        fail("read past a missing chunk");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("missing chunk " + chunks.get(missing)));
+      }
+      cis.clear();
+    }
+  }
+
+  private File writeFile(byte[] data) throws Exception {
+    File f = folder.newFile();
+    Files.write(f.toPath(), data);
+    return f;
+  }
+
+  @Test
+  public void testSeekFixedChunks() throws Exception {
+    byte[] data = "0123456789abcdefghijklmno".getBytes();
+    String hash = ingest(new FileDataIngest(10, new ColumnVisibility()), data);
+    FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations());
+
+    try (SeekableChunkInputStream in = fdq.getSeekableData(hash)) {
+      assertEquals(0, in.getPosition());
+      // inside a chunk, at the chunk boundaries and on either side of them
+      for (long offset : new long[] {3, 9, 10, 11, 19, 20, 24})
+        assertReadsAt(in, data, offset);
+      // backwards
+      assertReadsAt(in, data, 22);
+      assertReadsAt(in, data, 5);
+      assertReadsAt(in, data, 0);
+      // at and past the end
+      assertReadsAt(in, data, 25);
+      assertReadsAt(in, data, 1000);
+
+      // reading on across chunks after a seek
+      in.seek(8);
+      byte[] b = new byte[5];
+      assertEquals(2, in.read(b, 0, 5));
+      assertEquals("89", new String(b, 0, 2));
+      assertEquals(3, in.read(b, 0, 3));
+      assertEquals("abc", new String(b, 0, 3));
+
+      // skipping within a chunk reads on, skipping further seeks
+      in.seek(0);
+      assertEquals(2, in.skip(2));
+      assertEquals('2', in.read());
+      assertEquals(12, in.skip(12));
+      assertEquals(15, in.getPosition());
+      assertEquals('f', in.read());
+      assertEquals(100, in.skip(100));
+      assertEquals(-1, in.read());
+    }
+
+    assertEquals("89abc", new String(fdq.readRange(hash, 8, 5)));
+    assertEquals("9abcdefghijk", new String(fdq.readRange(hash, 9, 12)));
+    assertEquals("klmno", new String(fdq.readRange(hash, 20, 10)));
+    assertArrayEquals(data, fdq.readRange(hash, 0, data.length));
+    assertEquals(0, fdq.readRange(hash, 25, 5).length);
+    assertEquals(0, fdq.readRange(hash, 30, 5).length);
+  }
+
+  @Test
+  public void testSeekWholeChunks() throws Exception {
+    // the end marker is the chunk after the last full chunk
+    byte[] data = "0123456789abcdefghij".getBytes();
+    String hash = ingest(new FileDataIngest(10, new ColumnVisibility()), data);
+    FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations());
+    try (SeekableChunkInputStream in = fdq.getSeekableData(hash)) {
+      for (long offset : new long[] {19, 20, 10, 0, 21})
+        assertReadsAt(in, data, offset);
+    }
+    assertEquals("j", new String(fdq.readRange(hash, 19, 5)));
+  }
+
+  @Test
+  public void testSeekContentDefinedChunks() throws Exception {
+    byte[] data = randomData(20000, 11);
+    FileDataIngest fdi = new FileDataIngest(256, new ColumnVisibility());
+    fdi.setContentDefinedChunking();
+    String hash = ingest(fdi, data);
+    FileDataQuery fdq = new FileDataQuery(conn, tableName, new Authorizations());
+
+    List<String> chunks = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    assertEquals(data.length, FileDataQuery.readManifest(conn.createScanner(tableName, new Authorizations()), hash, chunks, offsets));
+    assertTrue(offsets.size() > 10);
+    assertEquals(0L, (long) offsets.get(0));
+
+    try (SeekableChunkInputStream in = fdq.getSeekableData(hash)) {
+      // at, just before and just after each chunk boundary from the manifest
+      for (long offset : offsets) {
+        assertReadsAt(in, data, offset);
+        if (offset > 0)
+          assertReadsAt(in, data, offset - 1);
+        assertReadsAt(in, data, offset + 1);
+      }
+      // backwards from the end, and past it
+      for (int i = offsets.size() - 1; i >= 0; i -= 3)
+        assertReadsAt(in, data, offsets.get(i) + 7);
+      assertReadsAt(in, data, data.length - 1);
+      assertReadsAt(in, data, data.length);
+      assertReadsAt(in, data, data.length + 10);
+
+      // skips past the current chunk
+      in.seek(0);
+      long target = offsets.get(5) + 3;
+      assertEquals(target, in.skip(target));
+      assertEquals(data[(int) target] & 0xff, in.read());
+    }
+
+    // ranges across several chunks
+    long start = offsets.get(2) - 5;
+    int len = (int) (offsets.get(4) - start) + 5;
+    assertArrayEquals(Arrays.copyOfRange(data, (int) start, (int) start + len), fdq.readRange(hash, start, len));
+    assertArrayEquals(data, fdq.readRange(hash, 0, data.length));
+    assertArrayEquals(Arrays.copyOfRange(data, data.length - 3, data.length), fdq.readRange(hash, data.length - 3, 10));
+  }
+}
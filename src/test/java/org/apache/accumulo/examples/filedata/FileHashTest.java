@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileHashTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static class ListWriter implements BatchWriter {
+    final List<Mutation> mutations = new ArrayList<>();
+
+    @Override
+    public void addMutation(Mutation m) {
+      mutations.add(m);
+    }
+
+    @Override
+    public void addMutations(Iterable<Mutation> iterable) {
+      for (Mutation m : iterable)
+        mutations.add(m);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private static String hash(FileHash fileHash, byte[] data) {
+    FileHash.Digest digest = fileHash.newDigest();
+    digest.update(data, 0, data.length);
+    return FileHash.toHex(digest.digest());
+  }
+
+  @Test
+  public void testToHex() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      byte[] b = new byte[i];
+      random.nextBytes(b);
+      StringBuilder sb = new StringBuilder();
+      for (byte x : b)
+        sb.append(String.format("%02x", x));
+      assertEquals(sb.toString(), FileHash.toHex(b));
+    }
+  }
+
+  @Test
+  public void testHashes() {
+    byte[] data = "abc".getBytes();
+    assertEquals("900150983cd24fb0d6963f7d28e17f72", hash(FileHash.MD5, data));
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash(FileHash.SHA256, data));
+    assertEquals(32, hash(FileHash.MURMUR3_128, data).length());
+
+    // each digest starts over
+    for (FileHash fileHash : FileHash.values()) {
+      FileHash.Digest digest = fileHash.newDigest();
+      digest.update(data, 0, 2);
+      digest.reset();
+      digest.update(data, 0, data.length);
+      String first = FileHash.toHex(digest.digest());
+      digest.update(data, 0, data.length);
+      assertEquals(first, FileHash.toHex(digest.digest()));
+      assertEquals(hash(fileHash, data), first);
+    }
+  }
+
+  @Test
+  public void testTreeHash() throws Exception {
+    byte[] data = new byte[10];
+    new Random(7).nextBytes(data);
+    File file = folder.newFile("data");
+    Files.write(file.toPath(), data);
+
+    FileDataIngest fdi = new FileDataIngest(3, new ColumnVisibility());
+    fdi.setHash(FileHash.SHA256);
+    fdi.setTreeHashing(4);
+    ListWriter bw = new ListWriter();
+    String hash = fdi.insertFileData(file.getPath(), bw);
+
+    // the tagged hash of the hash name followed by the tagged hashes of the 4, 4 and 2 byte leaves
+    byte[] name = "sha256-tree4".getBytes();
+    FileHash.Digest root = FileHash.SHA256.newDigest();
+    root.update(new byte[] {1}, 0, 1);
+    root.update(FileDataIngest.intToBytes(name.length), 0, 4);
+    root.update(name, 0, name.length);
+    for (int off = 0; off < data.length; off += 4) {
+      FileHash.Digest leaf = FileHash.SHA256.newDigest();
+      leaf.update(new byte[] {0}, 0, 1);
+      leaf.update(data, off, Math.min(4, data.length - off));
+      byte[] leafHash = leaf.digest();
+      root.update(leafHash, 0, leafHash.length);
+    }
+    byte[] rootHash = root.digest();
+    assertEquals(FileDataIngest.TREE_ROW_PREFIX + FileHash.toHex(rootHash), hash);
+    assertEquals("sha256-tree4", hashName(bw));
+    assertEquals(10, fdi.getBytesIngested());
+
+    // a file of less than two leaves is hashed as a whole
+    file = folder.newFile("small");
+    Files.write(file.toPath(), new byte[] {1, 2, 3});
+    bw = new ListWriter();
+    assertEquals(hash(FileHash.SHA256, new byte[] {1, 2, 3}), fdi.insertFileData(file.getPath(), bw));
+    assertEquals("sha256", hashName(bw));
+  }
+
+  @Test
+  public void testTreeRowsAreSeparate() throws Exception {
+    byte[] data = new byte[10];
+    new Random(7).nextBytes(data);
+    File file = folder.newFile("data");
+    Files.write(file.toPath(), data);
+    FileDataIngest fdi = new FileDataIngest(3, new ColumnVisibility());
+    fdi.setHash(FileHash.SHA256);
+    fdi.setTreeHashing(4);
+    String treeHash = fdi.insertFileData(file.getPath(), new ListWriter());
+
+    // a small file holding what an untagged root would have hashed: the leaf size followed by the leaf hashes
+    ByteArrayOutputStream rootInput = new ByteArrayOutputStream();
+    rootInput.write(FileDataIngest.intToBytes(4));
+    for (int off = 0; off < data.length; off += 4) {
+      FileHash.Digest leaf = FileHash.SHA256.newDigest();
+      leaf.update(data, off, Math.min(4, data.length - off));
+      rootInput.write(leaf.digest());
+    }
+    file = folder.newFile("forged");
+    Files.write(file.toPath(), rootInput.toByteArray());
+    fdi.setTreeHashing(rootInput.size());
+    String wholeHash = fdi.insertFileData(file.getPath(), new ListWriter());
+
+    assertTrue(treeHash.startsWith(FileDataIngest.TREE_ROW_PREFIX));
+    assertFalse(wholeHash.startsWith(FileDataIngest.TREE_ROW_PREFIX));
+    assertNotEquals(treeHash, wholeHash);
+    assertNotEquals(treeHash.substring(1), wholeHash);
+  }
+
+  private static String hashName(ListWriter bw) {
+    String name = null;
+    for (Mutation m : bw.mutations) {
+      for (ColumnUpdate update : m.getUpdates()) {
+        String[] cq = KeyUtil.splitNullSepText(new Text(update.getColumnQualifier()));
+        if (cq.length == 2 && cq[1].equals(FileDataIngest.REFS_HASH)) {
+          assertTrue(name == null);
+          name = new String(update.getValue());
+        }
+      }
+    }
+    return name;
+  }
+}
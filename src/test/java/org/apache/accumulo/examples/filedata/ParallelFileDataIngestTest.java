@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelFileDataIngestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static class ListWriter implements BatchWriter {
+    final List<Mutation> mutations = new ArrayList<>();
+
+    @Override
+    public synchronized void addMutation(Mutation m) {
+      mutations.add(m);
+    }
+
+    @Override
+    public synchronized void addMutations(Iterable<Mutation> iterable) {
+      for (Mutation m : iterable)
+        mutations.add(m);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private static ParallelFileDataIngest newPool(int threads, int queueSize) {
+    return new ParallelFileDataIngest(threads, queueSize, () -> new FileDataIngest(10, new ColumnVisibility()));
+  }
+
+  @Test
+  public void testSubmitBlocksWhenQueueIsFull() throws Exception {
+    ParallelFileDataIngest pool = newPool(1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger done = new AtomicInteger();
+    ExecutorService submitter = Executors.newSingleThreadExecutor();
+    try {
+      // one task running and one waiting fill the pool
+      pool.submit(fdi -> {
+        release.await();
+        done.incrementAndGet();
+      });
+      pool.submit(fdi -> done.incrementAndGet());
+      Future<?> third = submitter.submit(() -> {
+        pool.submit(fdi -> done.incrementAndGet());
+        return null;
+      });
+      Thread.sleep(200);
+      assertFalse(third.isDone());
+
+      release.countDown();
+      third.get(30, TimeUnit.SECONDS);
+      pool.close();
+      assertEquals(3, done.get());
+    } finally {
+      submitter.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testExceptionPropagates() throws Exception {
+    ParallelFileDataIngest pool = newPool(2, 0);
+    final IOException failure = new IOException("could not read");
+    pool.submit(fdi -> {
+      throw failure;
+    });
+    // the failure is thrown by a later submit, and by close
+    try {
+      for (int i = 0; i < 100; i++) {
+        Thread.sleep(10);
+        pool.submit(fdi -> {});
+      }
+      fail("submit should have thrown the failure");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    try {
+      pool.close();
+      fail("close should have thrown the failure");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void testErrorPropagates() throws Exception {
+    ParallelFileDataIngest pool = newPool(2, 2);
+    final Error failure = new OutOfMemoryError("no memory left");
+    pool.submit(fdi -> {
+      throw failure;
+    });
+    try {
+      pool.close();
+      fail("close should have thrown the error");
+    } catch (OutOfMemoryError e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    ParallelFileDataIngest pool = newPool(3, 2);
+    ListWriter bw = new ListWriter();
+    long total = 0;
+    for (int i = 0; i < 20; i++) {
+      File f = folder.newFile("file" + i);
+      byte[] data = new byte[i * 7];
+      for (int j = 0; j < data.length; j++)
+        data[j] = (byte) (i + j);
+      Files.write(f.toPath(), data);
+      total += data.length;
+      pool.submit(f.getPath(), bw);
+    }
+    pool.close();
+    assertEquals(total, pool.getBytesIngested());
+    assertEquals(total, pool.getBytesStored());
+    // each file is read once to hash it and once to write its chunks
+    assertEquals(2 * total, pool.getBytesRead());
+    assertEquals(0, pool.getBytesDeduplicated());
+    // a refs mutation, the chunks and an end marker for each file
+    int chunks = 0;
+    for (int i = 0; i < 20; i++)
+      chunks += (i * 7 + 9) / 10;
+    assertEquals(20 * 2 + chunks, bw.mutations.size());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillBufferTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[7];
+    int n;
+    while ((n = in.read(b)) >= 0)
+      out.write(b, 0, n);
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(int len) {
+    byte[] data = new byte[len];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testInMemory() throws IOException {
+    SpillBuffer sb = new SpillBuffer(10, 100, null);
+    byte[] data = randomBytes(95);
+    sb.write(data, 0, 50);
+    sb.write(data, 50, 45);
+    assertEquals(95, sb.length());
+    assertFalse(sb.spilled());
+    assertArrayEquals(data, readAll(sb.getInputStream()));
+    sb.reset();
+    assertEquals(0, sb.length());
+  }
+
+  @Test
+  public void testSpill() throws IOException {
+    SpillBuffer sb = new SpillBuffer(10, 30, null);
+    byte[] data = randomBytes(1000);
+    for (int i = 0; i < data.length; i += 13)
+      sb.write(data, i, Math.min(13, data.length - i));
+    assertEquals(1000, sb.length());
+    assertTrue(sb.spilled());
+    assertArrayEquals(data, readAll(sb.getInputStream()));
+    // a byte at a time, across the memory blocks and the spill file
+    InputStream in = sb.getInputStream();
+    for (byte b : data)
+      assertEquals(b & 0xff, in.read());
+    assertEquals(-1, in.read());
+    in.close();
+    sb.reset();
+    assertFalse(sb.spilled());
+
+    // reuse the buffer for a smaller file
+    sb.write(data, 0, 25);
+    assertFalse(sb.spilled());
+    in = sb.getInputStream();
+    for (int i = 0; i < 25; i++)
+      assertEquals(data[i] & 0xff, in.read());
+    assertEquals(-1, in.read());
+    sb.reset();
+  }
+
+  @Test
+  public void testResetRemovesSpillFile() throws IOException {
+    File spillDir = folder.newFolder("spill");
+    SpillBuffer sb = new SpillBuffer(10, 30, spillDir);
+    byte[] data = randomBytes(100);
+    for (int i = 0; i < 3; i++) {
+      sb.write(data, 0, data.length);
+      assertTrue(sb.spilled());
+      assertEquals(1, spillDir.list().length);
+      // the spill file is removed even if its data was never read
+      if (i == 1)
+        assertArrayEquals(data, readAll(sb.getInputStream()));
+      sb.reset();
+      assertEquals(0, spillDir.list().length);
+    }
+  }
+
+  @Test
+  public void testSharedMemory() throws IOException {
+    SpillBuffer.SharedMemory memory = new SpillBuffer.SharedMemory(30);
+    SpillBuffer first = new SpillBuffer(10, memory, null);
+    SpillBuffer second = new SpillBuffer(10, memory, null);
+    byte[] data = randomBytes(100);
+
+    // the first buffer takes two of the three blocks, leaving one for the second
+    first.write(data, 0, 20);
+    second.write(data, 0, 25);
+    assertFalse(first.spilled());
+    assertTrue(second.spilled());
+    first.write(data, 20, 5);
+    assertTrue(first.spilled());
+    assertArrayEquals(Arrays.copyOf(data, 25), readAll(first.getInputStream()));
+    assertArrayEquals(Arrays.copyOf(data, 25), readAll(second.getInputStream()));
+
+    // blocks are given back on reset
+    second.reset();
+    first.reset();
+    first.write(data, 0, 30);
+    assertFalse(first.spilled());
+    assertArrayEquals(Arrays.copyOf(data, 30), readAll(first.getInputStream()));
+    first.reset();
+  }
+}
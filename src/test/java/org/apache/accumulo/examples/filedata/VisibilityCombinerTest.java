@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.accumulo.examples.filedata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.junit.Test;
+
+public class VisibilityCombinerTest {
+
+  private static String combine(String... visibilities) {
+    VisibilityCombiner vc = new VisibilityCombiner();
+    for (String vis : visibilities)
+      vc.add(new ArrayByteSequence(vis));
+    byte[] combined = vc.get();
+    // the result must be a valid visibility
+    new ColumnVisibility(combined);
+    return new String(combined);
+  }
+
+  @Test
+  public void testCombine() {
+    assertEquals("(C)|(D)", combine("C", "D", "C"));
+    assertEquals("((F|G)&(D|E))|(A&B)|(C&(D|E))", combine("(A&B)|(C&(D|E))", "A&B", "(A&B)", "(F|G)&(D|E)"));
+    // a disjunct that is not a single parenthesized expression is enclosed
+    assertEquals("((A|B)&C)|(D)", combine("(A|B)&C", "D"));
+    assertEquals("(\"a|b\")|(c)", combine("\"a|b\"|c"));
+  }
+
+  @Test
+  public void testAbsorption() {
+    assertEquals("(A)", combine("A", "A&B", "B&(C|D)&A"));
+    assertEquals("(A&B)", combine("B&A", "A&B", "(A)&B"));
+    assertEquals("(A&B)|(C)", combine("A&B&C", "C", "A&B", "(A&B)|(C&D)"));
+    assertEquals("(A)|(A|B)", combine("A", "(A|B)"));
+  }
+
+  @Test
+  public void testCached() {
+    VisibilityCombiner vc = new VisibilityCombiner();
+    vc.add(new ArrayByteSequence("A"));
+    byte[] first = vc.get();
+    vc.add(new ArrayByteSequence("(A)"));
+    assertSame(first, vc.get());
+    vc.add(new ArrayByteSequence("B"));
+    assertEquals("(A)|(B)", new String(vc.get()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalid() {
+    combine("A|");
+  }
+}